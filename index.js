@@ -11,10 +11,12 @@
  */
 'use strict';
 
-var { NativeModules } = require('react-native');
+var { DeviceEventEmitter, NativeModules } = require('react-native');
 
 var StateXModule = NativeModules.StateX;
 
+var nextExportId = 0;
+
 /**
  * StateX is a simple, asynchronous, persistent, global, key-value storage system for app states.
  *
@@ -45,6 +47,22 @@ var StateX = {
       });
     });
   },
+  /**
+   * Returned by `getCachedItem` when the value isn't in memory.
+   */
+  CACHE_MISS: StateXModule.CACHE_MISS,
+  /**
+   * Synchronously returns the value of `key` from the native read cache, or
+   * `CACHE_MISS` if it isn't cached, e.g. because it wasn't read or preloaded
+   * yet, has a pending write or doesn't exist. Never waits for the disk. Not
+   * available while debugging JS remotely.
+   *
+   *   var value = StateX.getCachedItem('settings');
+   *   if (value === StateX.CACHE_MISS) { ... fall back to getItem ... }
+   */
+  getCachedItem: function(key: string): string {
+    return StateXModule.getCachedItem(key);
+  },
   /**
    * Sets `value` for `key` and calls `callback` on completion, along with an
    * `Error` if there is any. Returns a `Promise` object.
@@ -84,7 +102,8 @@ var StateX = {
     });
   },
   /**
-   * Merges existing value with input value, assuming they are stringified json.
+   * Merges existing value with input value, assuming they are stringified json,
+   * as a JSON merge patch (RFC 7396): `null` members remove the existing ones.
    * Returns a `Promise` object.
    */
   mergeItem: function(
@@ -120,6 +139,26 @@ var StateX = {
       });
     });
   },
+  /**
+   * Removes all keys starting with `namespace`. Namespaces configured with
+   * `setShardedNamespaces` natively are dropped at once, whatever the number
+   * of keys. Returns a `Promise` object.
+   */
+  clearNamespace: function(
+    namespace: string,
+    callback?: ?(error: ?Error) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.clearNamespace(namespace, function(error) {
+        callback && callback(convertError(error) || null);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(null);
+        }
+      });
+    });
+  },
   /**
    * Gets *all* keys known to the app, for all callers, libraries, etc. Returns a `Promise` object.
    */
@@ -147,11 +186,15 @@ var StateX = {
    * multiGet invokes callback with an array of key-value pair arrays that
    * matches the input format of multiSet. Returns a `Promise` object.
    *
-   *   multiGet(['k1', 'k2'], cb) -> cb([['k1', 'val1'], ['k2', 'val2']])
+   *   multiGet(['k1', 'k2'], cb) -> cb([['k1', 'val1', null, 3], ['k2', null]])
+   *
+   * Found keys get two more elements: `null` in place of the time to live of
+   * multiSet, then the version of their value, to pass to multiCompareAndSet.
+   * multiSet ignores the version, so rows can be written back as they are.
    */
   multiGet: function(
     keys: Array<string>,
-    callback?: ?(errors: ?Array<Error>, result: ?Array<Array<string>>) => void
+    callback?: ?(errors: ?Array<Error>, result: ?Array<Array<any>>) => void
   ): Promise {
     return new Promise((resolve, reject) => {
       StateXModule.multiGet(keys, function(error, result) {
@@ -169,9 +212,15 @@ var StateX = {
    * the output of multiGet, e.g. Returns a `Promise` object.
    *
    *   multiSet([['k1', 'val1'], ['k2', 'val2']], cb);
+   *
+   * multiSet pairs may have a third element, a time to live in milliseconds after which the key
+   * is no longer returned and is eventually deleted, and a fourth one, a version from multiGet,
+   * which is ignored:
+   *
+   *   multiSet([['response', json, 60 * 1000]], cb);
    */
   multiSet: function(
-    keyValuePairs: Array<Array<string>>,
+    keyValuePairs: Array<Array<any>>,
     callback?: ?(errors: ?Array<Error>) => void
   ): Promise {
     return new Promise((resolve, reject) => {
@@ -222,6 +271,213 @@ var StateX = {
       });
     });
   },
+  /**
+   * Applies set, remove and merge operations in order, all or none of them,
+   * in one native call and one transaction, and notifies the changed keys
+   * once. Returns a `Promise` object.
+   *
+   *   batch([
+   *     {type: 'set', key: 'draft', value: json, ttl: 60 * 1000},
+   *     {type: 'remove', key: 'pending'},
+   *     {type: 'merge', key: 'user', value: '{"unread":0}'},
+   *   ], cb);
+   */
+  batch: function(
+    operations: Array<{type: 'set' | 'remove' | 'merge', key: string, value?: string, ttl?: number}>,
+    callback?: ?(error: ?Error) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.batch(operations, function(error) {
+        callback && callback((error && convertError(error)) || null);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(null);
+        }
+      });
+    });
+  },
+  /**
+   * Writes keys only if their version is still the one read by multiGet, in
+   * one native call. Each entry is `[key, value, expectedVersion, ttl]`: a
+   * `null` value removes the key, a `null` expected version requires the key
+   * to be missing, and the ttl is optional. Resolves with one result per
+   * entry, `{key, ok, version}`, plus the current `value` when `ok` is false.
+   * Returns a `Promise` object.
+   *
+   *   multiCompareAndSet([['counter', '2', 1]], cb)
+   *     -> cb(null, [{key: 'counter', ok: true, version: 7}])
+   */
+  multiCompareAndSet: function(
+    entries: Array<Array<any>>,
+    callback?: ?(
+      error: ?Error,
+      result: ?Array<{key: string, ok: boolean, version: ?number, value?: ?string}>
+    ) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.multiCompareAndSet(entries, function(error, result) {
+        callback && callback((error && convertError(error)) || null, result);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(result);
+        }
+      });
+    });
+  },
+  /**
+   * Gets the keys starting with `prefix`, in key order. `options` may restrict
+   * them to `startKey` (inclusive) and `endKey` (exclusive) and set a `limit`.
+   * Returns a `Promise` object.
+   *
+   *   getKeysWithPrefix('cart/', {limit: 10})
+   */
+  getKeysWithPrefix: function(
+    prefix: string,
+    options?: ?{startKey?: string, endKey?: string, limit?: number},
+    callback?: ?(error: ?Error, keys: ?Array<string>) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.getKeysWithPrefix(prefix, options || null, function(error, keys) {
+        callback && callback((error && convertError(error)) || null, keys);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(keys);
+        }
+      });
+    });
+  },
+  /**
+   * Like `getKeysWithPrefix`, but resolves with key-value pairs like
+   * `multiGet`. Returns a `Promise` object.
+   */
+  multiGetByPrefix: function(
+    prefix: string,
+    options?: ?{startKey?: string, endKey?: string, limit?: number},
+    callback?: ?(error: ?Error, result: ?Array<Array<string>>) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.multiGetByPrefix(prefix, options || null, function(error, result) {
+        callback && callback((error && convertError(error)) || null, result);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(result);
+        }
+      });
+    });
+  },
+  /**
+   * Gets a page of at most `pageSize` keys, in key order. Pass the `cursor` of
+   * a page to get the next one; it is `null` after the last page. Returns a
+   * `Promise` object.
+   *
+   *   getAllKeysPage(null, 100) -> {keys: [...], cursor: 'k99'}
+   */
+  getAllKeysPage: function(
+    cursor: ?string,
+    pageSize: number,
+    callback?: ?(error: ?Error, page: ?{keys: Array<string>, cursor: ?string}) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.getAllKeysPage(cursor || null, pageSize, function(error, page) {
+        callback && callback((error && convertError(error)) || null, page);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(page);
+        }
+      });
+    });
+  },
+  /**
+   * Streams all keys, or key-value pairs with `includeValues`, optionally only
+   * those starting with `prefix`, calling `onChunk` with chunks of at most
+   * `chunkSize` entries. Returns a `Promise` object resolved once all chunks
+   * have been delivered.
+   */
+  exportAll: function(
+    options: ?{prefix?: string, chunkSize?: number, includeValues?: boolean},
+    onChunk: (chunk: Array<any>) => void
+  ): Promise {
+    var streamId = String(nextExportId++);
+    return new Promise((resolve, reject) => {
+      var subscription = DeviceEventEmitter.addListener('StateXExport', function(event) {
+        if (event.streamId !== streamId) {
+          return;
+        }
+        if (event.data) {
+          onChunk(event.data);
+          return;
+        }
+        subscription.remove();
+        if (event.error) {
+          reject(convertError(event.error));
+        } else {
+          resolve(null);
+        }
+      });
+      StateXModule.exportAll(streamId, options || null);
+    });
+  },
+  /**
+   * Calls `listener` after each committed transaction with `{keys, values,
+   * clearedPrefixes}`, when the change feed is enabled in the native
+   * `StateXConfig`. `values` has the rows of the changed keys in the format of
+   * `multiGet`, or is missing when they exceed the payload size, and
+   * `clearedPrefixes` lists the prefixes whose keys were all removed. Returns
+   * the subscription, to `remove()` once done.
+   */
+  addChangeListener: function(
+    listener: (event: {
+      keys: Array<string>,
+      values?: Array<Array<any>>,
+      clearedPrefixes?: Array<string>,
+    }) => void
+  ): Object {
+    return DeviceEventEmitter.addListener('StateXChanged', listener);
+  },
+  /**
+   * Reports the size of the native read cache and its hit, miss and eviction
+   * counters. Returns a `Promise` object.
+   */
+  getCacheStats: function(
+    callback?: ?(error: ?Error, stats: ?Object) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.getCacheStats(function(error, stats) {
+        callback && callback((error && convertError(error)) || null, stats);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(stats);
+        }
+      });
+    });
+  },
+  /**
+   * Reports the call counts, key and byte counts and queue, execution and
+   * marshalling latency percentiles of each operation, the write transaction
+   * stats, the read cache stats and the pending, queued and rejected calls of
+   * each scheduler priority. Operations are only measured when metrics are
+   * enabled in the native `StateXConfig`. Returns a `Promise` object.
+   */
+  getStats: function(
+    callback?: ?(error: ?Error, stats: ?Object) => void
+  ): Promise {
+    return new Promise((resolve, reject) => {
+      StateXModule.getStats(function(error, stats) {
+        callback && callback((error && convertError(error)) || null, stats);
+        if (error) {
+          reject(convertError(error));
+        } else {
+          resolve(stats);
+        }
+      });
+    });
+  },
 };
 
 function convertError(error) {
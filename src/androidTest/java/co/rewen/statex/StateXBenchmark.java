@@ -0,0 +1,453 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static co.rewen.statex.StateXDatabaseSupplier.TABLE_STATE;
+
+/**
+ * Measures the storage hot paths against a real SQLite database: the statements run by multiGet,
+ * multiSet and multiMerge, and the JSON merge patch they use, across key counts, value sizes and
+ * merge depths.
+ * <p/>
+ * Like JMH, each case runs warm-up iterations first, then measured iterations until both a minimum
+ * count and a minimum time are reached, and reports the distribution of the iteration times. The
+ * report is a JSON object, see {@link #run()}, and two reports can be compared with
+ * {@link #compare}. The benchmark uses a database of its own, deleted once it is done, and must be
+ * run off the main thread. It is part of the instrumentation tests, see
+ * {@link StateXBenchmarkTest}, so that it stays out of the library:
+ * <pre>
+ * JSONObject report = new StateXBenchmark(InstrumentationRegistry.getTargetContext())
+ *         .setKeyCounts(100, 10000)
+ *         .run();
+ * </pre>
+ */
+public class StateXBenchmark {
+
+    private static final String DATABASE_NAME = "StateXBenchmark";
+    private static final String KEY_PREFIX = "benchmark/";
+    private static final int REPORT_VERSION = 1;
+
+    private final Context mContext;
+    private int[] mKeyCounts = {1, 100, 1000, 10000, 100000};
+    private int[] mValueSizes = {64, 1024, 16 * 1024};
+    private int[] mMergeDepths = {1, 4, 16};
+    private int mWarmupIterations = 3;
+    private int mMinIterations = 10;
+    private long mMinTimeMs = 500;
+    private long mMaxCaseBytes = 16L * 1024L * 1024L;
+    private StateXConfig mConfig = StateXConfig.builder()
+            .setMaxDatabaseSize(256L * 1024L * 1024L)
+            .build();
+
+    public StateXBenchmark(Context context) {
+        mContext = context;
+    }
+
+    public StateXBenchmark setKeyCounts(int... keyCounts) {
+        mKeyCounts = checkPositive("key count", keyCounts);
+        return this;
+    }
+
+    /**
+     * Approximate lengths of the values, which are JSON objects.
+     */
+    public StateXBenchmark setValueSizes(int... valueSizes) {
+        mValueSizes = checkPositive("value size", valueSizes);
+        return this;
+    }
+
+    /**
+     * Nesting depths of the values and patches of the merge cases.
+     */
+    public StateXBenchmark setMergeDepths(int... mergeDepths) {
+        mMergeDepths = checkPositive("merge depth", mergeDepths);
+        return this;
+    }
+
+    public StateXBenchmark setIterations(int warmupIterations, int minIterations, long minTimeMs) {
+        if (warmupIterations < 0 || minIterations < 1 || minTimeMs < 0) {
+            throw new IllegalArgumentException("Invalid iterations: " + warmupIterations + ", " +
+                    minIterations + ", " + minTimeMs + " ms");
+        }
+        mWarmupIterations = warmupIterations;
+        mMinIterations = minIterations;
+        mMinTimeMs = minTimeMs;
+        return this;
+    }
+
+    /**
+     * Cases whose key count times value size exceeds this are skipped, so that the default grid
+     * runs in reasonable time and space.
+     */
+    public StateXBenchmark setMaxCaseBytes(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Invalid maximum case size: " + bytes);
+        }
+        mMaxCaseBytes = bytes;
+        return this;
+    }
+
+    /**
+     * Configuration of the benchmark database, e.g. to measure write-ahead logging or compression.
+     * Only its database settings are used.
+     */
+    public StateXBenchmark setConfig(StateXConfig config) {
+        mConfig = config;
+        return this;
+    }
+
+    /**
+     * Runs all cases and returns the report: {version, device, config, cases}, where each case is
+     * {name, operation, keyCount, valueSize, mergeDepth, iterations, minMs, medianMs, p90Ms, maxMs,
+     * meanMs, keysPerSecond}, keysPerSecond being based on the median.
+     */
+    public JSONObject run() throws JSONException, IOException {
+        JSONArray cases = new JSONArray();
+        mContext.deleteDatabase(DATABASE_NAME);
+        StateXDatabaseSupplier supplier = new StateXDatabaseSupplier(
+                mContext,
+                DATABASE_NAME,
+                mConfig.isWriteAheadLoggingEnabled(),
+                mConfig,
+                StateXMetrics.DISABLED);
+        try {
+            SQLiteDatabase db = supplier.get();
+            StateXValueCodec codec = supplier.getValueCodec();
+            for (int keyCount : mKeyCounts) {
+                for (int valueSize : mValueSizes) {
+                    if ((long) keyCount * valueSize > mMaxCaseBytes) {
+                        continue;
+                    }
+                    String[] keys = keys(keyCount);
+                    String[] values = values(keyCount, valueSize, 1);
+                    cases.put(runMultiSet(db, codec, keys, values, valueSize));
+                    cases.put(runMultiGet(db, codec, keys, valueSize));
+                    for (int depth : mMergeDepths) {
+                        String[] targets = values(keyCount, valueSize, depth);
+                        String[] patches = patches(keyCount, depth);
+                        cases.put(runMultiMerge(db, codec, keys, targets, patches, valueSize, depth));
+                        cases.put(runJsonMerge(targets, patches, valueSize, depth));
+                    }
+                    db.delete(TABLE_STATE, null, null);
+                }
+            }
+        } finally {
+            supplier.deleteDatabase();
+            supplier.close();
+        }
+
+        JSONObject device = new JSONObject();
+        device.put("manufacturer", Build.MANUFACTURER);
+        device.put("model", Build.MODEL);
+        device.put("sdk", Build.VERSION.SDK_INT);
+        device.put("vm", System.getProperty("java.vm.name") + " " +
+                System.getProperty("java.vm.version"));
+        JSONObject config = new JSONObject();
+        config.put("writeAheadLogging", mConfig.isWriteAheadLoggingEnabled());
+        config.put("compressionThreshold", mConfig.getCompressionThreshold());
+        config.put("externalValueThreshold", mConfig.getExternalValueThreshold());
+
+        JSONObject report = new JSONObject();
+        report.put("version", REPORT_VERSION);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("device", device);
+        report.put("config", config);
+        report.put("cases", cases);
+        return report;
+    }
+
+    /**
+     * Compares two reports case by case. Returns a map from the name of each case found in both to
+     * the ratio of the current median to the baseline median, so that values above 1 are
+     * regressions.
+     */
+    public static JSONObject compare(JSONObject baseline, JSONObject current) throws JSONException {
+        JSONObject baselineMedians = new JSONObject();
+        JSONArray baselineCases = baseline.getJSONArray("cases");
+        for (int idx = 0; idx < baselineCases.length(); idx++) {
+            JSONObject benchmarkCase = baselineCases.getJSONObject(idx);
+            baselineMedians.put(
+                    benchmarkCase.getString("name"),
+                    benchmarkCase.getDouble("medianMs"));
+        }
+        JSONObject ratios = new JSONObject();
+        JSONArray currentCases = current.getJSONArray("cases");
+        for (int idx = 0; idx < currentCases.length(); idx++) {
+            JSONObject benchmarkCase = currentCases.getJSONObject(idx);
+            String name = benchmarkCase.getString("name");
+            if (baselineMedians.has(name) && baselineMedians.getDouble(name) > 0) {
+                ratios.put(name, benchmarkCase.getDouble("medianMs") / baselineMedians.getDouble(name));
+            }
+        }
+        return ratios;
+    }
+
+    private JSONObject runMultiSet(
+            final SQLiteDatabase db,
+            final StateXValueCodec codec,
+            final String[] keys,
+            final String[] values,
+            int valueSize) throws JSONException, IOException {
+        return measure("multiSet", keys.length, valueSize, 0, new Iteration() {
+            @Override
+            public void run() throws Exception {
+                insert(db, codec, keys, values);
+            }
+        });
+    }
+
+    private JSONObject runMultiGet(
+            final SQLiteDatabase db,
+            final StateXValueCodec codec,
+            final String[] keys,
+            int valueSize) throws JSONException, IOException {
+        final int[] positions = new int[keys.length];
+        for (int idx = 0; idx < positions.length; idx++) {
+            positions[idx] = idx;
+        }
+        final String[] values = new String[keys.length];
+        final long[] expirations = new long[keys.length];
+        final long[] versions = new long[keys.length];
+        return measure("multiGet", keys.length, valueSize, 0, new Iteration() {
+            @Override
+            public void run() throws Exception {
+                codec.getFiles().beginRead();
+                try {
+                    AsyncLocalStorageUtil.multiGetImpl(
+                            db,
+                            codec,
+                            keys,
+                            positions,
+                            keys.length,
+                            values,
+                            expirations,
+                            versions);
+                } finally {
+                    codec.getFiles().endRead();
+                }
+            }
+        });
+    }
+
+    private JSONObject runMultiMerge(
+            final SQLiteDatabase db,
+            final StateXValueCodec codec,
+            final String[] keys,
+            final String[] targets,
+            final String[] patches,
+            int valueSize,
+            int depth) throws JSONException, IOException {
+        insert(db, codec, keys, targets);
+        final long[] expiresAt = new long[1];
+        return measure("multiMerge", keys.length, valueSize, depth, new Iteration() {
+            @Override
+            public void run() throws Exception {
+                db.beginTransaction();
+                try {
+                    for (int idx = 0; idx < keys.length; idx++) {
+                        AsyncLocalStorageUtil.mergeImpl(
+                                db,
+                                codec,
+                                keys[idx],
+                                patches[idx],
+                                expiresAt,
+                                idx + 1);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    private JSONObject runJsonMerge(
+            final String[] targets,
+            final String[] patches,
+            int valueSize,
+            int depth) throws JSONException, IOException {
+        return measure("jsonMerge", targets.length, valueSize, depth, new Iteration() {
+            @Override
+            public void run() throws Exception {
+                for (int idx = 0; idx < targets.length; idx++) {
+                    StateXJsonMerge.apply(targets[idx], patches[idx]);
+                }
+            }
+        });
+    }
+
+    private static void insert(
+            SQLiteDatabase db,
+            StateXValueCodec codec,
+            String[] keys,
+            String[] values) throws IOException {
+        long now = System.currentTimeMillis();
+        db.beginTransaction();
+        SQLiteStatement statement = db.compileStatement(AsyncLocalStorageUtil.INSERT_ITEM_SQL);
+        try {
+            for (int idx = 0; idx < keys.length; idx++) {
+                AsyncLocalStorageUtil.insertItem(
+                        statement,
+                        codec,
+                        keys[idx],
+                        values[idx],
+                        now,
+                        0,
+                        idx + 1);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+    }
+
+    private JSONObject measure(
+            String operation,
+            int keyCount,
+            int valueSize,
+            int mergeDepth,
+            Iteration iteration) throws JSONException, IOException {
+        try {
+            for (int idx = 0; idx < mWarmupIterations; idx++) {
+                iteration.run();
+            }
+            long[] times = new long[Math.max(mMinIterations, 16)];
+            int count = 0;
+            long minTimeNanos = mMinTimeMs * 1000000L;
+            long start = System.nanoTime();
+            while (count < mMinIterations || System.nanoTime() - start < minTimeNanos) {
+                long iterationStart = System.nanoTime();
+                iteration.run();
+                if (count == times.length) {
+                    times = Arrays.copyOf(times, count * 2);
+                }
+                times[count++] = System.nanoTime() - iterationStart;
+            }
+            return summarize(operation, keyCount, valueSize, mergeDepth, times, count);
+        } catch (JSONException | IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(operation + " failed", e);
+        }
+    }
+
+    private static JSONObject summarize(
+            String operation,
+            int keyCount,
+            int valueSize,
+            int mergeDepth,
+            long[] times,
+            int count) throws JSONException {
+        Arrays.sort(times, 0, count);
+        long total = 0;
+        for (int idx = 0; idx < count; idx++) {
+            total += times[idx];
+        }
+        double medianMs = times[count / 2] / 1000000.0;
+
+        String name = operation + "/keys=" + keyCount + "/size=" + valueSize;
+        if (mergeDepth > 0) {
+            name += "/depth=" + mergeDepth;
+        }
+        JSONObject result = new JSONObject();
+        result.put("name", name);
+        result.put("operation", operation);
+        result.put("keyCount", keyCount);
+        result.put("valueSize", valueSize);
+        result.put("mergeDepth", mergeDepth);
+        result.put("iterations", count);
+        result.put("minMs", times[0] / 1000000.0);
+        result.put("medianMs", medianMs);
+        result.put("p90Ms", times[Math.min(count - 1, (int) Math.ceil(count * 0.9) - 1)] / 1000000.0);
+        result.put("maxMs", times[count - 1] / 1000000.0);
+        result.put("meanMs", total / (double) count / 1000000.0);
+        result.put("keysPerSecond", medianMs > 0 ? keyCount / medianMs * 1000 : 0);
+        return result;
+    }
+
+    private static String[] keys(int count) {
+        String[] keys = new String[count];
+        for (int idx = 0; idx < count; idx++) {
+            keys[idx] = KEY_PREFIX + idx;
+        }
+        return keys;
+    }
+
+    /**
+     * Returns JSON objects of about the given length, whose "id" is nested in depth - 1 objects.
+     */
+    private static String[] values(int count, int size, int depth) {
+        String[] values = new String[count];
+        for (int idx = 0; idx < count; idx++) {
+            StringBuilder value = new StringBuilder(size + 16 * depth);
+            for (int level = 1; level < depth; level++) {
+                value.append("{\"n").append(level).append("\":");
+            }
+            value.append("{\"id\":").append(idx).append(",\"data\":\"");
+            int padding = size - value.length() - 3 - 2 * (depth - 1);
+            for (int pad = 0; pad < padding; pad++) {
+                value.append((char) ('a' + pad % 26));
+            }
+            value.append("\"}");
+            for (int level = 1; level < depth; level++) {
+                value.append('}');
+            }
+            values[idx] = value.toString();
+        }
+        return values;
+    }
+
+    /**
+     * Returns merge patches replacing the innermost "id" of {@link #values} and adding a key.
+     */
+    private static String[] patches(int count, int depth) {
+        String[] patches = new String[count];
+        for (int idx = 0; idx < count; idx++) {
+            StringBuilder patch = new StringBuilder();
+            for (int level = 1; level < depth; level++) {
+                patch.append("{\"n").append(level).append("\":");
+            }
+            patch.append("{\"id\":").append(-idx).append(",\"merged\":true}");
+            for (int level = 1; level < depth; level++) {
+                patch.append('}');
+            }
+            patches[idx] = patch.toString();
+        }
+        return patches;
+    }
+
+    private static int[] checkPositive(String name, int[] values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("No " + name);
+        }
+        for (int value : values) {
+            if (value <= 0) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+        }
+        return values.clone();
+    }
+
+    private interface Iteration {
+        void run() throws Exception;
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Runs {@link StateXBenchmark} with its default cases and logs the report, under the
+ * "StateXBenchmark" tag, for {@link StateXBenchmark#compare}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StateXBenchmarkTest {
+
+    @Test
+    public void run() throws Exception {
+        JSONObject report = new StateXBenchmark(InstrumentationRegistry.getTargetContext()).run();
+        Log.i("StateXBenchmark", report.toString());
+    }
+}
@@ -11,28 +11,77 @@ package co.rewen.statex;
 
 import javax.annotation.Nullable;
 
+import java.io.IOException;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Comparator;
+import java.util.List;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.text.TextUtils;
+import android.database.sqlite.SQLiteStatement;
 
 import com.facebook.react.bridge.ReadableArray;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import static co.rewen.statex.StateXDatabaseSupplier.ACCESSED_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.CODEC_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.EXPIRES_COLUMN;
 import static co.rewen.statex.StateXDatabaseSupplier.KEY_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.NOT_EXPIRED_SELECTION;
+import static co.rewen.statex.StateXDatabaseSupplier.SIZE_COLUMN;
 import static co.rewen.statex.StateXDatabaseSupplier.TABLE_STATE;
 import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.VERSION_COLUMN;
 
 /**
  * Helper for database operations.
  */
 /* package */ class AsyncLocalStorageUtil {
 
+    // SQL variable number limit, defined by SQLITE_LIMIT_VARIABLE_NUMBER:
+    // https://raw.githubusercontent.com/android/platform_external_sqlite/master/dist/sqlite3.c
+  /* package */ static final int MAX_SQL_KEYS = 999;
+
+    /**
+     * Orders keys the way SQLite orders TEXT with the default BINARY collation, i.e. by the bytes
+     * of their UTF-8 encoding, which is code point order. {@link String#compareTo} compares UTF-16
+     * code units instead, which differs for characters above U+FFFF.
+     */
+  /* package */ static final Comparator<String> KEY_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            int length = Math.min(lhs.length(), rhs.length());
+            for (int idx = 0; idx < length; idx++) {
+                char lhsChar = lhs.charAt(idx);
+                char rhsChar = rhs.charAt(idx);
+                if (lhsChar != rhsChar) {
+                    if (lhsChar >= 0xD800 && rhsChar >= 0xD800) {
+                        // Move surrogates (U+D800-U+DFFF) above U+E000-U+FFFF.
+                        lhsChar += lhsChar >= 0xE000 ? -0x800 : 0x2000;
+                        rhsChar += rhsChar >= 0xE000 ? -0x800 : 0x2000;
+                    }
+                    return lhsChar - rhsChar;
+                }
+            }
+            return lhs.length() - rhs.length();
+        }
+    };
+
+    // Inserts or replaces a key, see insertItem.
+  /* package */ static final String INSERT_ITEM_SQL =
+            "INSERT OR REPLACE INTO " + TABLE_STATE +
+                    " (" + KEY_COLUMN + ", " + VALUE_COLUMN + ", " + CODEC_COLUMN + ", " +
+                    SIZE_COLUMN + ", " + ACCESSED_COLUMN + ", " + EXPIRES_COLUMN + ", " +
+                    VERSION_COLUMN + ")" +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?);";
+
+    // Selections and queries only depend on the number of keys, build them once per count. The
+    // same SQL string also lets SQLite reuse the prepared statement of its connection.
+    private static final String[] sKeySelections = new String[MAX_SQL_KEYS + 1];
+    private static final String[] sMultiGetQueries = new String[MAX_SQL_KEYS + 1];
+
     /**
      * Build the String required for an SQL select statement:
      *  WHERE key IN (?, ?, ..., ?)
@@ -40,9 +89,36 @@ import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
      */
   /* package */
     static String buildKeySelection(int selectionCount) {
-        String[] list = new String[selectionCount];
-        Arrays.fill(list, "?");
-        return KEY_COLUMN + " IN (" + TextUtils.join(", ", list) + ")";
+        String selection = selectionCount <= MAX_SQL_KEYS ? sKeySelections[selectionCount] : null;
+        if (selection == null) {
+            StringBuilder builder = new StringBuilder(KEY_COLUMN.length() + 6 + 3 * selectionCount);
+            builder.append(KEY_COLUMN).append(" IN (");
+            for (int idx = 0; idx < selectionCount; idx++) {
+                builder.append(idx == 0 ? "?" : ", ?");
+            }
+            selection = builder.append(")").toString();
+            if (selectionCount <= MAX_SQL_KEYS) {
+                // Racy but benign: Strings are immutable and every thread builds the same one.
+                sKeySelections[selectionCount] = selection;
+            }
+        }
+        return selection;
+    }
+
+    /**
+     * Build the query used by {@link #multiGetImpl}:
+     *  SELECT key, value, codec, expires, version FROM state WHERE key IN (?, ..., ?) ORDER BY key
+     */
+    private static String buildMultiGetQuery(int selectionCount) {
+        String query = sMultiGetQueries[selectionCount];
+        if (query == null) {
+            query = "SELECT " + KEY_COLUMN + ", " + VALUE_COLUMN + ", " + CODEC_COLUMN + ", " +
+                    EXPIRES_COLUMN + ", " + VERSION_COLUMN + " FROM " + TABLE_STATE +
+                    " WHERE " + buildKeySelection(selectionCount) +
+                    " ORDER BY " + KEY_COLUMN;
+            sMultiGetQueries[selectionCount] = query;
+        }
+        return query;
     }
 
     /**
@@ -59,20 +135,183 @@ import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
         return selectionArgs;
     }
 
+  /* package */
+    static String[] buildKeySelectionArgs(List<String> keys, int start, int count) {
+        String[] selectionArgs = new String[count];
+        for (int keyIndex = 0; keyIndex < count; keyIndex++) {
+            selectionArgs[keyIndex] = keys.get(start + keyIndex);
+        }
+        return selectionArgs;
+    }
+
+    /**
+     * Reads the values of keys[positions[0]], ..., keys[positions[count - 1]] into the same
+     * positions of values, leaving null for the keys that are not found or expired, and their
+     * expiration times, or 0, and versions into the same positions of expirations and versions.
+     * <p/>
+     * The keys of each chunk are sorted and the rows are read in key order (which the primary key
+     * index gives for free), so they can be matched without building a set of the keys.
+     */
+  /* package */
+    static void multiGetImpl(
+            SQLiteDatabase db,
+            StateXValueCodec codec,
+            String[] keys,
+            int[] positions,
+            int count,
+            String[] values,
+            long[] expirations,
+            long[] versions) throws IOException {
+        long now = System.currentTimeMillis();
+        String[] sortedKeys = new String[Math.min(count, MAX_SQL_KEYS)];
+        String[] sortedValues = new String[sortedKeys.length];
+        long[] sortedExpirations = new long[sortedKeys.length];
+        long[] sortedVersions = new long[sortedKeys.length];
+        for (int start = 0; start < count; start += MAX_SQL_KEYS) {
+            int chunkSize = Math.min(count - start, MAX_SQL_KEYS);
+            for (int idx = 0; idx < chunkSize; idx++) {
+                sortedKeys[idx] = keys[positions[start + idx]];
+            }
+            Arrays.sort(sortedKeys, 0, chunkSize, KEY_ORDER);
+            Arrays.fill(sortedValues, null);
+            Arrays.fill(sortedExpirations, 0);
+            Arrays.fill(sortedVersions, 0);
+
+            String[] selectionArgs = chunkSize == sortedKeys.length ?
+                    sortedKeys :
+                    Arrays.copyOf(sortedKeys, chunkSize);
+            Cursor cursor = db.rawQuery(buildMultiGetQuery(chunkSize), selectionArgs);
+            try {
+                int keyIndex = 0;
+                while (keyIndex < chunkSize && cursor.moveToNext()) {
+                    String key = cursor.getString(0);
+                    while (keyIndex < chunkSize && KEY_ORDER.compare(sortedKeys[keyIndex], key) < 0) {
+                        keyIndex++;
+                    }
+                    if (keyIndex < chunkSize && sortedKeys[keyIndex].equals(key)) {
+                        long expiresAt = cursor.isNull(3) ? 0 : cursor.getLong(3);
+                        if (expiresAt != 0 && expiresAt <= now) {
+                            // Expired keys are left for the sweeper to delete.
+                            continue;
+                        }
+                        String value = codec.decode(cursor, 1, 2);
+                        long version = cursor.getLong(4);
+                        // The same key may have been requested several times.
+                        do {
+                            sortedExpirations[keyIndex] = expiresAt;
+                            sortedVersions[keyIndex] = version;
+                            sortedValues[keyIndex++] = value;
+                        } while (keyIndex < chunkSize && sortedKeys[keyIndex].equals(key));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (int idx = 0; idx < chunkSize; idx++) {
+                int position = positions[start + idx];
+                int sortedIndex = Arrays.binarySearch(sortedKeys, 0, chunkSize, keys[position], KEY_ORDER);
+                values[position] = sortedValues[sortedIndex];
+                expirations[position] = sortedExpirations[sortedIndex];
+                versions[position] = sortedVersions[sortedIndex];
+            }
+        }
+    }
+
     /**
-     * Returns the value of the given key, or null if not found.
+     * Returns the smallest key greater than all keys starting with the prefix, in the order of
+     * {@link #KEY_ORDER}, or null if there is none (empty prefix, or only U+10FFFF characters).
+     */
+  /* package */
+    static @Nullable String prefixUpperBound(String prefix) {
+        int end = prefix.length();
+        while (end > 0) {
+            int codePoint = prefix.codePointBefore(end);
+            end -= Character.charCount(codePoint);
+            if (codePoint < Character.MAX_CODE_POINT) {
+                int next = codePoint + 1 == Character.MIN_SURROGATE ? 0xE000 : codePoint + 1;
+                return new StringBuilder(end + 2)
+                        .append(prefix, 0, end)
+                        .appendCodePoint(next)
+                        .toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Queries the given columns of the rows whose key starts with the prefix and is within
+     * [startKey, endKey), or (startKey, endKey) if startInclusive is false, in key order. This is a
+     * range scan of the primary key index. Expired keys are left out.
+     * @param limit maximum number of rows, or 0 for all
+     */
+  /* package */
+    static Cursor scanImpl(
+            SQLiteDatabase db,
+            String[] columns,
+            String prefix,
+            @Nullable String startKey,
+            boolean startInclusive,
+            @Nullable String endKey,
+            int limit) {
+        String lowerBound = prefix;
+        boolean lowerInclusive = true;
+        if (startKey != null && KEY_ORDER.compare(startKey, lowerBound) >= 0) {
+            lowerBound = startKey;
+            lowerInclusive = startInclusive;
+        }
+        String upperBound = prefixUpperBound(prefix);
+        if (endKey != null && (upperBound == null || KEY_ORDER.compare(endKey, upperBound) < 0)) {
+            upperBound = endKey;
+        }
+
+        String now = String.valueOf(System.currentTimeMillis());
+        String selection = KEY_COLUMN + (lowerInclusive ? " >= ?" : " > ?");
+        String[] selectionArgs;
+        if (upperBound != null) {
+            selection += " AND " + KEY_COLUMN + " < ?";
+            selectionArgs = new String[] {lowerBound, upperBound, now};
+        } else {
+            selectionArgs = new String[] {lowerBound, now};
+        }
+        selection += " AND " + NOT_EXPIRED_SELECTION;
+        return db.query(
+                TABLE_STATE,
+                columns,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                KEY_COLUMN,
+                limit > 0 ? String.valueOf(limit) : null);
+    }
+
+    /**
+     * Returns the value of the given key, or null if not found or expired.
      */
   /* package */
     static
     @Nullable
-    String getItemImpl(SQLiteDatabase db, String key) {
-        String[] columns = {VALUE_COLUMN};
-        String[] selectionArgs = {key};
+    String getItemImpl(SQLiteDatabase db, StateXValueCodec codec, String key) throws IOException {
+        return getItemImpl(db, codec, key, null);
+    }
+
+    /**
+     * Returns the value of the given key, or null if not found or expired, and stores its expiration
+     * time, or 0, into expiresAt[0] if given.
+     */
+    private static @Nullable String getItemImpl(
+            SQLiteDatabase db,
+            StateXValueCodec codec,
+            String key,
+            @Nullable long[] expiresAt) throws IOException {
+        String[] columns = {VALUE_COLUMN, CODEC_COLUMN, EXPIRES_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
 
         Cursor cursor = db.query(
                 TABLE_STATE,
                 columns,
-                KEY_COLUMN + "=?",
+                KEY_COLUMN + "=? AND " + NOT_EXPIRED_SELECTION,
                 selectionArgs,
                 null,
                 null,
@@ -82,21 +321,60 @@ import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
             if (!cursor.moveToFirst()) {
                 return null;
             } else {
-                return cursor.getString(0);
+                if (expiresAt != null) {
+                    expiresAt[0] = cursor.isNull(2) ? 0 : cursor.getLong(2);
+                }
+                return codec.decode(cursor, 0, 1);
             }
         } finally {
             cursor.close();
         }
     }
 
+    /**
+     * Returns the version of the value of the given key, or 0 if not found or expired.
+     */
+  /* package */
+    static long getVersionImpl(SQLiteDatabase db, String key) {
+        String[] columns = {VERSION_COLUMN};
+        String[] selectionArgs = {key, String.valueOf(System.currentTimeMillis())};
+        Cursor cursor = db.query(
+                TABLE_STATE,
+                columns,
+                KEY_COLUMN + "=? AND " + NOT_EXPIRED_SELECTION,
+                selectionArgs,
+                null,
+                null,
+                null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
     /**
      * Sets the value for the key given, returns true if successful, false otherwise.
+     * @param expiresAt expiration time of the key, or 0 if it doesn't expire
+     * @param version version of the value
      */
   /* package */
-    static boolean setItemImpl(SQLiteDatabase db, String key, String value) {
+    static boolean setItemImpl(
+            SQLiteDatabase db,
+            StateXValueCodec codec,
+            String key,
+            String value,
+            long expiresAt,
+            long version) throws IOException {
         ContentValues contentValues = new ContentValues();
         contentValues.put(KEY_COLUMN, key);
-        contentValues.put(VALUE_COLUMN, value);
+        long size = StateXValueCodec.utf8Length(key) + codec.put(contentValues, value);
+        contentValues.put(SIZE_COLUMN, size);
+        contentValues.put(ACCESSED_COLUMN, System.currentTimeMillis());
+        if (expiresAt != 0) {
+            contentValues.put(EXPIRES_COLUMN, expiresAt);
+        }
+        contentValues.put(VERSION_COLUMN, version);
 
         long inserted = db.insertWithOnConflict(
                 TABLE_STATE,
@@ -108,48 +386,53 @@ import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
     }
 
     /**
-     * Does the actual merge of the (key, value) pair with the value stored in the database.
-     * NB: This assumes that a database lock is already in effect!
-     * @return the errorCode of the operation
+     * Sets the value for the key given with a statement compiled from {@link #INSERT_ITEM_SQL},
+     * which can be reused for all keys of a transaction.
+     * @param now time of the write, stored as the last access
+     * @param expiresAt expiration time of the key, or 0 if it doesn't expire
+     * @param version version of the value
      */
   /* package */
-    static boolean mergeImpl(SQLiteDatabase db, String key, String value)
-            throws JSONException {
-        String oldValue = getItemImpl(db, key);
-        String newValue;
-
-        if (oldValue == null) {
-            newValue = value;
-        } else {
-            JSONObject oldJSON = new JSONObject(oldValue);
-            JSONObject newJSON = new JSONObject(value);
-            deepMergeInto(oldJSON, newJSON);
-            newValue = oldJSON.toString();
+    static void insertItem(
+            SQLiteStatement statement,
+            StateXValueCodec codec,
+            String key,
+            String value,
+            long now,
+            long expiresAt,
+            long version) throws IOException {
+        statement.clearBindings();
+        statement.bindString(1, key);
+        long size = StateXValueCodec.utf8Length(key) + codec.bind(statement, 2, 3, value);
+        statement.bindLong(4, size);
+        statement.bindLong(5, now);
+        if (expiresAt != 0) {
+            statement.bindLong(6, expiresAt);
         }
-
-        return setItemImpl(db, key, newValue);
+        statement.bindLong(7, version);
+        statement.execute();
     }
 
     /**
-     * Merges two {@link JSONObject}s. The newJSON object will be merged with the oldJSON object by
-     * either overriding its values, or merging them (if the values of the same key in both objects
-     * are of type {@link JSONObject}). oldJSON will contain the result of this merge.
+     * Does the actual merge of the (key, value) pair with the value stored in the database, as a
+     * JSON merge patch (RFC 7396), see {@link StateXJsonMerge}.
+     * The merged value keeps the expiration time of the stored value, an expired value is
+     * considered missing.
+     * NB: This assumes that a database lock is already in effect!
+     * @param expiresAt receives the expiration time of the merged value, or 0, into expiresAt[0]
+     * @param version version of the merged value
+     * @return the merged value that was stored, or null if it couldn't be stored
      */
-    private static void deepMergeInto(JSONObject oldJSON, JSONObject newJSON)
-            throws JSONException {
-        Iterator<?> keys = newJSON.keys();
-        while (keys.hasNext()) {
-            String key = (String) keys.next();
-
-            JSONObject newJSONObject = newJSON.optJSONObject(key);
-            JSONObject oldJSONObject = oldJSON.optJSONObject(key);
-            if (newJSONObject != null && oldJSONObject != null) {
-                deepMergeInto(oldJSONObject, newJSONObject);
-                oldJSON.put(key, oldJSONObject);
-            } else {
-                oldJSON.put(key, newJSON.get(key));
-            }
-        }
+  /* package */
+    static @Nullable String mergeImpl(
+            SQLiteDatabase db,
+            StateXValueCodec codec,
+            String key,
+            String value,
+            long[] expiresAt,
+            long version) throws JSONException, IOException {
+        expiresAt[0] = 0;
+        String newValue = StateXJsonMerge.apply(getItemImpl(db, codec, key, expiresAt), value);
+        return setItemImpl(db, codec, key, newValue, expiresAt[0], version) ? newValue : null;
     }
 }
-
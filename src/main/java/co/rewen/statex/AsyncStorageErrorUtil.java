@@ -43,5 +43,13 @@ public class AsyncStorageErrorUtil {
         return getError(key, "Database Error");
     }
 
+    /* package */ static WritableMap getStorageFullError(@Nullable String key) {
+        return getError(key, "Storage Full");
+    }
+
+    /* package */ static WritableMap getBusyError(@Nullable String key) {
+        return getError(key, "Too Many Pending Calls");
+    }
+
 
 }
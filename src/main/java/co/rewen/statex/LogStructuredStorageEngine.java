@@ -0,0 +1,1096 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.content.Context;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import static co.rewen.statex.AsyncLocalStorageUtil.KEY_ORDER;
+
+/**
+ * {@link StorageEngine} appending every write to a log, in the manner of Bitcask.
+ * <p/>
+ * The log is a sequence of segment files, written and read through memory mapping. Each record
+ * holds a key, its value and a sequence number, which is also the version of the value. An
+ * in-memory hash table maps every key to the record of its current value, so a read is a lookup
+ * and a decode from the mapped segment. Writes are appended to the active segment and a
+ * transaction is committed by appending a commit record and syncing the segment, so a write costs
+ * no page or journal update. The writes of a transaction are staged and only go into the index once
+ * its commit record is synced, so reads on other threads never see uncommitted values, nor records
+ * that a rollback zeroes.
+ * <p/>
+ * Once the active segment exceeds {@link #SEGMENT_SIZE} it is sealed and a new one is started. When
+ * sealed segments hold more unused records than used ones, a background thread copies the used
+ * records to a new compacted segment and swaps it in. Its header lists the segments it replaces, so
+ * once it is renamed in place they are ignored, whether they are deleted yet or not.
+ * <p/>
+ * On open, segments are replayed: the records of committed transactions are kept, the one with the
+ * highest sequence number winning for each key, and everything after the first invalid record of a
+ * segment is ignored. Segments are cut after their last committed record and those without any are
+ * deleted. The last segment becomes the active one again if it has room left, so that segments
+ * don't pile up with every open.
+ */
+/* package */ class LogStructuredStorageEngine implements StorageEngine {
+
+    /* package */ static final String DIRECTORY_NAME = "StateXLog";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int SEGMENT_MAGIC = 0x5374584c;
+    private static final int FORMAT_VERSION = 1;
+    private static final int FLAG_COMPACTED = 1;
+    // Magic, version, flags and number of replaced segments, followed by their ids.
+    private static final int SEGMENT_HEADER_SIZE = 16;
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    // Unused bytes in sealed segments from which they are compacted, if they exceed the used bytes.
+    private static final long MIN_COMPACTION_GARBAGE = 1024 * 1024;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final byte TYPE_CLEAR = 3;
+    private static final byte TYPE_COMMIT = 4;
+    // CRC32 of the rest of the record, type, sequence number, expiration time, key length and value
+    // length, followed by the key and the value.
+    private static final int RECORD_HEADER_SIZE = 29;
+    private static final int COPY_CHUNK_SIZE = 8192;
+
+    private static class Segment {
+        private final long mId;
+        private final File mFile;
+        // Replaced by a larger mapping when the active segment grows, read without locking.
+        private volatile ByteBuffer mBuffer;
+        // End of the valid records.
+        private int mEnd;
+        // Size of the records the index points to.
+        private long mLiveBytes;
+        // Only open for the active segment.
+        private @Nullable RandomAccessFile mWritableFile;
+
+        Segment(long id, File file, ByteBuffer buffer) {
+            mId = id;
+            mFile = file;
+            mBuffer = buffer;
+        }
+    }
+
+    private static class Entry {
+        private final Segment mSegment;
+        private final int mOffset;
+        private final int mSize;
+        private final int mKeyLength;
+        private final int mValueLength;
+        private final long mSeq;
+        private final long mExpiresAt;
+        // Only for the records replayed on open.
+        private final boolean mDeleted;
+
+        Entry(
+                Segment segment,
+                int offset,
+                int keyLength,
+                int valueLength,
+                long seq,
+                long expiresAt,
+                boolean deleted) {
+            mSegment = segment;
+            mOffset = offset;
+            mSize = RECORD_HEADER_SIZE + keyLength + valueLength;
+            mKeyLength = keyLength;
+            mValueLength = valueLength;
+            mSeq = seq;
+            mExpiresAt = expiresAt;
+            mDeleted = deleted;
+        }
+
+        Entry movedTo(Segment segment, int offset) {
+            return new Entry(segment, offset, mKeyLength, mValueLength, mSeq, mExpiresAt, false);
+        }
+
+        boolean isExpired(long now) {
+            return mExpiresAt != 0 && mExpiresAt <= now;
+        }
+
+        String readValue() throws IOException {
+            ByteBuffer buffer = mSegment.mBuffer.duplicate();
+            int start = mOffset + RECORD_HEADER_SIZE + mKeyLength;
+            buffer.limit(start + mValueLength);
+            buffer.position(start);
+            return UTF_8.newDecoder().decode(buffer).toString();
+        }
+    }
+
+    private final Context mContext;
+    private final String mDirectoryName;
+    private final ConcurrentHashMap<String, Entry> mIndex = new ConcurrentHashMap<>();
+    private volatile boolean mOpen;
+    private final AtomicBoolean mCompactionPending = new AtomicBoolean();
+    private @Nullable ExecutorService mCompactor;
+
+    // Held by transactions and while compacted segments are swapped in. The fields below are
+    // guarded by it.
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final ArrayList<Segment> mSealedSegments = new ArrayList<>();
+    private @Nullable Segment mActiveSegment;
+    private @Nullable ByteBuffer mWriteBuffer;
+    private long mNextSegmentId;
+    private long mLastSeq;
+    private int mTransactionStart;
+    private boolean mTransactionSuccessful;
+    // Entries written by the transaction, null for removed keys, put in the index once committed.
+    private final HashMap<String, Entry> mStaged = new HashMap<>();
+    // Whether the transaction cleared the index, before the staged entries.
+    private boolean mStagedClear;
+
+    /**
+     * @param directoryName name of the directory of the segments, see {@link #DIRECTORY_NAME}
+     */
+    /* package */ LogStructuredStorageEngine(Context context, String directoryName) {
+        mContext = context;
+        mDirectoryName = directoryName;
+    }
+
+    @Override
+    public boolean open() {
+        if (mOpen) {
+            return true;
+        }
+        mLock.lock();
+        try {
+            if (!mOpen) {
+                recover();
+                mOpen = true;
+            }
+            return true;
+        } catch (IOException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            closeSegments();
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the compactor, letting a running compaction give up. The mappings of the segments are
+     * released once readers no longer use them.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (mCompactor != null) {
+                mCompactor.shutdown();
+                mCompactor = null;
+            }
+        }
+        mLock.lock();
+        try {
+            if (mActiveSegment != null) {
+                closeActiveFile();
+            }
+        } catch (IOException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+        } finally {
+            closeSegments();
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean delete() {
+        mLock.lock();
+        try {
+            closeSegments();
+            boolean deleted = true;
+            File[] files = getDirectory().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    deleted &= file.delete() || !file.exists();
+                }
+            }
+            return deleted;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void multiGet(
+            String[] keys,
+            int[] positions,
+            int count,
+            String[] values,
+            long[] expirations,
+            long[] versions) throws IOException {
+        long now = System.currentTimeMillis();
+        for (int idx = 0; idx < count; idx++) {
+            int position = positions[idx];
+            Entry entry = getEntry(keys[position]);
+            if (entry != null && !entry.isExpired(now)) {
+                values[position] = entry.readValue();
+                expirations[position] = entry.mExpiresAt;
+                versions[position] = entry.mSeq;
+            }
+        }
+    }
+
+    /**
+     * Matches the keys of the index against the range, which is linear in the number of keys. With
+     * a limit, only the first keys are kept and sorted.
+     */
+    @Override
+    public Scan scan(
+            String prefix,
+            @Nullable String startKey,
+            boolean startInclusive,
+            @Nullable String endKey,
+            int limit,
+            boolean includeValues) {
+        long now = System.currentTimeMillis();
+        final HashMap<String, Entry> matches = new HashMap<>();
+        PriorityQueue<String> firstKeys = limit > 0 ?
+                new PriorityQueue<String>(limit + 1, Collections.reverseOrder(KEY_ORDER)) :
+                null;
+        for (Map.Entry<String, Entry> indexEntry : getEntries().entrySet()) {
+            String key = indexEntry.getKey();
+            if (!key.startsWith(prefix) || indexEntry.getValue().isExpired(now)) {
+                continue;
+            }
+            if (startKey != null) {
+                int order = KEY_ORDER.compare(key, startKey);
+                if (order < 0 || (order == 0 && !startInclusive)) {
+                    continue;
+                }
+            }
+            if (endKey != null && KEY_ORDER.compare(key, endKey) >= 0) {
+                continue;
+            }
+            matches.put(key, indexEntry.getValue());
+            if (firstKeys != null) {
+                firstKeys.add(key);
+                if (firstKeys.size() > limit) {
+                    matches.remove(firstKeys.poll());
+                }
+            }
+        }
+        final ArrayList<String> keys = new ArrayList<>(matches.keySet());
+        Collections.sort(keys, KEY_ORDER);
+        return new Scan() {
+            private int mPosition = -1;
+
+            @Override
+            public boolean moveToNext() {
+                return ++mPosition < keys.size();
+            }
+
+            @Override
+            public String getKey() {
+                return keys.get(mPosition);
+            }
+
+            @Override
+            public String getValue() throws IOException {
+                return matches.get(keys.get(mPosition)).readValue();
+            }
+
+            @Override
+            public long getExpiresAt() {
+                return matches.get(keys.get(mPosition)).mExpiresAt;
+            }
+
+            @Override
+            public long getVersion() {
+                return matches.get(keys.get(mPosition)).mSeq;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Override
+    public void beginTransaction() throws IOException {
+        mLock.lock();
+        try {
+            if (!mOpen) {
+                throw new IOException("Storage is not open");
+            }
+            if (getActiveSegment().mEnd >= SEGMENT_SIZE) {
+                sealActiveSegment();
+            }
+        } catch (IOException e) {
+            mLock.unlock();
+            throw e;
+        }
+        mTransactionStart = getActiveSegment().mEnd;
+        mTransactionSuccessful = false;
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        mTransactionSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() throws IOException {
+        boolean compact = false;
+        try {
+            Segment segment = getActiveSegment();
+            if (segment.mEnd == mTransactionStart) {
+                return;
+            }
+            if (!mTransactionSuccessful) {
+                rollback();
+                return;
+            }
+            try {
+                append(TYPE_COMMIT, 0, EMPTY, null);
+                ((MappedByteBuffer) segment.mBuffer).force();
+            } catch (IOException e) {
+                rollback();
+                throw e;
+            }
+            publish();
+            compact = shouldCompact();
+        } finally {
+            mStaged.clear();
+            mStagedClear = false;
+            mLock.unlock();
+        }
+        if (compact) {
+            scheduleCompaction();
+        }
+    }
+
+    @Override
+    public long set(String key, String value, long expiresAt) throws IOException {
+        Entry entry = append(TYPE_PUT, expiresAt, key.getBytes(UTF_8), value.getBytes(UTF_8));
+        mStaged.put(key, entry);
+        return entry.mSeq;
+    }
+
+    @Override
+    public void remove(List<String> keys) throws IOException {
+        for (String key : keys) {
+            if (getEntry(key) != null) {
+                append(TYPE_DELETE, 0, key.getBytes(UTF_8), null);
+                mStaged.put(key, null);
+            }
+        }
+    }
+
+    @Override
+    public @Nullable String merge(String key, String value, long[] expiresAt, long[] version)
+            throws JSONException, IOException {
+        Entry entry = getEntry(key);
+        String storedValue = null;
+        expiresAt[0] = 0;
+        if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+            storedValue = entry.readValue();
+            expiresAt[0] = entry.mExpiresAt;
+        }
+        String newValue = StateXJsonMerge.apply(storedValue, value);
+        version[0] = set(key, newValue, expiresAt[0]);
+        return newValue;
+    }
+
+    @Override
+    public long getVersion(String key) {
+        Entry entry = getEntry(key);
+        return entry != null && !entry.isExpired(System.currentTimeMillis()) ? entry.mSeq : 0;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        append(TYPE_CLEAR, 0, EMPTY, null);
+        mStaged.clear();
+        mStagedClear = true;
+    }
+
+    @Override
+    public void removeExpired(long now, int limit, List<String> removed) throws IOException {
+        int start = removed.size();
+        for (Map.Entry<String, Entry> indexEntry : getEntries().entrySet()) {
+            if (removed.size() - start >= limit) {
+                break;
+            }
+            if (indexEntry.getValue().isExpired(now)) {
+                removed.add(indexEntry.getKey());
+            }
+        }
+        remove(removed.subList(start, removed.size()));
+    }
+
+    @Override
+    public boolean isEvictionEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean recordAccess(String key, long time) {
+        return false;
+    }
+
+    @Override
+    public boolean evict(boolean full, List<String> evicted) {
+        return false;
+    }
+
+    /**
+     * Unused records are collected by compaction, in the background.
+     */
+    @Override
+    public boolean mayHaveGarbage() {
+        return false;
+    }
+
+    @Override
+    public void collectGarbage() {
+    }
+
+    /**
+     * Appends a record to the active segment, growing it if needed.
+     */
+    private Entry append(byte type, long expiresAt, byte[] key, @Nullable byte[] value)
+            throws IOException {
+        Segment segment = getActiveSegment();
+        int valueLength = value != null ? value.length : 0;
+        long end = (long) segment.mEnd + RECORD_HEADER_SIZE + key.length + valueLength;
+        if (end > segment.mBuffer.capacity()) {
+            growActiveSegment(end);
+        }
+        long seq = ++mLastSeq;
+        ByteBuffer buffer = getWriteBuffer();
+        buffer.position(segment.mEnd);
+        buffer.put(recordHeader(type, seq, expiresAt, key, value));
+        buffer.put(key);
+        if (value != null) {
+            buffer.put(value);
+        }
+        Entry entry = new Entry(
+                segment,
+                segment.mEnd,
+                key.length,
+                valueLength,
+                seq,
+                expiresAt,
+                type == TYPE_DELETE);
+        segment.mEnd = (int) end;
+        return entry;
+    }
+
+    /**
+     * Returns the header of a record, with the checksum of the rest of the record.
+     */
+    private static byte[] recordHeader(
+            byte type,
+            long seq,
+            long expiresAt,
+            byte[] key,
+            @Nullable byte[] value) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        header.putInt(0);
+        header.put(type);
+        header.putLong(seq);
+        header.putLong(expiresAt);
+        header.putInt(key.length);
+        header.putInt(value != null ? value.length : 0);
+        CRC32 checksum = new CRC32();
+        checksum.update(header.array(), 4, RECORD_HEADER_SIZE - 4);
+        checksum.update(key, 0, key.length);
+        if (value != null) {
+            checksum.update(value, 0, value.length);
+        }
+        header.putInt(0, (int) checksum.getValue());
+        return header.array();
+    }
+
+    /**
+     * Returns the entry of the key, as written by the transaction when called in it, on its thread.
+     */
+    private @Nullable Entry getEntry(String key) {
+        if (mLock.isHeldByCurrentThread()) {
+            if (mStaged.containsKey(key)) {
+                return mStaged.get(key);
+            }
+            if (mStagedClear) {
+                return null;
+            }
+        }
+        return mIndex.get(key);
+    }
+
+    /**
+     * Returns the entries of all keys, as written by the transaction when called in it, on its
+     * thread.
+     */
+    private Map<String, Entry> getEntries() {
+        if (!mLock.isHeldByCurrentThread() || (mStaged.isEmpty() && !mStagedClear)) {
+            return mIndex;
+        }
+        HashMap<String, Entry> entries = mStagedClear ?
+                new HashMap<String, Entry>() :
+                new HashMap<String, Entry>(mIndex);
+        for (Map.Entry<String, Entry> staged : mStaged.entrySet()) {
+            if (staged.getValue() != null) {
+                entries.put(staged.getKey(), staged.getValue());
+            } else {
+                entries.remove(staged.getKey());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Puts the entries of the committed transaction in the index, where other threads see them.
+     */
+    private void publish() {
+        if (mStagedClear) {
+            mIndex.clear();
+            for (Segment segment : mSealedSegments) {
+                segment.mLiveBytes = 0;
+            }
+            getActiveSegment().mLiveBytes = 0;
+        }
+        for (Map.Entry<String, Entry> staged : mStaged.entrySet()) {
+            Entry entry = staged.getValue();
+            Entry previous = entry != null ?
+                    mIndex.put(staged.getKey(), entry) :
+                    mIndex.remove(staged.getKey());
+            if (previous != null) {
+                previous.mSegment.mLiveBytes -= previous.mSize;
+            }
+            if (entry != null) {
+                entry.mSegment.mLiveBytes += entry.mSize;
+            }
+        }
+    }
+
+    private void rollback() {
+        Segment segment = getActiveSegment();
+        // Zero the records so that they are never replayed, whatever is written after them. None of
+        // them was published, so no reader can be decoding them.
+        ByteBuffer buffer = getWriteBuffer();
+        byte[] zeros = new byte[Math.min(COPY_CHUNK_SIZE, segment.mEnd - mTransactionStart)];
+        buffer.position(mTransactionStart);
+        while (buffer.position() < segment.mEnd) {
+            buffer.put(zeros, 0, Math.min(zeros.length, segment.mEnd - buffer.position()));
+        }
+        segment.mEnd = mTransactionStart;
+    }
+
+    private void recover() throws IOException {
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        ArrayList<Segment> segments = new ArrayList<>();
+        HashSet<Long> replacedIds = new HashSet<>();
+        HashSet<Long> compactedIds = new HashSet<>();
+        long maxId = 0;
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                File file = new File(directory, name);
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // Left by an interrupted compaction.
+                    deleteFile(file);
+                    continue;
+                }
+                if (!name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                maxId = Math.max(maxId, id);
+                Segment segment = new Segment(id, file, mapReadOnly(file));
+                ByteBuffer buffer = segment.mBuffer;
+                if (buffer.capacity() < SEGMENT_HEADER_SIZE ||
+                        buffer.getInt(0) != SEGMENT_MAGIC ||
+                        buffer.getInt(4) != FORMAT_VERSION) {
+                    // Created right before a crash, nothing was committed to it.
+                    deleteFile(file);
+                    continue;
+                }
+                int replacedCount = buffer.getInt(12);
+                segment.mEnd = SEGMENT_HEADER_SIZE + 8 * replacedCount;
+                for (int idx = 0; idx < replacedCount; idx++) {
+                    replacedIds.add(buffer.getLong(SEGMENT_HEADER_SIZE + 8 * idx));
+                }
+                if ((buffer.getInt(8) & FLAG_COMPACTED) != 0) {
+                    compactedIds.add(id);
+                }
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+            }
+        });
+
+        HashMap<String, Entry> latest = new HashMap<>();
+        long clearSeq = 0;
+        for (Segment segment : segments) {
+            if (replacedIds.contains(segment.mId)) {
+                deleteFile(segment.mFile);
+                continue;
+            }
+            clearSeq = Math.max(
+                    clearSeq,
+                    replay(segment, compactedIds.contains(segment.mId), latest));
+            if (segment.mEnd == SEGMENT_HEADER_SIZE) {
+                // Nothing was committed to it, e.g. the active segment of a run without writes.
+                deleteFile(segment.mFile);
+                continue;
+            }
+            if (segment.mEnd < segment.mBuffer.capacity()) {
+                truncate(segment);
+            }
+            mSealedSegments.add(segment);
+        }
+        for (Map.Entry<String, Entry> replayed : latest.entrySet()) {
+            Entry entry = replayed.getValue();
+            if (!entry.mDeleted && entry.mSeq > clearSeq) {
+                mIndex.put(replayed.getKey(), entry);
+                entry.mSegment.mLiveBytes += entry.mSize;
+            }
+        }
+        mNextSegmentId = maxId + 1;
+        Segment last = mSealedSegments.isEmpty() ?
+                null :
+                mSealedSegments.get(mSealedSegments.size() - 1);
+        if (last != null && !compactedIds.contains(last.mId) && last.mEnd < SEGMENT_SIZE) {
+            mSealedSegments.remove(last);
+            resumeActiveSegment(last);
+        } else {
+            startActiveSegment();
+        }
+    }
+
+    /**
+     * Reads the valid records of a segment into latest, keeping the record with the highest
+     * sequence number of each key. Records are only kept once a commit record follows them, unless
+     * the segment is the result of a compaction. The end of the segment is set after the last
+     * committed record.
+     * @return the sequence number of the last committed clear record, or 0
+     */
+    private long replay(Segment segment, boolean compacted, HashMap<String, Entry> latest)
+            throws IOException {
+        ByteBuffer buffer = segment.mBuffer;
+        ArrayList<String> pendingKeys = new ArrayList<>();
+        ArrayList<Entry> pendingEntries = new ArrayList<>();
+        long pendingClearSeq = 0;
+        long clearSeq = 0;
+        int offset = segment.mEnd;
+        int committedEnd = offset;
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            byte type = buffer.get(offset + 4);
+            if (type < TYPE_PUT || type > TYPE_COMMIT) {
+                break;
+            }
+            long seq = buffer.getLong(offset + 5);
+            long expiresAt = buffer.getLong(offset + 13);
+            int keyLength = buffer.getInt(offset + 21);
+            int valueLength = buffer.getInt(offset + 25);
+            long end = (long) offset + RECORD_HEADER_SIZE + keyLength + valueLength;
+            if (keyLength < 0 || valueLength < 0 || end > buffer.capacity() ||
+                    checksum(buffer, offset + 4, (int) end - offset - 4) != buffer.getInt(offset)) {
+                break;
+            }
+            mLastSeq = Math.max(mLastSeq, seq);
+            if (type == TYPE_PUT || type == TYPE_DELETE) {
+                byte[] key = new byte[keyLength];
+                ByteBuffer keyBuffer = buffer.duplicate();
+                keyBuffer.position(offset + RECORD_HEADER_SIZE);
+                keyBuffer.get(key);
+                pendingKeys.add(new String(key, UTF_8));
+                pendingEntries.add(new Entry(
+                        segment,
+                        offset,
+                        keyLength,
+                        valueLength,
+                        seq,
+                        expiresAt,
+                        type == TYPE_DELETE));
+            } else if (type == TYPE_CLEAR) {
+                pendingClearSeq = seq;
+            }
+            offset = (int) end;
+
+            if (type == TYPE_COMMIT || compacted) {
+                for (int idx = 0; idx < pendingKeys.size(); idx++) {
+                    Entry entry = pendingEntries.get(idx);
+                    Entry previous = latest.get(pendingKeys.get(idx));
+                    if (previous == null || previous.mSeq < entry.mSeq) {
+                        latest.put(pendingKeys.get(idx), entry);
+                    }
+                }
+                clearSeq = Math.max(clearSeq, pendingClearSeq);
+                pendingKeys.clear();
+                pendingEntries.clear();
+                pendingClearSeq = 0;
+                committedEnd = offset;
+            }
+        }
+        segment.mEnd = committedEnd;
+        return clearSeq;
+    }
+
+    /**
+     * Cuts the file of a replayed segment at its end, dropping the records of a transaction that
+     * never committed and the unused space of a segment that was active.
+     */
+    private static void truncate(Segment segment) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(segment.mFile, "rw");
+        try {
+            output.setLength(segment.mEnd);
+        } finally {
+            output.close();
+        }
+        segment.mBuffer = mapReadOnly(segment.mFile);
+    }
+
+    private boolean shouldCompact() {
+        long size = 0;
+        long liveBytes = 0;
+        for (Segment segment : mSealedSegments) {
+            size += segment.mEnd;
+            liveBytes += segment.mLiveBytes;
+        }
+        long garbage = size - liveBytes;
+        return garbage >= MIN_COMPACTION_GARBAGE && garbage >= liveBytes;
+    }
+
+    private synchronized void scheduleCompaction() {
+        if (!mCompactionPending.compareAndSet(false, true)) {
+            return;
+        }
+        if (mCompactor == null) {
+            mCompactor = Executors.newSingleThreadExecutor(
+                    new StateXThreadFactory("StateXLogCompactor"));
+        }
+        mCompactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                } finally {
+                    mCompactionPending.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Copies the records the index points to in sealed segments to a new segment, which replaces
+     * them. Records are copied without blocking transactions, then the index is updated, for the
+     * keys that weren't written in between, while holding the lock.
+     */
+    private void compact() throws IOException {
+        ArrayList<Segment> victims;
+        long id;
+        mLock.lock();
+        try {
+            if (!mOpen || !shouldCompact()) {
+                return;
+            }
+            victims = new ArrayList<>(mSealedSegments);
+            id = mNextSegmentId++;
+        } finally {
+            mLock.unlock();
+        }
+        HashSet<Segment> victimSet = new HashSet<>(victims);
+
+        File directory = getDirectory();
+        File tempFile = new File(directory, id + SEGMENT_SUFFIX + TEMP_SUFFIX);
+        File file = new File(directory, id + SEGMENT_SUFFIX);
+        RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+        boolean swapped = false;
+        try {
+            output.setLength(0);
+            FileChannel channel = output.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE + 8 * victims.size());
+            header.putInt(SEGMENT_MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(FLAG_COMPACTED);
+            header.putInt(victims.size());
+            for (Segment victim : victims) {
+                header.putLong(victim.mId);
+            }
+            header.flip();
+            writeFully(channel, header);
+
+            ArrayList<String> keys = new ArrayList<>();
+            ArrayList<Entry> sources = new ArrayList<>();
+            ArrayList<Integer> offsets = new ArrayList<>();
+            copyLiveRecords(channel, victimSet, keys, sources, offsets);
+
+            mLock.lock();
+            try {
+                if (!mOpen) {
+                    return;
+                }
+                // The records of the highest sequence numbers may be gone with the victims, keep
+                // the last one so that sequence numbers, the versions of values, never go back on
+                // replay.
+                writeFully(
+                        channel,
+                        ByteBuffer.wrap(recordHeader(TYPE_COMMIT, mLastSeq, 0, EMPTY, null)));
+                channel.force(true);
+                output.close();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile);
+                }
+                Segment compacted = new Segment(id, file, mapReadOnly(file));
+                compacted.mEnd = compacted.mBuffer.capacity();
+                for (int idx = 0; idx < keys.size(); idx++) {
+                    String key = keys.get(idx);
+                    Entry source = sources.get(idx);
+                    if (mIndex.get(key) == source) {
+                        Entry moved = source.movedTo(compacted, offsets.get(idx));
+                        mIndex.put(key, moved);
+                        compacted.mLiveBytes += moved.mSize;
+                    }
+                }
+                mSealedSegments.removeAll(victims);
+                mSealedSegments.add(compacted);
+                swapped = true;
+                // Readers may still use the mappings of the victims, which outlive their files.
+                for (Segment victim : victims) {
+                    deleteFile(victim.mFile);
+                }
+            } finally {
+                mLock.unlock();
+            }
+        } finally {
+            if (!swapped) {
+                output.close();
+                deleteFile(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Appends the records of the entries of the index that are in the given segments to the
+     * channel. Transactions only publish entries of the active segment, so none are added to the
+     * segments meanwhile.
+     */
+    private void copyLiveRecords(
+            FileChannel channel,
+            HashSet<Segment> segments,
+            ArrayList<String> keys,
+            ArrayList<Entry> sources,
+            ArrayList<Integer> offsets) throws IOException {
+        for (Map.Entry<String, Entry> indexEntry : mIndex.entrySet()) {
+            Entry entry = indexEntry.getValue();
+            if (!segments.contains(entry.mSegment)) {
+                continue;
+            }
+            ByteBuffer record = entry.mSegment.mBuffer.duplicate();
+            record.limit(entry.mOffset + entry.mSize);
+            record.position(entry.mOffset);
+            offsets.add((int) channel.position());
+            writeFully(channel, record);
+            keys.add(indexEntry.getKey());
+            sources.add(entry);
+        }
+    }
+
+    private void startActiveSegment() throws IOException {
+        long id = mNextSegmentId++;
+        File file = new File(getDirectory(), id + SEGMENT_SUFFIX);
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            output.setLength(SEGMENT_SIZE);
+            buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        ByteBuffer header = buffer.duplicate();
+        header.putInt(SEGMENT_MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putInt(0);
+        header.putInt(0);
+        Segment segment = new Segment(id, file, buffer);
+        segment.mEnd = SEGMENT_HEADER_SIZE;
+        segment.mWritableFile = output;
+        mActiveSegment = segment;
+        mWriteBuffer = buffer.duplicate();
+    }
+
+    /**
+     * Makes a replayed segment with room left the active segment again, rather than starting a new
+     * one on every open.
+     */
+    private void resumeActiveSegment(Segment segment) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(segment.mFile, "rw");
+        MappedByteBuffer buffer;
+        try {
+            // The file was cut at the end of the records, what is appended past it reads as zeros.
+            output.setLength(SEGMENT_SIZE);
+            buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } catch (IOException e) {
+            output.close();
+            throw e;
+        }
+        segment.mBuffer = buffer;
+        segment.mWritableFile = output;
+        mActiveSegment = segment;
+        mWriteBuffer = buffer.duplicate();
+    }
+
+    private void sealActiveSegment() throws IOException {
+        closeActiveFile();
+        mSealedSegments.add(getActiveSegment());
+        startActiveSegment();
+    }
+
+    /**
+     * Cuts the file of the active segment at the end of its records, then closes it.
+     */
+    private void closeActiveFile() throws IOException {
+        Segment segment = getActiveSegment();
+        RandomAccessFile output = segment.mWritableFile;
+        if (output != null) {
+            segment.mWritableFile = null;
+            try {
+                // Reads stay within the records, past the end of the file they would fault.
+                output.setLength(segment.mEnd);
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    private void growActiveSegment(long minCapacity) throws IOException {
+        Segment segment = getActiveSegment();
+        if (minCapacity > Integer.MAX_VALUE || segment.mWritableFile == null) {
+            throw new IOException("Record too large");
+        }
+        ((MappedByteBuffer) segment.mBuffer).force();
+        long capacity = Math.min(
+                Math.max(2L * segment.mBuffer.capacity(), minCapacity),
+                Integer.MAX_VALUE);
+        segment.mWritableFile.setLength(capacity);
+        MappedByteBuffer buffer = segment.mWritableFile.getChannel()
+                .map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        segment.mBuffer = buffer;
+        mWriteBuffer = buffer.duplicate();
+    }
+
+    private void closeSegments() {
+        mOpen = false;
+        if (mActiveSegment != null && mActiveSegment.mWritableFile != null) {
+            try {
+                mActiveSegment.mWritableFile.close();
+            } catch (IOException e) {
+                FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            }
+        }
+        mActiveSegment = null;
+        mWriteBuffer = null;
+        mSealedSegments.clear();
+        mIndex.clear();
+    }
+
+    private Segment getActiveSegment() {
+        if (mActiveSegment == null) {
+            throw new IllegalStateException("Storage is not open");
+        }
+        return mActiveSegment;
+    }
+
+    private ByteBuffer getWriteBuffer() {
+        if (mWriteBuffer == null) {
+            throw new IllegalStateException("Storage is not open");
+        }
+        return mWriteBuffer;
+    }
+
+    private File getDirectory() {
+        return new File(mContext.getFilesDir(), mDirectoryName);
+    }
+
+    private static ByteBuffer mapReadOnly(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 checksum = new CRC32();
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        byte[] chunk = new byte[Math.min(COPY_CHUNK_SIZE, length)];
+        int remaining = length;
+        while (remaining > 0) {
+            int chunkLength = Math.min(chunk.length, remaining);
+            source.get(chunk, 0, chunkLength);
+            checksum.update(chunk, 0, chunkLength);
+            remaining -= chunkLength;
+        }
+        return (int) checksum.getValue();
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            FLog.w(ReactConstants.TAG, "Could not delete " + file);
+        }
+    }
+}
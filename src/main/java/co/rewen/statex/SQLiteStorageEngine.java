@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+import static co.rewen.statex.AsyncLocalStorageUtil.MAX_SQL_KEYS;
+import static co.rewen.statex.StateXDatabaseSupplier.CODEC_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.EXPIRES_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.KEY_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.SEQUENCE_VERSION_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.TABLE_SEQUENCE;
+import static co.rewen.statex.StateXDatabaseSupplier.TABLE_STATE;
+import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.VERSION_COLUMN;
+
+/**
+ * {@link StorageEngine} storing keys in the state table of a {@link StateXDatabaseSupplier}
+ * database, with large values in {@link StateXValueFiles} and the quota enforced by
+ * {@link StateXEvictor}.
+ */
+/* package */ class SQLiteStorageEngine implements StorageEngine {
+
+    private final StateXDatabaseSupplier mSupplier;
+    private final StateXValueCodec mValueCodec;
+    private final StateXEvictor mEvictor;
+    // Only used by the transaction in progress, on the writer thread.
+    private @Nullable SQLiteDatabase mTransactionDb;
+    private @Nullable SQLiteStatement mInsertStatement;
+    private boolean mTransactionSuccessful;
+    private final HashSet<String> mUnreferencedFiles = new HashSet<>();
+    // Last version given, read from the sequence table by each transaction, since another
+    // connection to the database, e.g. of the content provider, may have given versions since.
+    private long mLastVersion;
+    private boolean mVersionsGiven;
+
+    /**
+     * @param name name of the database, see {@link StateXDatabaseSupplier#DATABASE_NAME}
+     */
+    /* package */ SQLiteStorageEngine(
+            Context context,
+            String name,
+            boolean writeAheadLogging,
+            StateXConfig config,
+            StateXMetrics metrics) {
+        mSupplier = new StateXDatabaseSupplier(context, name, writeAheadLogging, config, metrics);
+        mValueCodec = mSupplier.getValueCodec();
+        mEvictor = new StateXEvictor(config);
+    }
+
+    @Override
+    public boolean open() {
+        return mSupplier.ensureDatabase();
+    }
+
+    @Override
+    public void close() {
+        mSupplier.closeDatabase();
+    }
+
+    @Override
+    public boolean delete() {
+        return mSupplier.deleteDatabase();
+    }
+
+    @Override
+    public void multiGet(
+            String[] keys,
+            int[] positions,
+            int count,
+            String[] values,
+            long[] expirations,
+            long[] versions) throws IOException {
+        mValueCodec.getFiles().beginRead();
+        try {
+            AsyncLocalStorageUtil.multiGetImpl(
+                    mSupplier.get(),
+                    mValueCodec,
+                    keys,
+                    positions,
+                    count,
+                    values,
+                    expirations,
+                    versions);
+        } finally {
+            mValueCodec.getFiles().endRead();
+        }
+    }
+
+    @Override
+    public Scan scan(
+            String prefix,
+            @Nullable String startKey,
+            boolean startInclusive,
+            @Nullable String endKey,
+            int limit,
+            final boolean includeValues) {
+        String[] columns = includeValues ?
+                new String[] {
+                        KEY_COLUMN, VALUE_COLUMN, CODEC_COLUMN, EXPIRES_COLUMN, VERSION_COLUMN} :
+                new String[] {KEY_COLUMN};
+        final StateXValueFiles files = mValueCodec.getFiles();
+        files.beginRead();
+        final Cursor cursor;
+        try {
+            cursor = AsyncLocalStorageUtil.scanImpl(
+                    mSupplier.get(),
+                    columns,
+                    prefix,
+                    startKey,
+                    startInclusive,
+                    endKey,
+                    limit);
+        } catch (RuntimeException e) {
+            files.endRead();
+            throw e;
+        }
+        return new Scan() {
+            @Override
+            public boolean moveToNext() {
+                return cursor.moveToNext();
+            }
+
+            @Override
+            public String getKey() {
+                return cursor.getString(0);
+            }
+
+            @Override
+            public String getValue() throws IOException {
+                return mValueCodec.decode(cursor, 1, 2);
+            }
+
+            @Override
+            public long getExpiresAt() {
+                return cursor.isNull(3) ? 0 : cursor.getLong(3);
+            }
+
+            @Override
+            public long getVersion() {
+                return cursor.getLong(4);
+            }
+
+            @Override
+            public void close() {
+                cursor.close();
+                files.endRead();
+            }
+        };
+    }
+
+    @Override
+    public void beginTransaction() {
+        mTransactionDb = mSupplier.get();
+        mTransactionSuccessful = false;
+        mVersionsGiven = false;
+        mTransactionDb.beginTransaction();
+        try {
+            mLastVersion = DatabaseUtils.longForQuery(
+                    mTransactionDb,
+                    "SELECT " + SEQUENCE_VERSION_COLUMN + " FROM " + TABLE_SEQUENCE,
+                    null);
+        } catch (RuntimeException e) {
+            mTransactionDb.endTransaction();
+            mTransactionDb = null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTransactionSuccessful() {
+        if (mVersionsGiven) {
+            getTransactionDb().execSQL(
+                    "UPDATE " + TABLE_SEQUENCE + " SET " + SEQUENCE_VERSION_COLUMN + " = ?",
+                    new Object[] {mLastVersion});
+        }
+        getTransactionDb().setTransactionSuccessful();
+        mTransactionSuccessful = true;
+    }
+
+    @Override
+    public void endTransaction() {
+        SQLiteDatabase db = getTransactionDb();
+        mTransactionDb = null;
+        try {
+            if (mInsertStatement != null) {
+                mInsertStatement.close();
+                mInsertStatement = null;
+            }
+            db.endTransaction();
+            if (mTransactionSuccessful && !mUnreferencedFiles.isEmpty()) {
+                mValueCodec.getFiles().delete(mUnreferencedFiles);
+            }
+        } finally {
+            mUnreferencedFiles.clear();
+        }
+    }
+
+    @Override
+    public long set(String key, String value, long expiresAt) throws IOException {
+        if (mInsertStatement == null) {
+            // Compiled once for all the keys of the transaction.
+            mInsertStatement = getTransactionDb().compileStatement(AsyncLocalStorageUtil.INSERT_ITEM_SQL);
+        }
+        long version = nextVersion();
+        AsyncLocalStorageUtil.insertItem(
+                mInsertStatement,
+                mValueCodec,
+                key,
+                value,
+                System.currentTimeMillis(),
+                expiresAt,
+                version);
+        return version;
+    }
+
+    @Override
+    public void remove(List<String> keys) {
+        SQLiteDatabase db = getTransactionDb();
+        for (int keyStart = 0; keyStart < keys.size(); keyStart += MAX_SQL_KEYS) {
+            int keyCount = Math.min(keys.size() - keyStart, MAX_SQL_KEYS);
+            db.delete(
+                    TABLE_STATE,
+                    AsyncLocalStorageUtil.buildKeySelection(keyCount),
+                    AsyncLocalStorageUtil.buildKeySelectionArgs(keys, keyStart, keyCount));
+        }
+    }
+
+    @Override
+    public @Nullable String merge(String key, String value, long[] expiresAt, long[] version)
+            throws JSONException, IOException {
+        version[0] = nextVersion();
+        return AsyncLocalStorageUtil.mergeImpl(
+                getTransactionDb(),
+                mValueCodec,
+                key,
+                value,
+                expiresAt,
+                version[0]);
+    }
+
+    @Override
+    public long getVersion(String key) {
+        return AsyncLocalStorageUtil.getVersionImpl(getTransactionDb(), key);
+    }
+
+    /**
+     * Drops and recreates the table rather than deleting its rows, which would run the usage
+     * triggers once per row.
+     */
+    @Override
+    public void clear() {
+        mSupplier.recreate(getTransactionDb());
+    }
+
+    @Override
+    public void removeExpired(long now, int limit, List<String> removed) {
+        SQLiteDatabase db = getTransactionDb();
+        String[] columns = {KEY_COLUMN};
+        String[] selectionArgs = {String.valueOf(now)};
+        Cursor cursor = db.query(
+                TABLE_STATE,
+                columns,
+                EXPIRES_COLUMN + " <= ?",
+                selectionArgs,
+                null,
+                null,
+                EXPIRES_COLUMN,
+                String.valueOf(limit));
+        int start = removed.size();
+        try {
+            while (cursor.moveToNext()) {
+                removed.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        remove(removed.subList(start, removed.size()));
+    }
+
+    @Override
+    public boolean isEvictionEnabled() {
+        return mEvictor.isEnabled();
+    }
+
+    @Override
+    public boolean recordAccess(String key, long time) {
+        return mEvictor.recordAccess(key, time);
+    }
+
+    @Override
+    public boolean evict(boolean full, List<String> evicted) {
+        return mEvictor.run(getTransactionDb(), full, evicted);
+    }
+
+    @Override
+    public boolean mayHaveGarbage() {
+        return mValueCodec.getFiles().mayHaveFiles();
+    }
+
+    /**
+     * Finds the value files that are no longer referenced. They are only deleted once the
+     * transaction has committed, so a file written by a transaction that ends up rolled back is only
+     * deleted by a later collection.
+     */
+    @Override
+    public void collectGarbage() {
+        HashSet<String> unreferenced = mValueCodec.getFiles().list();
+        if (unreferenced.isEmpty()) {
+            return;
+        }
+        Cursor cursor = getTransactionDb().query(
+                TABLE_STATE,
+                new String[] {VALUE_COLUMN},
+                CODEC_COLUMN + " = " + StateXValueCodec.CODEC_EXTERNAL,
+                null,
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                unreferenced.remove(StateXValueFiles.nameOf(cursor.getString(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        mUnreferencedFiles.addAll(unreferenced);
+    }
+
+    private long nextVersion() {
+        getTransactionDb();
+        mVersionsGiven = true;
+        return ++mLastVersion;
+    }
+
+    private SQLiteDatabase getTransactionDb() {
+        if (mTransactionDb == null) {
+            throw new IllegalStateException("No transaction in progress");
+        }
+        return mTransactionDb;
+    }
+}
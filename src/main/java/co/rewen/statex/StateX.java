@@ -1,10 +1,14 @@
 package co.rewen.statex;
 
+import android.content.Intent;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.facebook.react.bridge.ReadableArray;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * Copyright (c) 2015-present, Junjun Deng
@@ -15,11 +19,23 @@ import java.util.ArrayList;
  */
 public class StateX {
     public static final String ACTION_STATE_CHANGED = "co.rewen.intent.action.STATE_CHANGED";
+    /**
+     * The changed keys, as a String ArrayList extra of {@link #ACTION_STATE_CHANGED}.
+     */
     public static final String EXTRA_KEYS = "co.rewen.intent.extra.key";
 
     public static final String SCHEME = "state";
     public static final String AUTHORITY = "co.rewen";
 
+    private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
     public static Uri uriForKey(String key) {
         Uri.Builder builder = new Uri.Builder();
         builder.scheme(SCHEME);
@@ -28,6 +44,54 @@ public class StateX {
         return builder.build();
     }
 
+    public static String keyForUri(Uri uri) {
+        String path = uri.getPath();
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    /**
+     * Returns the keys changed according to an {@link #ACTION_STATE_CHANGED} intent, whether it
+     * carries them all in {@link #EXTRA_KEYS} or has the {@link #uriForKey} of a single key.
+     */
+    public static ArrayList<String> getChangedKeys(Intent intent) {
+        ArrayList<String> keys = intent.getStringArrayListExtra(EXTRA_KEYS);
+        if (keys == null) {
+            keys = new ArrayList<>();
+            if (intent.getData() != null) {
+                keys.add(keyForUri(intent.getData()));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Registers a native observer of the key addressed by the given {@link #uriForKey} URI. With
+     * matchPrefix, it observes all the keys starting with that key instead, e.g. every key of the
+     * "cart/" namespace for state://co.rewen/cart/. The observer is called on the given executor.
+     */
+    public static void registerObserver(
+            Uri uri,
+            boolean matchPrefix,
+            StateXObserver observer,
+            Executor executor) {
+        StateXObserverRegistry.getInstance().register(keyForUri(uri), matchPrefix, observer, executor);
+    }
+
+    /**
+     * Registers a native observer called on the main thread, see
+     * {@link #registerObserver(Uri, boolean, StateXObserver, Executor)}.
+     */
+    public static void registerObserver(Uri uri, boolean matchPrefix, StateXObserver observer) {
+        registerObserver(uri, matchPrefix, observer, MAIN_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Unregisters all the registrations of the observer.
+     */
+    public static void unregisterObserver(StateXObserver observer) {
+        StateXObserverRegistry.getInstance().unregister(observer);
+    }
+
     public static ArrayList<String> toStringArray(ReadableArray array) {
         ArrayList<String> strings = new ArrayList<>();
         for (int i = 0; i < array.size(); i++) {
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.util.LruCache;
+
+/**
+ * Write-through LRU cache of stored values, bounded by an estimate of the memory they use.
+ * <p/>
+ * Writers update the cache once their transaction has committed. Readers that fill the cache after
+ * a database query have to pass the {@link #generation()} they saw before the query, so that a value
+ * read before a concurrent write can't overwrite the newer one.
+ * <p/>
+ * Values written with a time to live are cached with their expiration time, and are treated as
+ * missing once it has passed. Values are cached with their version.
+ */
+/* package */ class StateXCache {
+
+    // Rough per-entry cost of the map node, the two String objects and their char arrays headers.
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+    // A single value may use at most this fraction of the cache, so one huge blob can't flush it.
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private static class Entry {
+        final String mValue;
+        // Expiration time in milliseconds since the epoch, or 0 if the value doesn't expire.
+        final long mExpiresAt;
+        final long mVersion;
+
+        Entry(String value, long expiresAt, long version) {
+            mValue = value;
+            mExpiresAt = expiresAt;
+            mVersion = version;
+        }
+    }
+
+    private final @Nullable LruCache<String, Entry> mEntries;
+    private final long mMaxEntrySize;
+    private long mGeneration;
+
+    /* package */ StateXCache(long maxSize) {
+        if (maxSize > 0) {
+            mEntries = new LruCache<String, Entry>((int) maxSize) {
+                @Override
+                protected int sizeOf(String key, Entry entry) {
+                    return StateXCache.sizeOf(key, entry.mValue);
+                }
+            };
+        } else {
+            mEntries = null;
+        }
+        mMaxEntrySize = maxSize / MAX_ENTRY_FRACTION;
+    }
+
+    /* package */ static int sizeOf(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES + 2 * (key.length() + value.length());
+    }
+
+    /* package */ boolean isEnabled() {
+        return mEntries != null;
+    }
+
+    /**
+     * Returns the cached value of the key, or null if it isn't cached.
+     */
+    /* package */ @Nullable String get(String key) {
+        return get(key, null);
+    }
+
+    /**
+     * Returns the cached value of the key, or null if it isn't cached, and stores its version into
+     * version[0] if given.
+     */
+    /* package */ @Nullable String get(String key, @Nullable long[] version) {
+        Entry entry = mEntries == null ? null : mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.mExpiresAt != 0 && entry.mExpiresAt <= System.currentTimeMillis()) {
+            synchronized (this) {
+                // Only drop the entry if it wasn't replaced meanwhile.
+                if (mEntries.get(key) == entry) {
+                    mEntries.remove(key);
+                }
+            }
+            return null;
+        }
+        if (version != null) {
+            version[0] = entry.mVersion;
+        }
+        return entry.mValue;
+    }
+
+    /**
+     * Returns a token that has to be passed to {@link #putIfUnchanged} when filling the cache with
+     * values read from the database.
+     */
+    /* package */ synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches a value read from the database, unless the cache was written to since
+     * {@link #generation()} returned the given token.
+     * @param expiresAt expiration time of the value, or 0 if it doesn't expire
+     * @param version version of the value, see {@link StorageEngine}
+     */
+    /* package */ synchronized void putIfUnchanged(
+            long generation,
+            String key,
+            String value,
+            long expiresAt,
+            long version) {
+        if (mEntries != null && generation == mGeneration && fits(key, value)) {
+            mEntries.put(key, new Entry(value, expiresAt, version));
+        }
+    }
+
+    /**
+     * Records a committed write.
+     * @param expiresAt expiration time of the value, or 0 if it doesn't expire
+     * @param version version of the value, see {@link StorageEngine}
+     */
+    /* package */ synchronized void put(String key, String value, long expiresAt, long version) {
+        if (mEntries == null) {
+            return;
+        }
+        mGeneration++;
+        if (fits(key, value)) {
+            mEntries.put(key, new Entry(value, expiresAt, version));
+        } else {
+            mEntries.remove(key);
+        }
+    }
+
+    /**
+     * Records a committed removal, or a write whose resulting value isn't known.
+     */
+    /* package */ synchronized void remove(String key) {
+        if (mEntries == null) {
+            return;
+        }
+        mGeneration++;
+        mEntries.remove(key);
+    }
+
+    /**
+     * Records the committed removal of all keys starting with the prefix.
+     */
+    /* package */ synchronized void removePrefix(String prefix) {
+        if (mEntries == null) {
+            return;
+        }
+        mGeneration++;
+        for (String key : mEntries.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /* package */ synchronized void clear() {
+        if (mEntries == null) {
+            return;
+        }
+        mGeneration++;
+        mEntries.evictAll();
+    }
+
+    private boolean fits(String key, String value) {
+        return sizeOf(key, value) <= mMaxEntrySize;
+    }
+
+    public long getMaxSize() {
+        return mEntries == null ? 0 : mEntries.maxSize();
+    }
+
+    public long getSize() {
+        return mEntries == null ? 0 : mEntries.size();
+    }
+
+    public int getHitCount() {
+        return mEntries == null ? 0 : mEntries.hitCount();
+    }
+
+    public int getMissCount() {
+        return mEntries == null ? 0 : mEntries.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mEntries == null ? 0 : mEntries.evictionCount();
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableArray;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Emits a {@link #EVENT_STATE_CHANGED} device event for each committed transaction of a shard,
+ * carrying the changed keys and, up to {@link StateXConfig#getChangeFeedMaxPayloadSize()}, their
+ * new values, so that JS doesn't have to read them back.
+ * <p/>
+ * Changes are recorded by the writes as they complete and emitted together once all the writes of
+ * the transaction have, see {@link StateXWriteQueue.EngineProvider#onTransactionCompleted()}. Only
+ * used on the writer thread of the shard.
+ */
+/* package */ class StateXChangeFeed {
+
+    /* package */ static final String EVENT_STATE_CHANGED = "StateXChanged";
+
+    private final @Nullable ReactContext mReactContext;
+    private final boolean mEnabled;
+    private final int mMaxPayloadSize;
+    // Value and version of each changed key, in change order, null if values aren't sent.
+    private final LinkedHashMap<String, Change> mChanges = new LinkedHashMap<>();
+    private final ArrayList<String> mClearedPrefixes = new ArrayList<>();
+    private int mPayloadSize;
+    private boolean mKeysOnly;
+
+    /**
+     * @param reactContext context to emit the events to, or null if there is no JS to feed
+     */
+    /* package */ StateXChangeFeed(@Nullable ReactContext reactContext, StateXConfig config) {
+        mReactContext = reactContext;
+        mEnabled = reactContext != null && config.isChangeFeedEnabled();
+        mMaxPayloadSize = config.getChangeFeedMaxPayloadSize();
+        mKeysOnly = mMaxPayloadSize == 0;
+    }
+
+    /* package */ boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Records the new value of a key, or its removal if the value is null.
+     */
+    /* package */ void recordChange(String key, @Nullable String value, long version) {
+        if (!mEnabled) {
+            return;
+        }
+        mPayloadSize += key.length() + (value != null ? value.length() : 0);
+        if (!mKeysOnly && mPayloadSize > mMaxPayloadSize) {
+            // Values are sent for all keys or none, so that JS can tell which ones to read back.
+            mKeysOnly = true;
+            for (Map.Entry<String, Change> change : mChanges.entrySet()) {
+                change.setValue(null);
+            }
+        }
+        mChanges.remove(key);
+        mChanges.put(key, mKeysOnly ? null : new Change(value, version));
+    }
+
+    /**
+     * Records the removal of the keys starting with the prefix, of all keys for an empty prefix,
+     * when the removed keys aren't known.
+     */
+    /* package */ void recordClear(String prefix) {
+        if (!mEnabled) {
+            return;
+        }
+        mClearedPrefixes.add(prefix);
+    }
+
+    /**
+     * Emits the changes recorded since the last call, if any.
+     */
+    /* package */ void flush() {
+        if (mChanges.isEmpty() && mClearedPrefixes.isEmpty()) {
+            return;
+        }
+        WritableArray keys = Arguments.createArray();
+        WritableArray values = mKeysOnly ? null : Arguments.createArray();
+        for (Map.Entry<String, Change> change : mChanges.entrySet()) {
+            keys.pushString(change.getKey());
+            if (values == null) {
+                continue;
+            }
+            // Rows in the format of multiGet.
+            WritableArray row = Arguments.createArray();
+            row.pushString(change.getKey());
+            if (change.getValue().mValue != null) {
+                row.pushString(change.getValue().mValue);
+                row.pushNull();
+                row.pushDouble(change.getValue().mVersion);
+            } else {
+                row.pushNull();
+            }
+            values.pushArray(row);
+        }
+        WritableMap event = Arguments.createMap();
+        event.putArray("keys", keys);
+        if (values != null) {
+            event.putArray("values", values);
+        }
+        if (!mClearedPrefixes.isEmpty()) {
+            WritableArray clearedPrefixes = Arguments.createArray();
+            for (String prefix : mClearedPrefixes) {
+                clearedPrefixes.pushString(prefix);
+            }
+            event.putArray("clearedPrefixes", clearedPrefixes);
+        }
+        mChanges.clear();
+        mClearedPrefixes.clear();
+        mPayloadSize = 0;
+        mKeysOnly = mMaxPayloadSize == 0;
+        if (mReactContext != null && mReactContext.hasActiveCatalystInstance()) {
+            mReactContext
+                    .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                    .emit(EVENT_STATE_CHANGED, event);
+        }
+    }
+
+    private static class Change {
+        final @Nullable String mValue;
+        final long mVersion;
+
+        Change(@Nullable String value, long version) {
+            mValue = value;
+            mVersion = version;
+        }
+    }
+}
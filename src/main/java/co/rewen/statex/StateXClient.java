@@ -0,0 +1,632 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.ReactConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Native access to the storage of a {@link StateXModule}, without going through the JS bridge, see
+ * {@link StateXModule#getClient()}.
+ * <p/>
+ * Reads and writes share the read cache, the write queues and the change notifications of the
+ * module: a value written here is served from memory to JS and the other way around, and
+ * {@link StateX#ACTION_STATE_CHANGED} broadcasts, {@link StateXObserver}s and the change feed see
+ * writes from both sides alike.
+ * <p/>
+ * Each operation comes as a {@link Future}, and as a blocking method that waits for it.
+ * {@link #getCached} and {@link #getSync} return cached values right away, on the calling thread.
+ * The blocking methods must not be called from a {@link StateXObserver} running on a StateX thread.
+ */
+public class StateXClient {
+
+    /**
+     * A key, its value and the version of the value, see {@link StorageEngine}.
+     */
+    public static class Entry {
+        private final String mKey;
+        private final String mValue;
+        private final long mVersion;
+
+        /* package */ Entry(String key, String value, long version) {
+            mKey = key;
+            mValue = value;
+            mVersion = version;
+        }
+
+        public String getKey() {
+            return mKey;
+        }
+
+        public String getValue() {
+            return mValue;
+        }
+
+        public long getVersion() {
+            return mVersion;
+        }
+    }
+
+    /**
+     * An operation of a {@link #batch}.
+     */
+    public static class Operation {
+        /* package */ final String mType;
+        /* package */ final String mKey;
+        /* package */ final @Nullable String mValue;
+        /* package */ final long mTtl;
+
+        /* package */ Operation(String type, String key, @Nullable String value, long ttl) {
+            mType = type;
+            mKey = key;
+            mValue = value;
+            mTtl = ttl;
+        }
+
+        public static Operation set(String key, String value) {
+            return set(key, value, 0);
+        }
+
+        /**
+         * @param ttlMs time to live in milliseconds, 0 if the value doesn't expire
+         */
+        public static Operation set(String key, String value, long ttlMs) {
+            checkKey(key);
+            if (value == null || ttlMs < 0) {
+                throw new IllegalArgumentException("Invalid value for " + key);
+            }
+            return new Operation("set", key, value, ttlMs);
+        }
+
+        public static Operation merge(String key, String value) {
+            checkKey(key);
+            if (value == null) {
+                throw new IllegalArgumentException("Invalid value for " + key);
+            }
+            return new Operation("merge", key, value, 0);
+        }
+
+        public static Operation remove(String key) {
+            checkKey(key);
+            return new Operation("remove", key, null, 0);
+        }
+    }
+
+    private final StateXModule mModule;
+    private final StateXShards mShards;
+    private final StateXCache mCache;
+    private final StateXMetrics mMetrics;
+    private final StateXScheduler mScheduler;
+
+    /* package */ StateXClient(
+            StateXModule module,
+            StateXShards shards,
+            StateXCache cache,
+            StateXMetrics metrics,
+            StateXScheduler scheduler) {
+        mModule = module;
+        mShards = shards;
+        mCache = cache;
+        mMetrics = metrics;
+        mScheduler = scheduler;
+    }
+
+    /**
+     * Returns the value of the key if it is in the read cache and has no write pending, null
+     * otherwise. Never blocks on the disk, so it can be called from the main thread.
+     */
+    public @Nullable String getCached(String key) {
+        checkKey(key);
+        StateXMetrics.Sample sample = mMetrics.begin("clientGetCached");
+        sample.executing();
+        List<String> keys = Collections.singletonList(key);
+        String value = mShards.get(key).getWriteQueue().hasPendingWrites(keys) ?
+                null :
+                mCache.get(key);
+        sample.keys(1);
+        sample.read(value);
+        sample.end(true);
+        return value;
+    }
+
+    /**
+     * Reads the value of the key, or null if it doesn't exist. The value is never older than the
+     * writes submitted before the call, from JS or native code.
+     */
+    public Future<String> get(String key) {
+        return read(key, "clientGet", false);
+    }
+
+    /**
+     * Like {@link #get}, with the version of the value.
+     */
+    public Future<Entry> getEntry(String key) {
+        return read(key, "clientGetEntry", true);
+    }
+
+    public @Nullable Entry getEntrySync(String key) throws IOException {
+        return await(getEntry(key));
+    }
+
+    /**
+     * Like {@link #get}, but returns a cached value right away and otherwise blocks until the value
+     * is read.
+     */
+    public @Nullable String getSync(String key) throws IOException {
+        String value = getCached(key);
+        return value != null ? value : await(get(key));
+    }
+
+    /**
+     * Reads the keys starting with the prefix, with their values, in key order.
+     * @param limit maximum number of keys, 0 for all of them
+     */
+    public Future<List<Entry>> scan(final String prefix, final int limit) {
+        if (prefix == null || limit < 0) {
+            throw new IllegalArgumentException("Invalid scan: " + prefix + ", " + limit);
+        }
+        final StateXFuture<List<Entry>> future = new StateXFuture<>();
+        final StateXMetrics.Sample sample = mMetrics.begin("clientScan");
+        final List<StateXShards.Shard> shards = mShards.getForPrefix(prefix);
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<Entry> entries = new ArrayList<>();
+                try {
+                    if (!mModule.ensureDatabase(shards)) {
+                        throw new IOException("Database Error");
+                    }
+                    sample.executing();
+                    StorageEngine.Scan scan = mShards.scan(prefix, null, true, null, limit, true);
+                    try {
+                        while (scan.moveToNext()) {
+                            String value = scan.getValue();
+                            entries.add(new Entry(scan.getKey(), value, scan.getVersion()));
+                            sample.read(value);
+                        }
+                    } finally {
+                        scan.close();
+                    }
+                } catch (Exception e) {
+                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                    sample.end(false);
+                    future.setError(e);
+                    return;
+                }
+                sample.keys(entries.size());
+                sample.end(true);
+                future.set(entries);
+            }
+        };
+        if (!mModule.scheduleRead(StateXScheduler.Priority.BULK, shards, null, read)) {
+            reject(future, sample);
+        }
+        return future;
+    }
+
+    public List<Entry> scanSync(String prefix, int limit) throws IOException {
+        return await(scan(prefix, limit));
+    }
+
+    /**
+     * Writes the value of the key.
+     * @return the version of the value
+     */
+    public Future<Long> set(String key, String value) {
+        return set(key, value, 0);
+    }
+
+    /**
+     * Writes the value of the key, which is no longer returned once the time to live has passed.
+     * @param ttlMs time to live in milliseconds, 0 if the value doesn't expire
+     * @return the version of the value
+     */
+    public Future<Long> set(final String key, final String value, final long ttlMs) {
+        checkKey(key);
+        if (value == null || ttlMs < 0) {
+            throw new IllegalArgumentException("Invalid value for " + key);
+        }
+        final StateXFuture<Long> future = new StateXFuture<>();
+        final StateXMetrics.Sample sample = mMetrics.begin("clientSet");
+        if (!mScheduler.tryAcquire(StateXScheduler.Priority.WRITE)) {
+            reject(future, sample);
+            return future;
+        }
+        final StateXShards.Shard shard = mShards.get(key);
+        shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+            private long mExpiresAt;
+            private long mVersion;
+
+            @Override
+            WritableMap apply(StorageEngine engine) throws IOException {
+                sample.executing();
+                mExpiresAt = ttlMs > 0 ? System.currentTimeMillis() + ttlMs : 0;
+                mVersion = engine.set(key, value, mExpiresAt);
+                return null;
+            }
+
+            @Override
+            void onComplete(@Nullable WritableMap error, boolean committed) {
+                if (committed) {
+                    mCache.put(key, value, mExpiresAt, mVersion);
+                    shard.getChangeFeed().recordChange(key, value, mVersion);
+                    mModule.collectGarbage(shard);
+                    mModule.evict(shard, false);
+                    mModule.notifyStateChanged(new ArrayList<>(Collections.singletonList(key)));
+                } else {
+                    mCache.remove(key);
+                }
+                sample.keys(1);
+                sample.written(value);
+                mScheduler.release(StateXScheduler.Priority.WRITE);
+                complete(future, sample, error, committed, mVersion);
+            }
+        }, Collections.singletonList(key));
+        return future;
+    }
+
+    public long setSync(String key, String value) throws IOException {
+        return await(set(key, value));
+    }
+
+    public long setSync(String key, String value, long ttlMs) throws IOException {
+        return await(set(key, value, ttlMs));
+    }
+
+    /**
+     * Merges the value into the stored value of the key, following JSON merge patch (RFC 7396), see
+     * {@link StateXModule#multiMerge}.
+     * @return the merged value
+     */
+    public Future<String> merge(final String key, final String value) {
+        checkKey(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value for " + key);
+        }
+        final StateXFuture<String> future = new StateXFuture<>();
+        final StateXMetrics.Sample sample = mMetrics.begin("clientMerge");
+        if (!mScheduler.tryAcquire(StateXScheduler.Priority.WRITE)) {
+            reject(future, sample);
+            return future;
+        }
+        final StateXShards.Shard shard = mShards.get(key);
+        shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+            private @Nullable String mMergedValue;
+            private final long[] mExpiresAt = new long[1];
+            private final long[] mVersion = new long[1];
+
+            @Override
+            WritableMap apply(StorageEngine engine) throws Exception {
+                sample.executing();
+                mMergedValue = engine.merge(key, value, mExpiresAt, mVersion);
+                if (mMergedValue == null) {
+                    throw new IOException("Database Error");
+                }
+                return null;
+            }
+
+            @Override
+            void onComplete(@Nullable WritableMap error, boolean committed) {
+                if (committed && mMergedValue != null) {
+                    mCache.put(key, mMergedValue, mExpiresAt[0], mVersion[0]);
+                    shard.getChangeFeed().recordChange(key, mMergedValue, mVersion[0]);
+                    mModule.collectGarbage(shard);
+                    mModule.evict(shard, false);
+                    mModule.notifyStateChanged(new ArrayList<>(Collections.singletonList(key)));
+                } else {
+                    mCache.remove(key);
+                }
+                sample.keys(1);
+                sample.written(mMergedValue);
+                mScheduler.release(StateXScheduler.Priority.WRITE);
+                complete(future, sample, error, committed, mMergedValue);
+            }
+        }, Collections.singletonList(key));
+        return future;
+    }
+
+    public String mergeSync(String key, String value) throws IOException {
+        return await(merge(key, value));
+    }
+
+    /**
+     * Removes the keys, in one transaction per shard.
+     */
+    public Future<Void> remove(String... keys) {
+        ArrayList<Operation> operations = new ArrayList<>(keys.length);
+        for (String key : keys) {
+            operations.add(Operation.remove(key));
+        }
+        return batch(operations);
+    }
+
+    public void removeSync(String... keys) throws IOException {
+        await(remove(keys));
+    }
+
+    /**
+     * Applies the operations in order, all or none of them, in a single transaction per shard, and
+     * notifies the changed keys once, see {@link StateXModule#batch}.
+     */
+    public Future<Void> batch(final List<Operation> operations) {
+        final StateXFuture<Void> future = new StateXFuture<>();
+        final StateXMetrics.Sample sample = mMetrics.begin("clientBatch");
+        final ArrayList<String> keys = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            keys.add(operation.mKey);
+        }
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keys);
+        if (partition.isEmpty()) {
+            sample.end(true);
+            future.set(null);
+            return future;
+        }
+        if (!mScheduler.tryAcquire(StateXScheduler.Priority.WRITE)) {
+            reject(future, sample);
+            return future;
+        }
+        // Writes of the shards left to complete, the first error and the keys of the shards
+        // committed so far, guarded by the list.
+        final int[] remaining = {partition.size()};
+        final WritableMap[] firstError = new WritableMap[1];
+        final ArrayList<String> changedKeys = new ArrayList<>();
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardOperations : partition.entrySet()) {
+            final StateXShards.Shard shard = shardOperations.getKey();
+            final List<Integer> positions = shardOperations.getValue();
+            final ArrayList<String> shardKeys = new ArrayList<>();
+            for (int position : positions) {
+                shardKeys.add(keys.get(position));
+            }
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                // Value, expiration time and version of each key after its operation, null once
+                // removed.
+                private final String[] mValues = new String[positions.size()];
+                private final long[] mExpirations = new long[positions.size()];
+                private final long[] mVersions = new long[positions.size()];
+
+                @Override
+                WritableMap apply(StorageEngine engine) throws Exception {
+                    synchronized (changedKeys) {
+                        sample.executing();
+                    }
+                    applyOperations(
+                            engine,
+                            operations,
+                            positions,
+                            mValues,
+                            mExpirations,
+                            mVersions);
+                    return null;
+                }
+
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    for (int idx = 0; idx < shardKeys.size(); idx++) {
+                        if (committed && mValues[idx] != null) {
+                            mCache.put(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mExpirations[idx],
+                                    mVersions[idx]);
+                        } else {
+                            mCache.remove(shardKeys.get(idx));
+                        }
+                        if (committed) {
+                            shard.getChangeFeed().recordChange(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mVersions[idx]);
+                        }
+                    }
+                    if (committed) {
+                        mModule.collectGarbage(shard);
+                        mModule.evict(shard, false);
+                    } else if (error == null) {
+                        error = AsyncStorageErrorUtil.getDBError(null);
+                    }
+                    synchronized (changedKeys) {
+                        sample.keys(shardKeys.size());
+                        if (committed) {
+                            changedKeys.addAll(shardKeys);
+                            for (String value : mValues) {
+                                sample.written(value);
+                            }
+                        }
+                        if (firstError[0] == null) {
+                            firstError[0] = error;
+                        }
+                        if (--remaining[0] > 0) {
+                            return;
+                        }
+                    }
+                    if (!changedKeys.isEmpty()) {
+                        mModule.notifyStateChanged(changedKeys);
+                    }
+                    mScheduler.release(StateXScheduler.Priority.WRITE);
+                    complete(future, sample, firstError[0], true, null);
+                }
+            }, shardKeys);
+        }
+        return future;
+    }
+
+    public void batchSync(List<Operation> operations) throws IOException {
+        await(batch(operations));
+    }
+
+    /**
+     * Applies the operations at the given positions in the current transaction of the engine,
+     * storing the value, expiration time and version of each key after its operation. Throws if a
+     * merge fails, so that the transaction is rolled back.
+     */
+    /* package */ static void applyOperations(
+            StorageEngine engine,
+            List<Operation> operations,
+            List<Integer> positions,
+            String[] values,
+            long[] expirations,
+            long[] versions) throws Exception {
+        long now = System.currentTimeMillis();
+        long[] expiresAt = new long[1];
+        long[] version = new long[1];
+        // Consecutive removals are deleted together.
+        ArrayList<String> removedKeys = new ArrayList<>();
+        for (int idx = 0; idx < positions.size(); idx++) {
+            Operation operation = operations.get(positions.get(idx));
+            if (operation.mType.equals("remove")) {
+                removedKeys.add(operation.mKey);
+                values[idx] = null;
+                expirations[idx] = 0;
+                versions[idx] = 0;
+                continue;
+            }
+            if (!removedKeys.isEmpty()) {
+                engine.remove(removedKeys);
+                removedKeys.clear();
+            }
+            if (operation.mType.equals("set")) {
+                values[idx] = operation.mValue;
+                expirations[idx] = operation.mTtl > 0 ? now + operation.mTtl : 0;
+                versions[idx] = engine.set(operation.mKey, values[idx], expirations[idx]);
+            } else {
+                values[idx] = engine.merge(operation.mKey, operation.mValue, expiresAt, version);
+                expirations[idx] = expiresAt[0];
+                versions[idx] = version[0];
+                if (values[idx] == null) {
+                    // Throw rather than return the error, so the operations are rolled back.
+                    throw new IOException("Database Error");
+                }
+            }
+        }
+        engine.remove(removedKeys);
+    }
+
+    /**
+     * Reads the key on the scheduler, after the writes the read has to see.
+     * @param entry whether the future gets the {@link Entry} of the key rather than its value
+     */
+    @SuppressWarnings("unchecked")
+    private <V> Future<V> read(final String key, String operation, final boolean entry) {
+        checkKey(key);
+        final StateXFuture<V> future = new StateXFuture<>();
+        final StateXMetrics.Sample sample = mMetrics.begin(operation);
+        final List<StateXShards.Shard> shards = Collections.singletonList(mShards.get(key));
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                sample.executing();
+                sample.keys(1);
+                try {
+                    Entry result = readEntry(shards.get(0), key);
+                    String value = result != null ? result.getValue() : null;
+                    sample.read(value);
+                    sample.end(true);
+                    future.set((V) (entry ? result : value));
+                } catch (Exception e) {
+                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                    sample.end(false);
+                    future.setError(e);
+                }
+            }
+        };
+        List<String> keys = Collections.singletonList(key);
+        if (!mModule.scheduleRead(StateXScheduler.Priority.INTERACTIVE, shards, keys, read)) {
+            reject(future, sample);
+        }
+        return future;
+    }
+
+    /**
+     * Returns the entry of the key from the cache, or reads it from the shard and caches it, null
+     * if the key doesn't exist.
+     */
+    private @Nullable Entry readEntry(StateXShards.Shard shard, String key) throws Exception {
+        long[] cachedVersion = new long[1];
+        String value = mCache.get(key, cachedVersion);
+        if (value != null) {
+            return new Entry(key, value, cachedVersion[0]);
+        }
+        if (!mModule.ensureDatabase(shard)) {
+            throw new IOException("Database Error");
+        }
+        String[] keys = {key};
+        int[] positions = {0};
+        String[] values = new String[1];
+        long[] expirations = new long[1];
+        long[] versions = new long[1];
+        long cacheGeneration = mCache.generation();
+        shard.getEngine().multiGet(keys, positions, 1, values, expirations, versions);
+        if (values[0] == null) {
+            return null;
+        }
+        mCache.putIfUnchanged(cacheGeneration, key, values[0], expirations[0], versions[0]);
+        StorageEngine engine = shard.getEngine();
+        if (engine.isEvictionEnabled() && engine.recordAccess(key, System.currentTimeMillis())) {
+            mModule.evict(shard, false);
+        }
+        return new Entry(key, values[0], versions[0]);
+    }
+
+    private static <V> void complete(
+            StateXFuture<V> future,
+            StateXMetrics.Sample sample,
+            @Nullable WritableMap error,
+            boolean committed,
+            @Nullable V value) {
+        if (error == null && !committed) {
+            error = AsyncStorageErrorUtil.getDBError(null);
+        }
+        sample.end(error == null);
+        if (error != null) {
+            future.setError(new IOException(error.getString("message")));
+        } else {
+            future.set(value);
+        }
+    }
+
+    /**
+     * Fails a call that the scheduler didn't admit.
+     */
+    private static <V> void reject(StateXFuture<V> future, StateXMetrics.Sample sample) {
+        complete(future, sample, AsyncStorageErrorUtil.getBusyError(null), false, null);
+    }
+
+    private static <V> V await(Future<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private static void checkKey(String key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key: null");
+        }
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tuning options for {@link StateXModule}. Use {@link #builder()} to create one and pass it to
+ * {@link StateXPackage#StateXPackage(StateXConfig)}.
+ */
+public class StateXConfig {
+
+    public static final long DEFAULT_READ_CACHE_SIZE = 1024L * 1024L; // 1 MB in bytes
+    public static final long DEFAULT_WRITE_COALESCING_WINDOW_MS = 0;
+    public static final int DEFAULT_MAX_WRITE_BATCH_SIZE = 64;
+    public static final int DEFAULT_READER_THREAD_COUNT = 3;
+    public static final long DEFAULT_NOTIFICATION_WINDOW_MS = 16;
+    // Well below the 2 MB CursorWindow, which a row has to fit in.
+    public static final int DEFAULT_EXTERNAL_VALUE_THRESHOLD = 512 * 1024;
+    public static final long DEFAULT_MAX_DATABASE_SIZE = 6L * 1024L * 1024L; // 6 MB in bytes
+    public static final long DEFAULT_EXPIRY_SWEEP_INTERVAL_MS = 60 * 1000;
+    public static final int DEFAULT_CHANGE_FEED_MAX_PAYLOAD_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_PENDING_CALLS = 256;
+
+    /**
+     * How keys are chosen for eviction once the quota is exceeded.
+     */
+    public enum EvictionPolicy {
+        /**
+         * Least recently written or read keys first, among the evictable namespaces if any are set.
+         */
+        LRU,
+        /**
+         * All keys of the first evictable namespace, then of the next one, and so on.
+         */
+        NAMESPACE,
+    }
+
+    private final long mReadCacheSize;
+    private final long mWriteCoalescingWindowMs;
+    private final int mMaxWriteBatchSize;
+    private final boolean mWriteAheadLoggingEnabled;
+    private final int mReaderThreadCount;
+    private final long mNotificationWindowMs;
+    private final boolean mPerKeyNotificationsEnabled;
+    private final int mCompressionThreshold;
+    private final int mExternalValueThreshold;
+    private final long mMaxDatabaseSize;
+    private final long mQuota;
+    private final EvictionPolicy mEvictionPolicy;
+    private final List<String> mEvictableNamespaces;
+    private final long mExpirySweepIntervalMs;
+    private final boolean mMetricsEnabled;
+    private final @Nullable StateXMetricsListener mMetricsListener;
+    private final List<String> mPreloadKeys;
+    private final List<String> mPreloadPrefixes;
+    private final long mStartupKeyRecordingWindowMs;
+    private final List<String> mShardedNamespaces;
+    private final boolean mChangeFeedEnabled;
+    private final int mChangeFeedMaxPayloadSize;
+    private final int mMaxPendingCalls;
+
+    private StateXConfig(Builder builder) {
+        mReadCacheSize = builder.mReadCacheSize;
+        mWriteCoalescingWindowMs = builder.mWriteCoalescingWindowMs;
+        mMaxWriteBatchSize = builder.mMaxWriteBatchSize;
+        mWriteAheadLoggingEnabled = builder.mWriteAheadLoggingEnabled;
+        mReaderThreadCount = builder.mReaderThreadCount;
+        mNotificationWindowMs = builder.mNotificationWindowMs;
+        mPerKeyNotificationsEnabled = builder.mPerKeyNotificationsEnabled;
+        mCompressionThreshold = builder.mCompressionThreshold;
+        mExternalValueThreshold = builder.mExternalValueThreshold;
+        mMaxDatabaseSize = builder.mMaxDatabaseSize;
+        mQuota = builder.mQuota;
+        mEvictionPolicy = builder.mEvictionPolicy;
+        mEvictableNamespaces = builder.mEvictableNamespaces;
+        mExpirySweepIntervalMs = builder.mExpirySweepIntervalMs;
+        mMetricsEnabled = builder.mMetricsEnabled;
+        mMetricsListener = builder.mMetricsListener;
+        mPreloadKeys = builder.mPreloadKeys;
+        mPreloadPrefixes = builder.mPreloadPrefixes;
+        mStartupKeyRecordingWindowMs = builder.mStartupKeyRecordingWindowMs;
+        mShardedNamespaces = builder.mShardedNamespaces;
+        mChangeFeedEnabled = builder.mChangeFeedEnabled;
+        mChangeFeedMaxPayloadSize = builder.mChangeFeedMaxPayloadSize;
+        mMaxPendingCalls = builder.mMaxPendingCalls;
+    }
+
+    public static StateXConfig defaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Maximum size of the in-memory read cache, in bytes. 0 disables the cache.
+     */
+    public long getReadCacheSize() {
+        return mReadCacheSize;
+    }
+
+    /**
+     * How long a write waits for more writes to commit with. With 0, writes are committed as soon as
+     * possible, together with whatever other writes are queued by then.
+     */
+    public long getWriteCoalescingWindowMs() {
+        return mWriteCoalescingWindowMs;
+    }
+
+    /**
+     * Maximum number of writes committed in one transaction.
+     */
+    public int getMaxWriteBatchSize() {
+        return mMaxWriteBatchSize;
+    }
+
+    /**
+     * Whether the database uses write-ahead logging. In this mode StateX runs its work on
+     * {@link #getReaderThreadCount()} threads plus one, so that reads don't wait for writes of
+     * other keys. Otherwise it uses two threads, since the database runs one statement at a time.
+     */
+    public boolean isWriteAheadLoggingEnabled() {
+        return mWriteAheadLoggingEnabled;
+    }
+
+    /**
+     * Number of threads serving reads in write-ahead logging mode, along with one more that bulk
+     * scans never occupy.
+     */
+    public int getReaderThreadCount() {
+        return mReaderThreadCount;
+    }
+
+    /**
+     * How long changed keys are collected before {@link StateX#ACTION_STATE_CHANGED} is broadcast.
+     */
+    public long getNotificationWindowMs() {
+        return mNotificationWindowMs;
+    }
+
+    /**
+     * Whether to broadcast one {@link StateX#ACTION_STATE_CHANGED} per key, with the
+     * {@link StateX#uriForKey} data, instead of one carrying all keys in {@link StateX#EXTRA_KEYS}.
+     */
+    public boolean isPerKeyNotificationsEnabled() {
+        return mPerKeyNotificationsEnabled;
+    }
+
+    /**
+     * Length from which values are stored compressed with Deflate, 0 if values are never compressed.
+     * Compressed values are read back whatever this setting is.
+     */
+    public int getCompressionThreshold() {
+        return mCompressionThreshold;
+    }
+
+    /**
+     * Length from which values are stored in side files read through memory mapping, rather than in
+     * the database, 0 if values are always stored in the database. Such values aren't compressed.
+     */
+    public int getExternalValueThreshold() {
+        return mExternalValueThreshold;
+    }
+
+    /**
+     * Hard limit of the size of the database file, in bytes. Writes beyond it fail.
+     */
+    public long getMaxDatabaseSize() {
+        return mMaxDatabaseSize;
+    }
+
+    /**
+     * Number of bytes the keys and values may use before some are evicted, 0 for no quota.
+     * Eviction runs in the background after the write that exceeded the quota, and also when a write
+     * fails because the database reached {@link #getMaxDatabaseSize()}.
+     */
+    public long getQuota() {
+        return mQuota;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return mEvictionPolicy;
+    }
+
+    /**
+     * Key prefixes whose keys may be evicted. If empty, any key may be evicted with
+     * {@link EvictionPolicy#LRU}, and none with {@link EvictionPolicy#NAMESPACE}.
+     */
+    public List<String> getEvictableNamespaces() {
+        return mEvictableNamespaces;
+    }
+
+    /**
+     * How often keys whose time to live has passed are deleted, 0 to never delete them. Expired keys
+     * are never returned, whether they are deleted yet or not.
+     */
+    public long getExpirySweepIntervalMs() {
+        return mExpirySweepIntervalMs;
+    }
+
+    /**
+     * Whether operations are measured, for the getStats method and the metrics listener. Setting a
+     * listener enables metrics.
+     */
+    public boolean isMetricsEnabled() {
+        return mMetricsEnabled || mMetricsListener != null;
+    }
+
+    public @Nullable StateXMetricsListener getMetricsListener() {
+        return mMetricsListener;
+    }
+
+    /**
+     * Keys loaded into the read cache in the background when the module starts, so that the first
+     * reads of them don't wait for the database. Preloading stops once the cache is full.
+     */
+    public List<String> getPreloadKeys() {
+        return mPreloadKeys;
+    }
+
+    /**
+     * Prefixes whose keys are preloaded like {@link #getPreloadKeys()}.
+     */
+    public List<String> getPreloadPrefixes() {
+        return mPreloadPrefixes;
+    }
+
+    /**
+     * How long after the module starts the keys read are recorded, to be preloaded on the next
+     * start, 0 to record none.
+     */
+    public long getStartupKeyRecordingWindowMs() {
+        return mStartupKeyRecordingWindowMs;
+    }
+
+    /**
+     * Key prefixes whose keys are stored in a database of their own, written in parallel with the
+     * others in write-ahead logging mode and cleared at once. Keys go to the longest namespace they
+     * start with, other keys to the default database.
+     */
+    public List<String> getShardedNamespaces() {
+        return mShardedNamespaces;
+    }
+
+    /**
+     * Whether each committed transaction emits a StateXChanged device event with the changed keys
+     * and their new values, so that JS doesn't have to read them back after a notification.
+     */
+    public boolean isChangeFeedEnabled() {
+        return mChangeFeedEnabled;
+    }
+
+    /**
+     * Maximum total length of the keys and values of a change feed event. Beyond it, the event only
+     * carries the keys. 0 to never send values.
+     */
+    public int getChangeFeedMaxPayloadSize() {
+        return mChangeFeedMaxPayloadSize;
+    }
+
+    /**
+     * Maximum number of calls of each priority, interactive reads, writes and bulk scans, that can
+     * be waiting or running at once. Further calls fail right away with a "Too Many Pending Calls"
+     * error, rather than queueing without bound.
+     */
+    public int getMaxPendingCalls() {
+        return mMaxPendingCalls;
+    }
+
+    public static class Builder {
+        private long mReadCacheSize = DEFAULT_READ_CACHE_SIZE;
+        private long mWriteCoalescingWindowMs = DEFAULT_WRITE_COALESCING_WINDOW_MS;
+        private int mMaxWriteBatchSize = DEFAULT_MAX_WRITE_BATCH_SIZE;
+        private boolean mWriteAheadLoggingEnabled = false;
+        private int mReaderThreadCount = DEFAULT_READER_THREAD_COUNT;
+        private long mNotificationWindowMs = DEFAULT_NOTIFICATION_WINDOW_MS;
+        private boolean mPerKeyNotificationsEnabled = false;
+        private int mCompressionThreshold = 0;
+        private int mExternalValueThreshold = DEFAULT_EXTERNAL_VALUE_THRESHOLD;
+        private long mMaxDatabaseSize = DEFAULT_MAX_DATABASE_SIZE;
+        private long mQuota = 0;
+        private EvictionPolicy mEvictionPolicy = EvictionPolicy.LRU;
+        private List<String> mEvictableNamespaces = Collections.emptyList();
+        private long mExpirySweepIntervalMs = DEFAULT_EXPIRY_SWEEP_INTERVAL_MS;
+        private boolean mMetricsEnabled = false;
+        private @Nullable StateXMetricsListener mMetricsListener;
+        private List<String> mPreloadKeys = Collections.emptyList();
+        private List<String> mPreloadPrefixes = Collections.emptyList();
+        private long mStartupKeyRecordingWindowMs = 0;
+        private List<String> mShardedNamespaces = Collections.emptyList();
+        private boolean mChangeFeedEnabled = false;
+        private int mChangeFeedMaxPayloadSize = DEFAULT_CHANGE_FEED_MAX_PAYLOAD_SIZE;
+        private int mMaxPendingCalls = DEFAULT_MAX_PENDING_CALLS;
+
+        private Builder() {
+        }
+
+        public Builder setReadCacheSize(long bytes) {
+            if (bytes < 0 || bytes > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid read cache size: " + bytes);
+            }
+            mReadCacheSize = bytes;
+            return this;
+        }
+
+        public Builder setWriteCoalescingWindowMs(long windowMs) {
+            if (windowMs < 0) {
+                throw new IllegalArgumentException("Invalid write coalescing window: " + windowMs);
+            }
+            mWriteCoalescingWindowMs = windowMs;
+            return this;
+        }
+
+        public Builder setMaxWriteBatchSize(int batchSize) {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("Invalid write batch size: " + batchSize);
+            }
+            mMaxWriteBatchSize = batchSize;
+            return this;
+        }
+
+        public Builder setWriteAheadLoggingEnabled(boolean enabled) {
+            mWriteAheadLoggingEnabled = enabled;
+            return this;
+        }
+
+        public Builder setReaderThreadCount(int threadCount) {
+            if (threadCount < 1) {
+                throw new IllegalArgumentException("Invalid reader thread count: " + threadCount);
+            }
+            mReaderThreadCount = threadCount;
+            return this;
+        }
+
+        public Builder setNotificationWindowMs(long windowMs) {
+            if (windowMs < 0) {
+                throw new IllegalArgumentException("Invalid notification window: " + windowMs);
+            }
+            mNotificationWindowMs = windowMs;
+            return this;
+        }
+
+        public Builder setPerKeyNotificationsEnabled(boolean enabled) {
+            mPerKeyNotificationsEnabled = enabled;
+            return this;
+        }
+
+        public Builder setCompressionThreshold(int length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Invalid compression threshold: " + length);
+            }
+            mCompressionThreshold = length;
+            return this;
+        }
+
+        public Builder setExternalValueThreshold(int length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Invalid external value threshold: " + length);
+            }
+            mExternalValueThreshold = length;
+            return this;
+        }
+
+        public Builder setMaxDatabaseSize(long bytes) {
+            if (bytes <= 0) {
+                throw new IllegalArgumentException("Invalid maximum database size: " + bytes);
+            }
+            mMaxDatabaseSize = bytes;
+            return this;
+        }
+
+        public Builder setQuota(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("Invalid quota: " + bytes);
+            }
+            mQuota = bytes;
+            return this;
+        }
+
+        public Builder setEvictionPolicy(EvictionPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("Invalid eviction policy: null");
+            }
+            mEvictionPolicy = policy;
+            return this;
+        }
+
+        public Builder setEvictableNamespaces(String... prefixes) {
+            mEvictableNamespaces = checkKeys("evictable namespace", prefixes);
+            return this;
+        }
+
+        public Builder setExpirySweepIntervalMs(long intervalMs) {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("Invalid expiry sweep interval: " + intervalMs);
+            }
+            mExpirySweepIntervalMs = intervalMs;
+            return this;
+        }
+
+        public Builder setMetricsEnabled(boolean enabled) {
+            mMetricsEnabled = enabled;
+            return this;
+        }
+
+        public Builder setMetricsListener(@Nullable StateXMetricsListener listener) {
+            mMetricsListener = listener;
+            return this;
+        }
+
+        public Builder setPreloadKeys(String... keys) {
+            mPreloadKeys = checkKeys("preload key", keys);
+            return this;
+        }
+
+        public Builder setPreloadPrefixes(String... prefixes) {
+            mPreloadPrefixes = checkKeys("preload prefix", prefixes);
+            return this;
+        }
+
+        public Builder setStartupKeyRecordingWindowMs(long windowMs) {
+            if (windowMs < 0) {
+                throw new IllegalArgumentException("Invalid startup key recording window: " + windowMs);
+            }
+            mStartupKeyRecordingWindowMs = windowMs;
+            return this;
+        }
+
+        public Builder setShardedNamespaces(String... namespaces) {
+            mShardedNamespaces = checkKeys("sharded namespace", namespaces);
+            return this;
+        }
+
+        public Builder setChangeFeedEnabled(boolean enabled) {
+            mChangeFeedEnabled = enabled;
+            return this;
+        }
+
+        public Builder setChangeFeedMaxPayloadSize(int length) {
+            if (length < 0) {
+                throw new IllegalArgumentException("Invalid change feed payload size: " + length);
+            }
+            mChangeFeedMaxPayloadSize = length;
+            return this;
+        }
+
+        public Builder setMaxPendingCalls(int callCount) {
+            if (callCount < 1) {
+                throw new IllegalArgumentException("Invalid pending call count: " + callCount);
+            }
+            mMaxPendingCalls = callCount;
+            return this;
+        }
+
+        public StateXConfig build() {
+            return new StateXConfig(this);
+        }
+
+        private static List<String> checkKeys(String name, String[] keys) {
+            for (String key : keys) {
+                if (key == null || key.isEmpty()) {
+                    throw new IllegalArgumentException("Invalid " + name + ": " + key);
+                }
+            }
+            return Collections.unmodifiableList(Arrays.asList(keys.clone()));
+        }
+    }
+}
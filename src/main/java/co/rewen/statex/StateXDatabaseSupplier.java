@@ -18,63 +18,280 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import java.io.IOException;
+
 // VisibleForTesting
 public class StateXDatabaseSupplier extends SQLiteOpenHelper {
 
     // VisibleForTesting
     public static final String DATABASE_NAME = "StateXStorage";
 
-    private static final int DATABASE_VERSION = 1;
+    // Version 2: codec column, see StateXValueCodec.
+    // Version 3: size and accessed columns, usage table, see StateXEvictor.
+    // Version 4: expires column.
+    // Version 5: version column, sequence table.
+    private static final int DATABASE_VERSION = 5;
     private static final int SLEEP_TIME_MS = 30;
-    private static final long DEFAULT_MAX_DB_SIZE = 6L * 1024L * 1024L; // 6 MB in bytes
 
     static final String TABLE_STATE = "state";
     static final String KEY_COLUMN = "key";
     static final String VALUE_COLUMN = "value";
+    static final String CODEC_COLUMN = "codec";
+    // Bytes used by the key and the stored value, including its side file.
+    static final String SIZE_COLUMN = "size";
+    // Time of the last write or read of the key, in milliseconds since the epoch.
+    static final String ACCESSED_COLUMN = "accessed";
+    // Expiration time in milliseconds since the epoch, null if the key doesn't expire.
+    static final String EXPIRES_COLUMN = "expires";
+    // Version of the value, from the sequence table, which changes on every write of the key.
+    static final String VERSION_COLUMN = "version";
+
+    // Single row holding the sum of the sizes of all keys, maintained by triggers.
+    static final String TABLE_USAGE = "state_usage";
+    static final String USAGE_BYTES_COLUMN = "bytes";
+
+    // Single row holding the last version given to a value. Not dropped by recreate, so that
+    // versions never go back and a value read before a clear can't be mistaken for a newer one.
+    static final String TABLE_SEQUENCE = "state_sequence";
+    static final String SEQUENCE_VERSION_COLUMN = "version";
 
     static final String VERSION_TABLE_CREATE =
             "CREATE TABLE " + TABLE_STATE + " (" +
                     KEY_COLUMN + " TEXT PRIMARY KEY, " +
-                    VALUE_COLUMN + " TEXT NOT NULL" +
+                    VALUE_COLUMN + " TEXT NOT NULL, " +
+                    CODEC_COLUMN + " INTEGER NOT NULL DEFAULT 0, " +
+                    SIZE_COLUMN + " INTEGER NOT NULL DEFAULT 0, " +
+                    ACCESSED_COLUMN + " INTEGER NOT NULL DEFAULT 0, " +
+                    EXPIRES_COLUMN + " INTEGER, " +
+                    VERSION_COLUMN + " INTEGER NOT NULL DEFAULT 0" +
                     ")";
 
+    // Selection of the keys that have not expired, the current time has to be bound to it.
+    static final String NOT_EXPIRED_SELECTION =
+            "(" + EXPIRES_COLUMN + " IS NULL OR " + EXPIRES_COLUMN + " > ?)";
+
     private Context mContext;
-    private @Nullable SQLiteDatabase mDb;
+    private final String mName;
+    private final long mMaxDatabaseSize;
+    private final StateXValueCodec mValueCodec;
+    private final StateXMetrics mMetrics;
+    private volatile @Nullable SQLiteDatabase mDb;
 
     public StateXDatabaseSupplier(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, false);
+    }
+
+    /**
+     * @param writeAheadLogging open the database in write-ahead logging mode, which lets readers
+     *     use their own connections while a write is in progress
+     */
+    public StateXDatabaseSupplier(Context context, boolean writeAheadLogging) {
+        this(context, writeAheadLogging, StateXConfig.defaults(), StateXMetrics.DISABLED);
+    }
+
+    /* package */ StateXDatabaseSupplier(
+            Context context,
+            boolean writeAheadLogging,
+            StateXConfig config,
+            StateXMetrics metrics) {
+        this(context, DATABASE_NAME, writeAheadLogging, config, metrics);
+    }
+
+    /**
+     * Opens a database of another name, with its own directory of value files.
+     */
+    /* package */ StateXDatabaseSupplier(
+            Context context,
+            String name,
+            boolean writeAheadLogging,
+            StateXConfig config,
+            StateXMetrics metrics) {
+        super(context, name, null, DATABASE_VERSION);
         mContext = context;
+        mName = name;
+        mMetrics = metrics;
+        mMaxDatabaseSize = config.getMaxDatabaseSize();
+        mValueCodec = new StateXValueCodec(
+                config.getCompressionThreshold(),
+                config.getExternalValueThreshold(),
+                new StateXValueFiles(
+                        context,
+                        DATABASE_NAME.equals(name) ?
+                                StateXValueFiles.DIRECTORY_NAME :
+                                name + "Values"));
+        setWriteAheadLoggingEnabled(writeAheadLogging);
+    }
+
+    /**
+     * Returns the codec of the values stored in this database.
+     */
+    /* package */ StateXValueCodec getValueCodec() {
+        return mValueCodec;
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(VERSION_TABLE_CREATE);
+        createUsageTracking(db);
+        createExpiresIndex(db);
+        createSequence(db);
     }
 
+    /**
+     * Migrates the schema one version at a time, keeping the stored values.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        if (oldVersion != newVersion) {
-            deleteDatabase();
-            onCreate(db);
+        if (oldVersion < 1) {
+            recreate(db);
+            return;
+        }
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_STATE + " ADD COLUMN " +
+                    CODEC_COLUMN + " INTEGER NOT NULL DEFAULT 0");
+        }
+        if (oldVersion < 3) {
+            db.execSQL("ALTER TABLE " + TABLE_STATE + " ADD COLUMN " +
+                    SIZE_COLUMN + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + TABLE_STATE + " ADD COLUMN " +
+                    ACCESSED_COLUMN + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("UPDATE " + TABLE_STATE + " SET " + SIZE_COLUMN + " = " +
+                    "length(CAST(" + KEY_COLUMN + " AS BLOB)) + " +
+                    "length(CAST(" + VALUE_COLUMN + " AS BLOB))");
+            updateExternalSizes(db);
+            createUsageTracking(db);
+        }
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE_STATE + " ADD COLUMN " + EXPIRES_COLUMN + " INTEGER");
+            createExpiresIndex(db);
+        }
+        if (oldVersion < 5) {
+            db.execSQL("ALTER TABLE " + TABLE_STATE + " ADD COLUMN " +
+                    VERSION_COLUMN + " INTEGER NOT NULL DEFAULT 0");
+            // Row ids are positive and unique, good enough as first versions.
+            db.execSQL("UPDATE " + TABLE_STATE + " SET " + VERSION_COLUMN + " = rowid");
+            createSequence(db);
+        }
+    }
+
+    /**
+     * A newer version of the app wrote the database, we can't know how to read it.
+     */
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        recreate(db);
+    }
+
+    /**
+     * Drops the tables and creates them again, empty.
+     */
+    /* package */ void recreate(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_STATE);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_USAGE);
+        onCreate(db);
+    }
+
+    /**
+     * Creates the usage table, initialized with the sizes of the existing keys, the triggers that
+     * keep it up to date and the index used to find the least recently used keys.
+     * INSERT OR REPLACE doesn't run delete triggers for the replaced row (recursive triggers are
+     * off), so the insert trigger subtracts the size of the row it replaces itself.
+     */
+    private static void createUsageTracking(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_USAGE + " (" +
+                USAGE_BYTES_COLUMN + " INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO " + TABLE_USAGE + " SELECT IFNULL(SUM(" + SIZE_COLUMN + "), 0) " +
+                "FROM " + TABLE_STATE);
+        db.execSQL("CREATE TRIGGER " + TABLE_STATE + "_usage_insert BEFORE INSERT ON " + TABLE_STATE +
+                " BEGIN UPDATE " + TABLE_USAGE + " SET " + USAGE_BYTES_COLUMN + " = " +
+                USAGE_BYTES_COLUMN + " + NEW." + SIZE_COLUMN + " - IFNULL((SELECT " + SIZE_COLUMN +
+                " FROM " + TABLE_STATE + " WHERE " + KEY_COLUMN + " = NEW." + KEY_COLUMN + "), 0); END");
+        db.execSQL("CREATE TRIGGER " + TABLE_STATE + "_usage_update AFTER UPDATE OF " + SIZE_COLUMN +
+                " ON " + TABLE_STATE + " BEGIN UPDATE " + TABLE_USAGE + " SET " + USAGE_BYTES_COLUMN +
+                " = " + USAGE_BYTES_COLUMN + " + NEW." + SIZE_COLUMN + " - OLD." + SIZE_COLUMN + "; END");
+        db.execSQL("CREATE TRIGGER " + TABLE_STATE + "_usage_delete AFTER DELETE ON " + TABLE_STATE +
+                " BEGIN UPDATE " + TABLE_USAGE + " SET " + USAGE_BYTES_COLUMN + " = " +
+                USAGE_BYTES_COLUMN + " - OLD." + SIZE_COLUMN + "; END");
+        db.execSQL("CREATE INDEX " + TABLE_STATE + "_" + ACCESSED_COLUMN + " ON " + TABLE_STATE +
+                " (" + ACCESSED_COLUMN + ")");
+    }
+
+    /**
+     * Creates the index the expiry sweeper finds the expired keys with.
+     */
+    private static void createExpiresIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX " + TABLE_STATE + "_" + EXPIRES_COLUMN + " ON " + TABLE_STATE +
+                " (" + EXPIRES_COLUMN + ")");
+    }
+
+    /**
+     * Creates the sequence table, if it doesn't exist yet, starting after the existing versions.
+     */
+    private static void createSequence(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SEQUENCE + " (" +
+                SEQUENCE_VERSION_COLUMN + " INTEGER NOT NULL)");
+        // An aggregate always returns a row, filter it in an outer query.
+        db.execSQL("INSERT INTO " + TABLE_SEQUENCE + " SELECT last FROM (SELECT IFNULL(MAX(" +
+                VERSION_COLUMN + "), 0) AS last FROM " + TABLE_STATE + ") " +
+                "WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_SEQUENCE + ")");
+    }
+
+    /**
+     * Counts the side files of externalized values in their sizes, rather than their references.
+     */
+    private void updateExternalSizes(SQLiteDatabase db) {
+        String[] columns = {KEY_COLUMN, VALUE_COLUMN};
+        Cursor cursor = db.query(
+                TABLE_STATE,
+                columns,
+                CODEC_COLUMN + " = " + StateXValueCodec.CODEC_EXTERNAL,
+                null,
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                long size = StateXValueCodec.utf8Length(cursor.getString(0)) +
+                        mValueCodec.getFiles().length(cursor.getString(1));
+                db.execSQL(
+                        "UPDATE " + TABLE_STATE + " SET " + SIZE_COLUMN + " = ? WHERE " +
+                                KEY_COLUMN + " = ?",
+                        new Object[] {size, cursor.getString(0)});
+            }
+        } finally {
+            cursor.close();
         }
     }
 
     /**
      * Verify the database exists and is open.
      */
-  /* package */ synchronized boolean ensureDatabase() {
+  /* package */ boolean ensureDatabase() {
+        SQLiteDatabase db = mDb;
+        if (db != null && db.isOpen()) {
+            return true;
+        }
+        return openDatabase();
+    }
+
+    private synchronized boolean openDatabase() {
         if (mDb != null && mDb.isOpen()) {
             return true;
         }
         // Sometimes retrieving the database fails. We do 2 retries: first without database deletion
         // and then with deletion.
         SQLiteException lastSQLiteException = null;
+        SQLiteDatabase db = null;
         for (int tries = 0; tries < 2; tries++) {
             try {
                 if (tries > 0) {
+                    mMetrics.onDatabaseOpenRetry();
                     deleteDatabase();
                 }
-                mDb = getWritableDatabase();
+                db = getWritableDatabase();
                 break;
             } catch (SQLiteException e) {
                 lastSQLiteException = e;
@@ -86,41 +303,60 @@ public class StateXDatabaseSupplier extends SQLiteOpenHelper {
                 Thread.currentThread().interrupt();
             }
         }
-        if (mDb == null) {
+        if (db == null) {
             throw lastSQLiteException;
         }
         // This is a sane limit to protect the user from the app storing too much data in the database.
         // This also protects the database from filling up the disk cache and becoming malformed
         // (endTransaction() calls will throw an exception, not rollback, and leave the db malformed).
-        mDb.setMaximumSize(DEFAULT_MAX_DB_SIZE);
+        db.setMaximumSize(mMaxDatabaseSize);
+        // Only publish the database once it is fully set up, readers don't take the lock.
+        mDb = db;
         return true;
     }
 
     /**
      * Create and/or open the database.
+     * In write-ahead logging mode, the returned database may be used by several threads at once.
      */
-  /* package */ synchronized SQLiteDatabase get() {
+  /* package */ SQLiteDatabase get() {
         ensureDatabase();
         return mDb;
     }
 
+    /* package */ synchronized void closeDatabase() {
+        close();
+        mDb = null;
+    }
+
     /* package */ synchronized boolean deleteDatabase() {
         if (mDb != null && mDb.isOpen()) {
             mDb.close();
             mDb = null;
         }
-        return mContext.deleteDatabase(DATABASE_NAME);
+        mValueCodec.getFiles().deleteAll();
+        return mContext.deleteDatabase(mName);
     }
 
-    public String getState(String key) {
-        String columns[] = {VALUE_COLUMN};
-        String args[] = {key};
-        Cursor cursor = getReadableDatabase().query(TABLE_STATE, columns, KEY_COLUMN + " = ?", args,
-                null, null, null);
-        if(cursor.moveToFirst()) {
-            return cursor.getString(0);
+    /**
+     * Reads the value of a key straight from this database, bypassing the read cache and the pending
+     * writes of the module.
+     * @deprecated use {@link StateXModule#getClient()}, which serves hot keys from memory
+     */
+    @Deprecated
+    public @Nullable String getState(String key) {
+        if (!ensureDatabase()) {
+            return null;
+        }
+        StateXValueFiles files = mValueCodec.getFiles();
+        files.beginRead();
+        try {
+            return AsyncLocalStorageUtil.getItemImpl(mDb, mValueCodec, key);
+        } catch (IOException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            return null;
+        } finally {
+            files.endRead();
         }
-        cursor.close();
-        return null;
     }
 }
@@ -0,0 +1,199 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static co.rewen.statex.AsyncLocalStorageUtil.MAX_SQL_KEYS;
+import static co.rewen.statex.StateXDatabaseSupplier.ACCESSED_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.KEY_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.SIZE_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.TABLE_STATE;
+import static co.rewen.statex.StateXDatabaseSupplier.TABLE_USAGE;
+import static co.rewen.statex.StateXDatabaseSupplier.USAGE_BYTES_COLUMN;
+
+/**
+ * Keeps the stored keys and values within the configured quota.
+ * <p/>
+ * The size of each key is stored with it and summed up by triggers, so checking the usage is a
+ * single row read. Writes store their time as the last access, reads are only recorded in memory
+ * and written with the next eviction run, so they don't cost a write each.
+ * <p/>
+ * An eviction run deletes keys, in the order of the {@link StateXConfig.EvictionPolicy}, until the
+ * usage is back under {@link #LOW_WATERMARK_PERCENT} of the quota, so that the next writes don't
+ * trigger another run right away. Each run deletes at most {@link #EVICTION_BATCH_SIZE} keys, to
+ * keep its transaction short.
+ */
+/* package */ class StateXEvictor {
+
+    private static final int LOW_WATERMARK_PERCENT = 90;
+    private static final int EVICTION_BATCH_SIZE = 256;
+    // Recorded reads beyond which an eviction run is requested just to write them.
+    private static final int MAX_PENDING_ACCESSES = 512;
+
+    private final long mQuota;
+    private final StateXConfig.EvictionPolicy mPolicy;
+    private final List<String> mNamespaces;
+    private HashMap<String, Long> mAccesses = new HashMap<>();
+
+    /* package */ StateXEvictor(StateXConfig config) {
+        mQuota = config.getQuota();
+        mPolicy = config.getEvictionPolicy();
+        mNamespaces = config.getEvictableNamespaces();
+    }
+
+    /* package */ boolean isEnabled() {
+        return mQuota > 0;
+    }
+
+    /**
+     * Records a read of the key.
+     * @return true if enough reads are recorded that they should be written
+     */
+    /* package */ synchronized boolean recordAccess(String key, long time) {
+        mAccesses.put(key, time);
+        return mAccesses.size() >= MAX_PENDING_ACCESSES;
+    }
+
+    /**
+     * Returns the number of bytes used by all keys and values.
+     */
+    /* package */ static long getUsage(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(
+                db,
+                "SELECT " + USAGE_BYTES_COLUMN + " FROM " + TABLE_USAGE,
+                null);
+    }
+
+    /**
+     * Writes the recorded reads, then deletes keys if the usage exceeds the quota.
+     * @param full whether a write failed because the database is full, in which case keys are
+     *     evicted even if the usage is within the quota
+     * @param evicted receives the evicted keys
+     * @return true if another run may evict more keys
+     */
+    /* package */ boolean run(SQLiteDatabase db, boolean full, List<String> evicted) {
+        writeAccesses(db);
+
+        long usage = getUsage(db);
+        if (!full && usage <= mQuota) {
+            return false;
+        }
+        long target = Math.min(usage, mQuota) * LOW_WATERMARK_PERCENT / 100;
+        Cursor cursor = queryCandidates(db);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            while (usage > target && cursor.moveToNext()) {
+                evicted.add(cursor.getString(0));
+                usage -= cursor.getLong(1);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (int keyStart = 0; keyStart < evicted.size(); keyStart += MAX_SQL_KEYS) {
+            int keyCount = Math.min(evicted.size() - keyStart, MAX_SQL_KEYS);
+            db.delete(
+                    TABLE_STATE,
+                    AsyncLocalStorageUtil.buildKeySelection(keyCount),
+                    evicted.subList(keyStart, keyStart + keyCount).toArray(new String[keyCount]));
+        }
+        return usage > target && !evicted.isEmpty();
+    }
+
+    private void writeAccesses(SQLiteDatabase db) {
+        HashMap<String, Long> accesses;
+        synchronized (this) {
+            if (mAccesses.isEmpty()) {
+                return;
+            }
+            accesses = mAccesses;
+            mAccesses = new HashMap<>();
+        }
+        // Writes may have stored a later time since the read.
+        SQLiteStatement statement = db.compileStatement(
+                "UPDATE " + TABLE_STATE + " SET " + ACCESSED_COLUMN + " = ? WHERE " +
+                        KEY_COLUMN + " = ? AND " + ACCESSED_COLUMN + " < ?");
+        try {
+            for (Map.Entry<String, Long> access : accesses.entrySet()) {
+                statement.clearBindings();
+                statement.bindLong(1, access.getValue());
+                statement.bindString(2, access.getKey());
+                statement.bindLong(3, access.getValue());
+                statement.execute();
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * Returns the keys and sizes of the keys to evict first, in eviction order, or null if no key
+     * may be evicted.
+     */
+    private @Nullable Cursor queryCandidates(SQLiteDatabase db) {
+        String[] columns = {KEY_COLUMN, SIZE_COLUMN};
+        String limit = String.valueOf(EVICTION_BATCH_SIZE);
+        if (mPolicy == StateXConfig.EvictionPolicy.NAMESPACE) {
+            // Keys of the first namespace that still has some.
+            for (String namespace : mNamespaces) {
+                Cursor cursor = AsyncLocalStorageUtil.scanImpl(
+                        db,
+                        columns,
+                        namespace,
+                        null,
+                        true,
+                        null,
+                        EVICTION_BATCH_SIZE);
+                if (cursor.getCount() > 0) {
+                    return cursor;
+                }
+                cursor.close();
+            }
+            return null;
+        }
+
+        StringBuilder selection = new StringBuilder();
+        ArrayList<String> selectionArgs = new ArrayList<>();
+        for (String namespace : mNamespaces) {
+            if (selection.length() > 0) {
+                selection.append(" OR ");
+            }
+            String upperBound = AsyncLocalStorageUtil.prefixUpperBound(namespace);
+            selection.append("(").append(KEY_COLUMN).append(" >= ?");
+            selectionArgs.add(namespace);
+            if (upperBound != null) {
+                selection.append(" AND ").append(KEY_COLUMN).append(" < ?");
+                selectionArgs.add(upperBound);
+            }
+            selection.append(")");
+        }
+        return db.query(
+                TABLE_STATE,
+                columns,
+                selection.length() > 0 ? selection.toString() : null,
+                selectionArgs.isEmpty() ? null : selectionArgs.toArray(new String[selectionArgs.size()]),
+                null,
+                null,
+                ACCESSED_COLUMN,
+                limit);
+    }
+}
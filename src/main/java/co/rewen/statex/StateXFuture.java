@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link Future} completed by a read or a write of {@link StateXClient} once it has run. It can't
+ * be cancelled, since a write may be committed together with others by then.
+ */
+/* package */ class StateXFuture<V> implements Future<V> {
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private @Nullable V mValue;
+    private @Nullable Exception mError;
+
+    /* package */ void set(@Nullable V value) {
+        mValue = value;
+        mDone.countDown();
+    }
+
+    /* package */ void setError(Exception error) {
+        mError = error;
+        mDone.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mValue;
+    }
+}
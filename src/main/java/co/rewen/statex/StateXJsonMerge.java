@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * JSON merge patch (RFC 7396) of a stored value.
+ * <p/>
+ * Only the patch is parsed into objects. The stored document is streamed from a {@link JsonReader}
+ * to a {@link JsonWriter}: members the patch doesn't touch are copied token by token, so the cost of
+ * merging a small patch into a large document is a single pass without building its tree.
+ * <p/>
+ * Members of the patch replace or, when both are objects, are merged into the members of the stored
+ * object. New members are appended in patch order. A null member removes the member. A patch that
+ * isn't a single well-formed JSON value is rejected.
+ */
+/* package */ class StateXJsonMerge {
+
+    /**
+     * Returns the result of merging the patch into the target, which may be absent.
+     */
+    /* package */ static String apply(@Nullable String target, String patch) throws JSONException {
+        checkWellFormed(patch);
+        Object patchValue = new JSONTokener(patch).nextValue();
+        if (!(patchValue instanceof JSONObject)) {
+            // A patch that is not an object replaces the target.
+            return patch;
+        }
+        JSONObject patchObject = (JSONObject) patchValue;
+        if (target == null && !containsNull(patchObject)) {
+            return patch;
+        }
+
+        StringWriter out = new StringWriter(
+                (target != null ? target.length() : 0) + patch.length());
+        JsonWriter writer = new JsonWriter(out);
+        try {
+            if (target != null && isObject(target)) {
+                mergeObject(new JsonReader(new StringReader(target)), writer, patchObject);
+            } else {
+                // A target that is missing or not an object is replaced by the patch, without its
+                // null members.
+                writeValue(writer, patchObject, true);
+            }
+            writer.flush();
+        } catch (IOException | IllegalStateException e) {
+            throw new JSONException(e.getMessage());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Throws unless the text is exactly one well-formed JSON value. {@link JSONTokener} is lenient:
+     * it takes an unquoted word for a string and ignores what follows the value.
+     */
+    private static void checkWellFormed(String json) throws JSONException {
+        // A strict JsonReader only reads objects and arrays as documents, wrap the value in one.
+        JsonReader reader = new JsonReader(new StringReader("[" + json + "]"));
+        try {
+            reader.beginArray();
+            if (!reader.hasNext()) {
+                throw new JSONException("Missing value");
+            }
+            checkValue(reader);
+            if (reader.hasNext()) {
+                throw new JSONException("Unexpected data after the value");
+            }
+            reader.endArray();
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JSONException("Unexpected data after the value");
+            }
+        } catch (IOException | IllegalStateException e) {
+            throw new JSONException(e.getMessage());
+        }
+    }
+
+    private static void checkValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    checkValue(reader);
+                }
+                reader.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    checkValue(reader);
+                }
+                reader.endArray();
+                break;
+            case STRING:
+            case NUMBER:
+                reader.nextString();
+                break;
+            case BOOLEAN:
+                reader.nextBoolean();
+                break;
+            case NULL:
+                reader.nextNull();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek());
+        }
+    }
+
+    private static void mergeObject(JsonReader reader, JsonWriter writer, JSONObject patch)
+            throws IOException, JSONException {
+        HashSet<String> patched = new HashSet<>();
+        reader.beginObject();
+        writer.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            Object patchValue = patch.opt(name);
+            if (patchValue == null) {
+                writer.name(name);
+                copyValue(reader, writer);
+                continue;
+            }
+            patched.add(name);
+            if (patchValue == JSONObject.NULL) {
+                reader.skipValue();
+            } else if (patchValue instanceof JSONObject && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                writer.name(name);
+                mergeObject(reader, writer, (JSONObject) patchValue);
+            } else {
+                reader.skipValue();
+                writer.name(name);
+                writeValue(writer, patchValue, true);
+            }
+        }
+        Iterator<String> names = patch.keys();
+        while (names.hasNext()) {
+            String name = names.next();
+            Object patchValue = patch.get(name);
+            if (!patched.contains(name) && patchValue != JSONObject.NULL) {
+                writer.name(name);
+                writeValue(writer, patchValue, true);
+            }
+        }
+        reader.endObject();
+        writer.endObject();
+    }
+
+    /**
+     * Copies the next value of the reader, keeping number literals as they are.
+     */
+    private static void copyValue(JsonReader reader, JsonWriter writer) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                reader.beginObject();
+                writer.beginObject();
+                while (reader.hasNext()) {
+                    writer.name(reader.nextName());
+                    copyValue(reader, writer);
+                }
+                reader.endObject();
+                writer.endObject();
+                break;
+            case BEGIN_ARRAY:
+                reader.beginArray();
+                writer.beginArray();
+                while (reader.hasNext()) {
+                    copyValue(reader, writer);
+                }
+                reader.endArray();
+                writer.endArray();
+                break;
+            case STRING:
+                writer.value(reader.nextString());
+                break;
+            case NUMBER:
+                writer.value(new NumberLiteral(reader.nextString()));
+                break;
+            case BOOLEAN:
+                writer.value(reader.nextBoolean());
+                break;
+            case NULL:
+                reader.nextNull();
+                writer.nullValue();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected token " + reader.peek());
+        }
+    }
+
+    /**
+     * Writes a value of the patch.
+     * @param stripNulls whether to leave out null members of objects, which is the case for the
+     *     objects merged into a missing or non-object member. Arrays are never merged, so the objects
+     *     they contain are written as they are.
+     */
+    private static void writeValue(JsonWriter writer, Object value, boolean stripNulls)
+            throws IOException, JSONException {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writer.beginObject();
+            Iterator<String> names = object.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                Object member = object.get(name);
+                if (member != JSONObject.NULL || !stripNulls) {
+                    writer.name(name);
+                    writeValue(writer, member, stripNulls);
+                }
+            }
+            writer.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            writer.beginArray();
+            for (int idx = 0; idx < array.length(); idx++) {
+                writeValue(writer, array.get(idx), false);
+            }
+            writer.endArray();
+        } else if (value instanceof Number) {
+            writer.value(new NumberLiteral(JSONObject.numberToString((Number) value)));
+        } else if (value instanceof Boolean) {
+            writer.value((Boolean) value);
+        } else if (value == JSONObject.NULL) {
+            writer.nullValue();
+        } else {
+            writer.value(value.toString());
+        }
+    }
+
+    private static boolean isObject(String json) {
+        for (int idx = 0; idx < json.length(); idx++) {
+            char c = json.charAt(idx);
+            if (!Character.isWhitespace(c)) {
+                return c == '{';
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsNull(JSONObject object) throws JSONException {
+        Iterator<String> names = object.keys();
+        while (names.hasNext()) {
+            Object member = object.get(names.next());
+            if (member == JSONObject.NULL ||
+                    (member instanceof JSONObject && containsNull((JSONObject) member))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A number written exactly as it was read. {@link JsonWriter#value(Number)} writes the
+     * {@link #toString()} of the number.
+     */
+    private static class NumberLiteral extends Number {
+        private final String mLiteral;
+
+        NumberLiteral(String literal) {
+            mLiteral = literal;
+        }
+
+        @Override
+        public int intValue() {
+            return (int) doubleValue();
+        }
+
+        @Override
+        public long longValue() {
+            return (long) doubleValue();
+        }
+
+        @Override
+        public float floatValue() {
+            return (float) doubleValue();
+        }
+
+        @Override
+        public double doubleValue() {
+            return Double.parseDouble(mLiteral);
+        }
+
+        @Override
+        public String toString() {
+            return mLiteral;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counters and latency histograms of the storage operations.
+ * <p/>
+ * Each call takes a {@link Sample} from {@link #begin} when it is submitted, and marks on it when
+ * it starts executing, when it starts marshalling its result and when it ends. When metrics are
+ * disabled, {@link #begin} returns a shared sample whose methods return right away, without reading
+ * the clock, so instrumented code costs a few predictable branches.
+ */
+/* package */ class StateXMetrics {
+
+    /* package */ static final StateXMetrics DISABLED = new StateXMetrics(false, null);
+
+    private final boolean mEnabled;
+    private final @Nullable StateXMetricsListener mListener;
+    private final HashMap<String, OperationStats> mOperations = new HashMap<>();
+    private final Histogram mTransactions = new Histogram();
+    private long mTransactionWrites;
+    private long mRolledBackTransactions;
+    private long mDatabaseOpenRetries;
+
+    /* package */ StateXMetrics(boolean enabled, @Nullable StateXMetricsListener listener) {
+        mEnabled = enabled || listener != null;
+        mListener = listener;
+    }
+
+    /* package */ boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Starts measuring a call of the given operation.
+     */
+    /* package */ Sample begin(String operation) {
+        if (!mEnabled) {
+            return Sample.DISABLED;
+        }
+        OperationStats stats;
+        synchronized (mOperations) {
+            stats = mOperations.get(operation);
+            if (stats == null) {
+                stats = new OperationStats(operation);
+                mOperations.put(operation, stats);
+            }
+        }
+        return new Sample(this, stats);
+    }
+
+    /**
+     * Records a transaction of the write queue.
+     * @param startNanos the {@link System#nanoTime()} at which the transaction began
+     */
+    /* package */ void onTransaction(int writeCount, long startNanos, boolean committed) {
+        if (!mEnabled) {
+            return;
+        }
+        long durationNanos = System.nanoTime() - startNanos;
+        synchronized (mTransactions) {
+            mTransactions.record(durationNanos);
+            mTransactionWrites += writeCount;
+            if (!committed) {
+                mRolledBackTransactions++;
+            }
+        }
+        if (mListener != null) {
+            mListener.onTransaction(writeCount, durationNanos, committed);
+        }
+    }
+
+    /* package */ void onDatabaseOpenRetry() {
+        if (!mEnabled) {
+            return;
+        }
+        synchronized (mTransactions) {
+            mDatabaseOpenRetries++;
+        }
+        if (mListener != null) {
+            mListener.onDatabaseOpenRetry();
+        }
+    }
+
+    /**
+     * Returns a snapshot of all counters and histograms.
+     */
+    /* package */ WritableMap toMap() {
+        WritableMap map = Arguments.createMap();
+        map.putBoolean("enabled", mEnabled);
+        WritableMap operations = Arguments.createMap();
+        synchronized (mOperations) {
+            for (Map.Entry<String, OperationStats> entry : mOperations.entrySet()) {
+                operations.putMap(entry.getKey(), entry.getValue().toMap());
+            }
+        }
+        map.putMap("operations", operations);
+        WritableMap transactions;
+        synchronized (mTransactions) {
+            transactions = mTransactions.toMap();
+            transactions.putDouble("writes", mTransactionWrites);
+            transactions.putDouble("rolledBack", mRolledBackTransactions);
+            map.putDouble("databaseOpenRetries", mDatabaseOpenRetries);
+        }
+        map.putMap("transactions", transactions);
+        return map;
+    }
+
+    /**
+     * Measures one call of an operation. Not thread-safe, but a call may move from thread to thread
+     * as long as the hand-off happens-before the next mark, which executors guarantee.
+     */
+    /* package */ static class Sample {
+        private static final Sample DISABLED = new Sample(null, null);
+
+        private final @Nullable StateXMetrics mMetrics;
+        private final @Nullable OperationStats mStats;
+        private final long mSubmitTime;
+        private long mExecuteTime;
+        private long mMarshalTime;
+        private int mKeyCount;
+        private long mBytesRead;
+        private long mBytesWritten;
+
+        private Sample(@Nullable StateXMetrics metrics, @Nullable OperationStats stats) {
+            mMetrics = metrics;
+            mStats = stats;
+            mSubmitTime = stats != null ? System.nanoTime() : 0;
+        }
+
+        /**
+         * Marks the start of the execution. Only the first call counts, when a write is retried.
+         */
+        /* package */ void executing() {
+            if (mStats != null && mExecuteTime == 0) {
+                mExecuteTime = System.nanoTime();
+            }
+        }
+
+        /* package */ void marshalling() {
+            if (mStats != null) {
+                mMarshalTime = System.nanoTime();
+            }
+        }
+
+        /* package */ void keys(int count) {
+            if (mStats != null) {
+                mKeyCount += count;
+            }
+        }
+
+        /* package */ void read(@Nullable String value) {
+            if (mStats != null && value != null) {
+                mBytesRead += StateXValueCodec.utf8Length(value);
+            }
+        }
+
+        /* package */ void written(@Nullable String value) {
+            if (mStats != null && value != null) {
+                mBytesWritten += StateXValueCodec.utf8Length(value);
+            }
+        }
+
+        /* package */ void end(boolean success) {
+            if (mStats == null) {
+                return;
+            }
+            long endTime = System.nanoTime();
+            long executeTime = mExecuteTime != 0 ? mExecuteTime : mSubmitTime;
+            long marshalTime = mMarshalTime != 0 ? mMarshalTime : endTime;
+            long queueNanos = executeTime - mSubmitTime;
+            long executeNanos = Math.max(0, marshalTime - executeTime);
+            long marshalNanos = endTime - marshalTime;
+            mStats.record(
+                    success,
+                    queueNanos,
+                    executeNanos,
+                    marshalNanos,
+                    mKeyCount,
+                    mBytesRead,
+                    mBytesWritten);
+            StateXMetricsListener listener = mMetrics.mListener;
+            if (listener != null) {
+                listener.onOperation(
+                        mStats.mName,
+                        success,
+                        queueNanos,
+                        executeNanos,
+                        marshalNanos,
+                        mKeyCount,
+                        mBytesRead,
+                        mBytesWritten);
+            }
+        }
+    }
+
+    private static class OperationStats {
+        private final String mName;
+        private long mCount;
+        private long mErrorCount;
+        private long mKeyCount;
+        private long mMaxKeyCount;
+        private long mBytesRead;
+        private long mBytesWritten;
+        private final Histogram mQueue = new Histogram();
+        private final Histogram mExecute = new Histogram();
+        private final Histogram mMarshal = new Histogram();
+
+        OperationStats(String name) {
+            mName = name;
+        }
+
+        synchronized void record(
+                boolean success,
+                long queueNanos,
+                long executeNanos,
+                long marshalNanos,
+                int keyCount,
+                long bytesRead,
+                long bytesWritten) {
+            mCount++;
+            if (!success) {
+                mErrorCount++;
+            }
+            mKeyCount += keyCount;
+            mMaxKeyCount = Math.max(mMaxKeyCount, keyCount);
+            mBytesRead += bytesRead;
+            mBytesWritten += bytesWritten;
+            mQueue.record(queueNanos);
+            mExecute.record(executeNanos);
+            mMarshal.record(marshalNanos);
+        }
+
+        synchronized WritableMap toMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", mCount);
+            map.putDouble("errors", mErrorCount);
+            map.putDouble("keys", mKeyCount);
+            map.putDouble("maxKeysPerCall", mMaxKeyCount);
+            map.putDouble("bytesRead", mBytesRead);
+            map.putDouble("bytesWritten", mBytesWritten);
+            map.putMap("queue", mQueue.toMap());
+            map.putMap("execute", mExecute.toMap());
+            map.putMap("marshal", mMarshal.toMap());
+            return map;
+        }
+    }
+
+    /**
+     * Histogram of durations with power of two buckets, from 1 microsecond to over a minute.
+     * Percentiles are reported as the upper bound of their bucket.
+     */
+    private static class Histogram {
+        private static final int BUCKET_COUNT = 28;
+
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        void record(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+        }
+
+        private double percentileMs(double fraction) {
+            long rank = (long) Math.ceil(mCount * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                seen += mBuckets[bucket];
+                if (seen >= rank && seen > 0) {
+                    // Bucket n holds durations below 2^n microseconds.
+                    return Math.min((1L << bucket) / 1000.0, mMaxNanos / 1000000.0);
+                }
+            }
+            return mMaxNanos / 1000000.0;
+        }
+
+        WritableMap toMap() {
+            WritableMap map = Arguments.createMap();
+            map.putDouble("count", mCount);
+            map.putDouble("totalMs", mTotalNanos / 1000000.0);
+            map.putDouble("maxMs", mMaxNanos / 1000000.0);
+            map.putDouble("p50Ms", percentileMs(0.5));
+            map.putDouble("p90Ms", percentileMs(0.9));
+            map.putDouble("p99Ms", percentileMs(0.99));
+            return map;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+/**
+ * Receives the measurements of the storage operations, see
+ * {@link StateXConfig.Builder#setMetricsListener}. Methods are called on the threads running the
+ * operations and should return quickly.
+ */
+public interface StateXMetricsListener {
+    /**
+     * Called when an operation, named after the {@link StateXModule} method, has completed.
+     * @param queueNanos time from the call until the operation started running
+     * @param executeNanos time spent reading or writing the database, including the commit
+     * @param marshalNanos time spent building the result and invoking the callback
+     * @param keyCount number of keys read or written
+     */
+    void onOperation(
+            String operation,
+            boolean success,
+            long queueNanos,
+            long executeNanos,
+            long marshalNanos,
+            int keyCount,
+            long bytesRead,
+            long bytesWritten);
+
+    /**
+     * Called when a transaction of the write queue has ended.
+     * @param writeCount number of operations committed together
+     */
+    void onTransaction(int writeCount, long durationNanos, boolean committed);
+
+    /**
+     * Called when opening the database failed and is retried.
+     */
+    void onDatabaseOpenRetry();
+}
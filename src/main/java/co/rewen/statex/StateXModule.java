@@ -11,46 +11,160 @@ package co.rewen.statex;
  */
 
 
-import android.content.Intent;
-import android.database.Cursor;
-import android.database.sqlite.SQLiteStatement;
-import android.net.Uri;
-import android.support.v4.content.LocalBroadcastManager;
+import javax.annotation.Nullable;
 
 import com.facebook.common.logging.FLog;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.bridge.Callback;
-import com.facebook.react.bridge.GuardedAsyncTask;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.bridge.ReactContextBaseJavaModule;
 import com.facebook.react.bridge.ReactMethod;
 import com.facebook.react.bridge.ReadableArray;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.common.ReactConstants;
-import com.facebook.react.common.SetBuilder;
 import com.facebook.react.modules.common.ModuleDataCleaner;
+import com.facebook.react.modules.core.DeviceEventManagerModule;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import org.json.JSONException;
 
-import static co.rewen.statex.StateXDatabaseSupplier.KEY_COLUMN;
-import static co.rewen.statex.StateXDatabaseSupplier.TABLE_STATE;
-import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public final class StateXModule
         extends ReactContextBaseJavaModule implements ModuleDataCleaner.Cleanable {
 
-    // SQL variable number limit, defined by SQLITE_LIMIT_VARIABLE_NUMBER:
-    // https://raw.githubusercontent.com/android/platform_external_sqlite/master/dist/sqlite3.c
-    private static final int MAX_SQL_KEYS = 999;
+    /* package */ static final String EVENT_EXPORT = "StateXExport";
+    /**
+     * Returned by {@link #getCachedItem} when the value isn't in memory, exported to JS as
+     * CACHE_MISS. Starts with a NUL character, which no app should store as a value.
+     */
+    public static final String CACHE_MISS = "\u0000StateXCacheMiss";
+    private static final int DEFAULT_EXPORT_CHUNK_SIZE = 500;
+    // Expired keys deleted per transaction, so that the sweeper never holds the writer for long.
+    private static final int EXPIRY_SWEEP_BATCH_SIZE = 256;
 
-    private StateXDatabaseSupplier mStateXDatabaseSupplier;
+    private final StateXShards mShards;
+    private final StateXCache mCache;
+    private final StateXNotifier mNotifier;
+    private final StateXMetrics mMetrics;
+    private final StateXWarmup mWarmup;
+    private final long mExpirySweepIntervalMs;
+    private @Nullable ScheduledExecutorService mExpirySweeper;
+    private final StateXScheduler mScheduler;
+    private final StateXClient mClient;
     private boolean mShuttingDown = false;
 
     public StateXModule(ReactApplicationContext reactContext) {
+        this(reactContext, StateXConfig.defaults());
+    }
+
+    public StateXModule(ReactApplicationContext reactContext, StateXConfig config) {
+        this(reactContext, config, StorageEngine.Type.SQLITE);
+    }
+
+    public StateXModule(
+            ReactApplicationContext reactContext,
+            StateXConfig config,
+            StorageEngine.Type engineType) {
         super(reactContext);
-        mStateXDatabaseSupplier = new StateXDatabaseSupplier(reactContext);
+        mMetrics = new StateXMetrics(config.isMetricsEnabled(), config.getMetricsListener());
+        // In write-ahead logging mode, reads run in parallel with each other and with the writes of
+        // each shard. Otherwise the database serializes them, and the second thread only keeps
+        // cached reads and writes from waiting behind a scan.
+        mScheduler = new StateXScheduler(
+                reactContext,
+                config.isWriteAheadLoggingEnabled() ? config.getReaderThreadCount() + 1 : 2,
+                config.getMaxPendingCalls());
+        StateXShards.Shard defaultShard = createShard(reactContext, null, engineType, config);
+        ArrayList<StateXShards.Shard> namespaceShards = new ArrayList<>();
+        for (String namespace : config.getShardedNamespaces()) {
+            namespaceShards.add(createShard(reactContext, namespace, engineType, config));
+        }
+        mShards = new StateXShards(defaultShard, namespaceShards);
+        mCache = new StateXCache(config.getReadCacheSize());
+        mWarmup = new StateXWarmup(reactContext, config);
+        mExpirySweepIntervalMs = config.getExpirySweepIntervalMs();
+        mNotifier = new StateXNotifier(
+                reactContext,
+                config.getNotificationWindowMs(),
+                config.isPerKeyNotificationsEnabled());
+        mClient = new StateXClient(this, mShards, mCache, mMetrics, mScheduler);
+    }
+
+    /**
+     * Creates the storage engine and the write queue of a shard, whose writes run one at a time on
+     * the scheduler, in parallel with the writes of other shards.
+     * @param namespace namespace of the shard, or null for the default shard
+     */
+    private StateXShards.Shard createShard(
+            ReactApplicationContext reactContext,
+            @Nullable String namespace,
+            StorageEngine.Type engineType,
+            StateXConfig config) {
+        StorageEngine engine;
+        switch (engineType) {
+            case LOG_STRUCTURED:
+                engine = new LogStructuredStorageEngine(
+                        reactContext,
+                        namespace == null ?
+                                LogStructuredStorageEngine.DIRECTORY_NAME :
+                                StateXShards.fileName(LogStructuredStorageEngine.DIRECTORY_NAME, namespace));
+                break;
+            default:
+                engine = new SQLiteStorageEngine(
+                        reactContext,
+                        namespace == null ?
+                                StateXDatabaseSupplier.DATABASE_NAME :
+                                StateXShards.fileName(StateXDatabaseSupplier.DATABASE_NAME, namespace),
+                        config.isWriteAheadLoggingEnabled(),
+                        config,
+                        mMetrics);
+        }
+        final StateXShards.Shard shard = new StateXShards.Shard(
+                namespace,
+                engine,
+                new StateXChangeFeed(reactContext, config));
+        shard.setWriteQueue(new StateXWriteQueue(
+                new StateXWriteQueue.EngineProvider() {
+                    @Override
+                    public @Nullable StorageEngine getEngine() {
+                        return ensureDatabase(shard) ? shard.getEngine() : null;
+                    }
+
+                    @Override
+                    public void onStorageFull() {
+                        evict(shard, true);
+                    }
+
+                    @Override
+                    public void onTransactionCompleted() {
+                        shard.getChangeFeed().flush();
+                    }
+                },
+                mScheduler.newSerialExecutor(StateXScheduler.Priority.WRITE),
+                config.getWriteCoalescingWindowMs(),
+                config.getMaxWriteBatchSize(),
+                mMetrics));
+        return shard;
+    }
+
+    /**
+     * Returns the client through which native code reads and writes this module's storage without
+     * going through JS, sharing its read cache and notifications.
+     */
+    public StateXClient getClient() {
+        return mClient;
     }
 
     @Override
@@ -58,15 +172,69 @@ public final class StateXModule
         return "StateX";
     }
 
+    @Override
+    public Map<String, Object> getConstants() {
+        HashMap<String, Object> constants = new HashMap<>();
+        constants.put("CACHE_MISS", CACHE_MISS);
+        return constants;
+    }
+
     @Override
     public void initialize() {
         super.initialize();
         mShuttingDown = false;
+        StateXProvider.attach(mClient);
+        // Open the storage and preload keys off the critical path of the first reads. On the
+        // scheduler, so that the storage only closes once it is done.
+        mScheduler.execute(StateXScheduler.Priority.BULK, new Runnable() {
+            @Override
+            public void run() {
+                mWarmup.run(mShards, mCache, mMetrics);
+            }
+        });
+        // Collect the storage left behind by writes that never committed.
+        for (StateXShards.Shard shard : mShards.getAll()) {
+            collectGarbage(shard);
+        }
+        if (mExpirySweepIntervalMs > 0 && mExpirySweeper == null) {
+            mExpirySweeper = Executors.newSingleThreadScheduledExecutor(
+                    new StateXThreadFactory("StateXExpirySweeper"));
+            mExpirySweeper.scheduleWithFixedDelay(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            for (StateXShards.Shard shard : mShards.getAll()) {
+                                sweepExpired(shard);
+                            }
+                        }
+                    },
+                    mExpirySweepIntervalMs,
+                    mExpirySweepIntervalMs,
+                    TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void onCatalystInstanceDestroy() {
         mShuttingDown = true;
+        StateXProvider.detach(mClient);
+        mWarmup.stopRecording();
+        if (mExpirySweeper != null) {
+            mExpirySweeper.shutdownNow();
+            mExpirySweeper = null;
+        }
+        for (StateXShards.Shard shard : mShards.getAll()) {
+            shard.getWriteQueue().close();
+        }
+        // The writes just submitted commit before the threads stop and the storage closes.
+        mScheduler.shutdown(new Runnable() {
+            @Override
+            public void run() {
+                for (StateXShards.Shard shard : mShards.getAll()) {
+                    shard.getEngine().close();
+                }
+            }
+        });
     }
 
     @Override
@@ -83,7 +251,12 @@ public final class StateXModule
                             return;
                         }
                         // Clearing the database has failed, delete it instead.
-                        if (mStateXDatabaseSupplier.deleteDatabase()) {
+                        mCache.clear();
+                        boolean deleted = true;
+                        for (StateXShards.Shard shard : mShards.getAll()) {
+                            deleted &= shard.getEngine().delete();
+                        }
+                        if (deleted) {
                             FLog.d(ReactConstants.TAG, "Deleted Local Database StateX.");
                             return;
                         }
@@ -95,7 +268,11 @@ public final class StateXModule
 
     /**
      * Given an array of keys, this returns a map of (key, value) pairs for the keys found, and
-     * (key, null) for the keys that haven't been found.
+     * (key, null) for the keys that haven't been found, in the order of the given keys.
+     * Found keys come as (key, value, null, version): the null stands for the time to live of
+     * {@link #multiSet}, which ignores the version, so rows can be written back as they are.
+     * Keys found in the read cache are served without querying the database, or even waiting for
+     * it to open if they all are.
      */
     @ReactMethod
     public void multiGet(final ReadableArray keys, final Callback callback) {
@@ -104,71 +281,154 @@ public final class StateXModule
             return;
         }
 
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
+        final StateXMetrics.Sample sample = mMetrics.begin("multiGet");
+        final ArrayList<String> keyList = StateX.toStringArray(keys);
+        final Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keyList);
+        final ArrayList<StateXShards.Shard> shards = new ArrayList<>(partition.keySet());
+        Runnable read = new Runnable() {
             @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!ensureDatabase()) {
-                    callback.invoke(AsyncStorageErrorUtil.getDBError(null), null);
-                    return;
-                }
+            public void run() {
+                sample.executing();
 
-                String[] columns = {KEY_COLUMN, VALUE_COLUMN};
-                HashSet<String> keysRemaining = SetBuilder.newHashSet();
-                WritableArray data = Arguments.createArray();
-                for (int keyStart = 0; keyStart < keys.size(); keyStart += MAX_SQL_KEYS) {
-                    int keyCount = Math.min(keys.size() - keyStart, MAX_SQL_KEYS);
-                    Cursor cursor = mStateXDatabaseSupplier.get().query(
-                            TABLE_STATE,
-                            columns,
-                            AsyncLocalStorageUtil.buildKeySelection(keyCount),
-                            AsyncLocalStorageUtil.buildKeySelectionArgs(keys, keyStart, keyCount),
-                            null,
-                            null,
-                            null);
-                    keysRemaining.clear();
-                    try {
-                        if (cursor.getCount() != keys.size()) {
-                            // some keys have not been found - insert them with null into the final array
-                            for (int keyIndex = keyStart; keyIndex < keyStart + keyCount; keyIndex++) {
-                                keysRemaining.add(keys.getString(keyIndex));
-                            }
-                        }
+                int keyCount = keyList.size();
+                sample.keys(keyCount);
+                String[] keyArray = new String[keyCount];
+                String[] values = new String[keyCount];
+                long[] expirations = new long[keyCount];
+                long[] versions = new long[keyCount];
+                long[] cachedVersion = new long[1];
+                for (int keyIndex = 0; keyIndex < keyCount; keyIndex++) {
+                    String key = keyList.get(keyIndex);
+                    if (key == null) {
+                        callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null), null);
+                        sample.end(false);
+                        return;
+                    }
+                    keyArray[keyIndex] = key;
+                    values[keyIndex] = mCache.get(key, cachedVersion);
+                    versions[keyIndex] = cachedVersion[0];
+                }
 
-                        if (cursor.moveToFirst()) {
-                            do {
-                                WritableArray row = Arguments.createArray();
-                                row.pushString(cursor.getString(0));
-                                row.pushString(cursor.getString(1));
-                                data.pushArray(row);
-                                keysRemaining.remove(cursor.getString(0));
-                            } while (cursor.moveToNext());
+                // Positions of the keys that have to be read from the database, shard by shard.
+                int[] uncachedPositions = new int[keyCount];
+                for (Map.Entry<StateXShards.Shard, List<Integer>> shardKeys : partition.entrySet()) {
+                    StateXShards.Shard shard = shardKeys.getKey();
+                    int uncachedCount = 0;
+                    for (int position : shardKeys.getValue()) {
+                        if (values[position] == null) {
+                            uncachedPositions[uncachedCount++] = position;
                         }
+                    }
+                    if (uncachedCount == 0) {
+                        continue;
+                    }
+                    if (!ensureDatabase(shard)) {
+                        callback.invoke(AsyncStorageErrorUtil.getDBError(null), null);
+                        sample.end(false);
+                        return;
+                    }
+                    long cacheGeneration = mCache.generation();
+                    try {
+                        shard.getEngine().multiGet(
+                                keyArray,
+                                uncachedPositions,
+                                uncachedCount,
+                                values,
+                                expirations,
+                                versions);
                     } catch (Exception e) {
                         FLog.w(ReactConstants.TAG, e.getMessage(), e);
                         callback.invoke(AsyncStorageErrorUtil.getError(null, e.getMessage()), null);
+                        sample.end(false);
                         return;
-                    } finally {
-                        cursor.close();
                     }
+                    for (int idx = 0; idx < uncachedCount; idx++) {
+                        int position = uncachedPositions[idx];
+                        if (values[position] != null) {
+                            mCache.putIfUnchanged(
+                                    cacheGeneration,
+                                    keyArray[position],
+                                    values[position],
+                                    expirations[position],
+                                    versions[position]);
+                        }
+                    }
+                }
 
-                    for (String key : keysRemaining) {
-                        WritableArray row = Arguments.createArray();
-                        row.pushString(key);
-                        row.pushNull();
-                        data.pushArray(row);
+                mWarmup.recordReads(Arrays.asList(keyArray));
+                for (Map.Entry<StateXShards.Shard, List<Integer>> shardKeys : partition.entrySet()) {
+                    StateXShards.Shard shard = shardKeys.getKey();
+                    if (!shard.getEngine().isEvictionEnabled()) {
+                        continue;
+                    }
+                    long now = System.currentTimeMillis();
+                    boolean flushAccesses = false;
+                    for (int position : shardKeys.getValue()) {
+                        if (values[position] != null) {
+                            flushAccesses |= shard.getEngine().recordAccess(keyArray[position], now);
+                        }
+                    }
+                    if (flushAccesses) {
+                        evict(shard, false);
                     }
-                    keysRemaining.clear();
                 }
 
+                sample.marshalling();
+                WritableArray data = Arguments.createArray();
+                for (int keyIndex = 0; keyIndex < keyCount; keyIndex++) {
+                    WritableArray row = Arguments.createArray();
+                    row.pushString(keyArray[keyIndex]);
+                    if (values[keyIndex] != null) {
+                        row.pushString(values[keyIndex]);
+                        row.pushNull();
+                        row.pushDouble(versions[keyIndex]);
+                        sample.read(values[keyIndex]);
+                    } else {
+                        row.pushNull();
+                    }
+                    data.pushArray(row);
+                }
                 callback.invoke(null, data);
+                sample.end(true);
             }
-        }.execute();
+        };
+        if (!scheduleRead(StateXScheduler.Priority.INTERACTIVE, shards, keyList, read)) {
+            rejectCall(sample, callback);
+        }
+    }
+
+    /**
+     * Returns the value of the key from the read cache, blocking the calling JS thread, or
+     * {@link #CACHE_MISS} if it isn't cached. Never touches the disk: it only takes the locks of the
+     * cache and of the write queue, which are held for in-memory updates only. A key with a write
+     * submitted but not committed yet is a miss, so the value is never older than the writes
+     * submitted before the call. Missing keys are misses too, use {@link #multiGet} to tell them
+     * apart.
+     */
+    @ReactMethod(isBlockingSynchronousMethod = true)
+    public String getCachedItem(String key) {
+        if (key == null) {
+            return CACHE_MISS;
+        }
+        StateXMetrics.Sample sample = mMetrics.begin("getCachedItem");
+        sample.executing();
+        StateXWriteQueue writeQueue = mShards.get(key).getWriteQueue();
+        String value = writeQueue.hasPendingWrites(Collections.singletonList(key)) ?
+                null :
+                mCache.get(key);
+        sample.keys(1);
+        sample.read(value);
+        sample.end(true);
+        return value != null ? value : CACHE_MISS;
     }
 
     /**
      * Inserts multiple (key, value) pairs. If one or more of the pairs cannot be inserted, this will
      * return StateXFailure, but all other pairs will have been inserted.
      * The insertion will replace conflicting (key, value) pairs.
+     * A pair may have a third element, the time to live of the key in milliseconds, after which the
+     * key is treated as missing and eventually deleted. A fourth element, the version of a row of
+     * {@link #multiGet}, is ignored.
      */
     @ReactMethod
     public void multiSet(final ReadableArray keyValueArray, final Callback callback) {
@@ -177,64 +437,100 @@ public final class StateXModule
             return;
         }
 
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
-            @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!ensureDatabase()) {
-                    callback.invoke(AsyncStorageErrorUtil.getDBError(null));
-                    return;
-                }
+        final StateXMetrics.Sample sample = mMetrics.begin("multiSet");
+        ArrayList<String> pairKeys = pairKeys(keyValueArray);
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(pairKeys);
+        final ShardedCall call = beginShardedCall(partition.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardPairs : partition.entrySet()) {
+            final StateXShards.Shard shard = shardPairs.getKey();
+            final List<Integer> positions = shardPairs.getValue();
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                private final ArrayList<String> mKeys = new ArrayList<>();
+                private final ArrayList<String> mValues = new ArrayList<>();
+                private final ArrayList<Long> mExpirations = new ArrayList<>();
+                private final ArrayList<Long> mVersions = new ArrayList<>();
 
-                String sql = "INSERT OR REPLACE INTO " + TABLE_STATE + " VALUES (?, ?);";
-                SQLiteStatement statement = mStateXDatabaseSupplier.get().compileStatement(sql);
-                WritableMap error = null;
-                ArrayList<String> keys = new ArrayList<>();
-                try {
-                    mStateXDatabaseSupplier.get().beginTransaction();
-                    for (int idx = 0; idx < keyValueArray.size(); idx++) {
-                        if (keyValueArray.getArray(idx).size() != 2) {
-                            error = AsyncStorageErrorUtil.getInvalidValueError(null);
-                            break;
+                @Override
+                WritableMap apply(StorageEngine engine) throws IOException {
+                    call.executing(sample);
+                    mKeys.clear();
+                    mValues.clear();
+                    mExpirations.clear();
+                    mVersions.clear();
+                    long now = System.currentTimeMillis();
+                    for (int idx : positions) {
+                        ReadableArray pair = keyValueArray.getArray(idx);
+                        if (pair.size() < 2 || pair.size() > 4) {
+                            return AsyncStorageErrorUtil.getInvalidValueError(null);
                         }
-                        String key = keyValueArray.getArray(idx).getString(0);
+                        String key = pair.getString(0);
                         if (key == null) {
-                            error = AsyncStorageErrorUtil.getInvalidKeyError(null);
-                            break;
+                            return AsyncStorageErrorUtil.getInvalidKeyError(null);
                         }
-                        String value = keyValueArray.getArray(idx).getString(1);
+                        String value = pair.getString(1);
                         if (value == null) {
-                            error = AsyncStorageErrorUtil.getInvalidValueError(null);
-                            break;
+                            return AsyncStorageErrorUtil.getInvalidValueError(null);
+                        }
+                        long expiresAt = 0;
+                        if (pair.size() >= 3 && !pair.isNull(2)) {
+                            double ttl = pair.getDouble(2);
+                            if (!(ttl > 0)) {
+                                return AsyncStorageErrorUtil.getInvalidValueError(key);
+                            }
+                            expiresAt = now + (long) ttl;
                         }
 
-                        keys.add(key);
-                        statement.clearBindings();
-                        statement.bindString(1, key);
-                        statement.bindString(2, value);
-                        statement.execute();
+                        mKeys.add(key);
+                        mValues.add(value);
+                        mExpirations.add(expiresAt);
+                        mVersions.add(engine.set(key, value, expiresAt));
                     }
-                    mStateXDatabaseSupplier.get().setTransactionSuccessful();
-                } catch (Exception e) {
-                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                    error = AsyncStorageErrorUtil.getError(null, e.getMessage());
-                } finally {
-                    try {
-                        mStateXDatabaseSupplier.get().endTransaction();
-                    } catch (Exception e) {
-                        FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                        if (error == null) {
-                            error = AsyncStorageErrorUtil.getError(null, e.getMessage());
+                    return null;
+                }
+
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    // Pairs written before an invalid one are still committed.
+                    for (int idx = 0; idx < mKeys.size(); idx++) {
+                        if (committed) {
+                            mCache.put(
+                                    mKeys.get(idx),
+                                    mValues.get(idx),
+                                    mExpirations.get(idx),
+                                    mVersions.get(idx));
+                            shard.getChangeFeed().recordChange(
+                                    mKeys.get(idx),
+                                    mValues.get(idx),
+                                    mVersions.get(idx));
+                        } else {
+                            mCache.remove(mKeys.get(idx));
                         }
                     }
+                    if (committed) {
+                        collectGarbage(shard);
+                        evict(shard, false);
+                    }
+                    if (error == null) {
+                        notifyStateChanged(mKeys);
+                    }
+                    synchronized (call) {
+                        if (committed) {
+                            sample.keys(mKeys.size());
+                            for (String value : mValues) {
+                                sample.written(value);
+                            }
+                        }
+                        if (!call.complete(error)) {
+                            return;
+                        }
+                    }
+                    call.finish(sample, callback);
                 }
-                if (error != null) {
-                    callback.invoke(error);
-                } else {
-                    callback.invoke();
-                    notifyStateChanged(keys);
-                }
-            }
-        }.execute();
+            }, mShards.keysOf(shard, pairKeys));
+        }
     }
 
     /**
@@ -247,190 +543,1192 @@ public final class StateXModule
             return;
         }
 
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
-            @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!ensureDatabase()) {
-                    callback.invoke(AsyncStorageErrorUtil.getDBError(null));
-                    return;
+        final StateXMetrics.Sample sample = mMetrics.begin("multiRemove");
+        ArrayList<String> keyList = StateX.toStringArray(keys);
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keyList);
+        final ShardedCall call = beginShardedCall(partition.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardKeys : partition.entrySet()) {
+            final StateXShards.Shard shard = shardKeys.getKey();
+            final ArrayList<String> removedKeys = new ArrayList<>();
+            for (int position : shardKeys.getValue()) {
+                removedKeys.add(keyList.get(position));
+            }
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                @Override
+                WritableMap apply(StorageEngine engine) throws IOException {
+                    call.executing(sample);
+                    engine.remove(removedKeys);
+                    return null;
                 }
 
-                WritableMap error = null;
-                try {
-                    mStateXDatabaseSupplier.get().beginTransaction();
-                    for (int keyStart = 0; keyStart < keys.size(); keyStart += MAX_SQL_KEYS) {
-                        int keyCount = Math.min(keys.size() - keyStart, MAX_SQL_KEYS);
-                        mStateXDatabaseSupplier.get().delete(
-                                TABLE_STATE,
-                                AsyncLocalStorageUtil.buildKeySelection(keyCount),
-                                AsyncLocalStorageUtil.buildKeySelectionArgs(keys, keyStart, keyCount));
-                    }
-                    mStateXDatabaseSupplier.get().setTransactionSuccessful();
-                } catch (Exception e) {
-                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                    error = AsyncStorageErrorUtil.getError(null, e.getMessage());
-                } finally {
-                    try {
-                        mStateXDatabaseSupplier.get().endTransaction();
-                    } catch (Exception e) {
-                        FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                        if (error == null) {
-                            error = AsyncStorageErrorUtil.getError(null, e.getMessage());
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    if (committed) {
+                        collectGarbage(shard);
+                        for (String key : removedKeys) {
+                            shard.getChangeFeed().recordChange(key, null, 0);
                         }
                     }
+                    if (error == null) {
+                        for (String key : removedKeys) {
+                            mCache.remove(key);
+                        }
+                        notifyStateChanged(removedKeys);
+                    }
+                    synchronized (call) {
+                        sample.keys(removedKeys.size());
+                        if (!call.complete(error)) {
+                            return;
+                        }
+                    }
+                    call.finish(sample, callback);
                 }
-                if (error != null) {
-                    callback.invoke(error);
-                } else {
-                    callback.invoke();
-                    notifyStateChanged(StateX.toStringArray(keys));
-                }
-            }
-        }.execute();
+            }, removedKeys);
+        }
     }
 
     /**
      * Given an array of (key, value) pairs, this will merge the given values with the stored values
-     * of the given keys, if they exist.
+     * of the given keys, if they exist, following JSON merge patch (RFC 7396): a null member of a
+     * value removes the stored member. Either all pairs of a shard are merged or none is, see
+     * {@link StateXConfig.Builder#setShardedNamespaces}. Rows of {@link #multiGet} are taken as
+     * pairs.
      */
     @ReactMethod
     public void multiMerge(final ReadableArray keyValueArray, final Callback callback) {
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
-            @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!ensureDatabase()) {
-                    callback.invoke(AsyncStorageErrorUtil.getDBError(null));
-                    return;
+        final ArrayList<String> keys = new ArrayList<>();
+        for (int idx = 0; idx < keyValueArray.size(); idx++) {
+            ReadableArray pair = keyValueArray.getArray(idx);
+            if (pair.size() != 2 && !(pair.size() == 4 && pair.isNull(2))) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(null));
+                return;
+            }
+            String key = keyValueArray.getArray(idx).getString(0);
+            if (key == null) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null));
+                return;
+            }
+            if (keyValueArray.getArray(idx).getString(1) == null) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(null));
+                return;
+            }
+            keys.add(key);
+        }
+        if (keys.isEmpty()) {
+            callback.invoke();
+            return;
+        }
+
+        final StateXMetrics.Sample sample = mMetrics.begin("multiMerge");
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keys);
+        final ShardedCall call = beginShardedCall(partition.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardPairs : partition.entrySet()) {
+            final StateXShards.Shard shard = shardPairs.getKey();
+            final List<Integer> positions = shardPairs.getValue();
+            final ArrayList<String> mergedKeys = new ArrayList<>();
+            for (int position : positions) {
+                mergedKeys.add(keys.get(position));
+            }
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                private final String[] mMergedValues = new String[positions.size()];
+                private final long[] mExpirations = new long[positions.size()];
+                private final long[] mVersions = new long[positions.size()];
+
+                @Override
+                WritableMap apply(StorageEngine engine) throws JSONException, IOException {
+                    call.executing(sample);
+                    long[] expiresAt = new long[1];
+                    long[] version = new long[1];
+                    for (int idx = 0; idx < positions.size(); idx++) {
+                        mMergedValues[idx] = engine.merge(
+                                mergedKeys.get(idx),
+                                keyValueArray.getArray(positions.get(idx)).getString(1),
+                                expiresAt,
+                                version);
+                        mExpirations[idx] = expiresAt[0];
+                        mVersions[idx] = version[0];
+                        if (mMergedValues[idx] == null) {
+                            // Throw rather than return the error, so the merges before are rolled back.
+                            throw new IOException("Database Error");
+                        }
+                    }
+                    return null;
                 }
-                WritableMap error = null;
-                ArrayList<String> keys = new ArrayList<>();
-                try {
-                    mStateXDatabaseSupplier.get().beginTransaction();
-                    for (int idx = 0; idx < keyValueArray.size(); idx++) {
-                        if (keyValueArray.getArray(idx).size() != 2) {
-                            error = AsyncStorageErrorUtil.getInvalidValueError(null);
+
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    for (int idx = 0; idx < mergedKeys.size(); idx++) {
+                        if (committed) {
+                            // A key merged several times ends up with its last merged value.
+                            mCache.put(
+                                    mergedKeys.get(idx),
+                                    mMergedValues[idx],
+                                    mExpirations[idx],
+                                    mVersions[idx]);
+                            shard.getChangeFeed().recordChange(
+                                    mergedKeys.get(idx),
+                                    mMergedValues[idx],
+                                    mVersions[idx]);
+                        } else {
+                            mCache.remove(mergedKeys.get(idx));
+                        }
+                    }
+                    if (committed) {
+                        collectGarbage(shard);
+                        evict(shard, false);
+                    }
+                    if (error == null) {
+                        notifyStateChanged(mergedKeys);
+                    }
+                    synchronized (call) {
+                        sample.keys(mergedKeys.size());
+                        if (committed) {
+                            for (String value : mMergedValues) {
+                                sample.written(value);
+                            }
+                        }
+                        if (!call.complete(error)) {
                             return;
                         }
+                    }
+                    call.finish(sample, callback);
+                }
+            }, mergedKeys);
+        }
+    }
 
-                        String key = keyValueArray.getArray(idx).getString(0);
-                        if (key == null) {
-                            error = AsyncStorageErrorUtil.getInvalidKeyError(null);
+    /**
+     * Applies an ordered list of operations, maps with a "type" of "set", "remove" or "merge", a
+     * "key", and for sets and merges a "value", plus an optional "ttl" in milliseconds for sets.
+     * Either all operations are applied or none is, in a single transaction per shard, and the
+     * changed keys are notified once. Operations are validated before anything is written.
+     */
+    @ReactMethod
+    public void batch(final ReadableArray operations, final Callback callback) {
+        final ArrayList<StateXClient.Operation> batch = new ArrayList<>(operations.size());
+        final ArrayList<String> keys = new ArrayList<>(operations.size());
+        for (int idx = 0; idx < operations.size(); idx++) {
+            ReadableMap operation = operations.getMap(idx);
+            String type = getOptionalString(operation, "type");
+            String key = getOptionalString(operation, "key");
+            String value = getOptionalString(operation, "value");
+            if (key == null) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null));
+                return;
+            }
+            if (!"set".equals(type) && !"remove".equals(type) && !"merge".equals(type)) {
+                callback.invoke(AsyncStorageErrorUtil.getError(key, "Invalid operation: " + type));
+                return;
+            }
+            if (!"remove".equals(type) && value == null) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(key));
+                return;
+            }
+            double ttl = 0;
+            if ("set".equals(type) && operation.hasKey("ttl") && !operation.isNull("ttl")) {
+                ttl = operation.getDouble("ttl");
+                if (!(ttl > 0)) {
+                    callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(key));
+                    return;
+                }
+            }
+            batch.add(new StateXClient.Operation(type, key, value, (long) ttl));
+            keys.add(key);
+        }
+        if (batch.isEmpty()) {
+            callback.invoke();
+            return;
+        }
+
+        final StateXMetrics.Sample sample = mMetrics.begin("batch");
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keys);
+        final ShardedCall call = beginShardedCall(partition.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        // Keys of the shards committed so far, notified together once all shards have completed.
+        final ArrayList<String> changedKeys = new ArrayList<>();
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardOperations : partition.entrySet()) {
+            final StateXShards.Shard shard = shardOperations.getKey();
+            final List<Integer> positions = shardOperations.getValue();
+            final ArrayList<String> shardKeys = new ArrayList<>();
+            for (int position : positions) {
+                shardKeys.add(keys.get(position));
+            }
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                // Value, expiration time and version of each key after its operation, null once
+                // removed.
+                private final String[] mValues = new String[positions.size()];
+                private final long[] mExpirations = new long[positions.size()];
+                private final long[] mVersions = new long[positions.size()];
+
+                @Override
+                WritableMap apply(StorageEngine engine) throws Exception {
+                    call.executing(sample);
+                    StateXClient.applyOperations(
+                            engine,
+                            batch,
+                            positions,
+                            mValues,
+                            mExpirations,
+                            mVersions);
+                    return null;
+                }
+
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    // Operations are applied in order, so a key ends up with its last value.
+                    for (int idx = 0; idx < shardKeys.size(); idx++) {
+                        if (committed && mValues[idx] != null) {
+                            mCache.put(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mExpirations[idx],
+                                    mVersions[idx]);
+                        } else {
+                            mCache.remove(shardKeys.get(idx));
+                        }
+                        if (committed) {
+                            shard.getChangeFeed().recordChange(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mVersions[idx]);
+                        }
+                    }
+                    if (committed) {
+                        collectGarbage(shard);
+                        evict(shard, false);
+                    }
+                    synchronized (call) {
+                        sample.keys(shardKeys.size());
+                        if (committed) {
+                            changedKeys.addAll(shardKeys);
+                            for (String value : mValues) {
+                                if (value != null) {
+                                    sample.written(value);
+                                }
+                            }
+                        }
+                        if (!call.complete(error)) {
                             return;
+                        }
+                    }
+                    if (!changedKeys.isEmpty()) {
+                        notifyStateChanged(changedKeys);
+                    }
+                    call.finish(sample, callback);
+                }
+            }, shardKeys);
+        }
+    }
+
+    /**
+     * Writes keys only if they are still at the version the caller last read, so a
+     * read-modify-write takes a single round trip. Each entry is [key, value, expectedVersion,
+     * ttl]: a null value removes the key, a null or 0 expected version means the key must not
+     * exist, and the ttl in milliseconds is optional. Entries are checked and applied in order, in
+     * a single transaction per shard, and the applied keys are notified once. Returns one map per
+     * entry, with the key, whether it was applied ("ok"), and the version of the key after the
+     * call, null if it doesn't exist. An entry that wasn't applied also gets the current value of
+     * the key, so the caller can retry without reading it again.
+     */
+    @ReactMethod
+    public void multiCompareAndSet(final ReadableArray entries, final Callback callback) {
+        final int count = entries.size();
+        final ArrayList<String> keys = new ArrayList<>(count);
+        final String[] values = new String[count];
+        final long[] expectedVersions = new long[count];
+        final long[] ttls = new long[count];
+        for (int idx = 0; idx < count; idx++) {
+            ReadableArray entry = entries.getArray(idx);
+            if (entry == null || entry.size() < 3 || entry.size() > 4) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(null), null);
+                return;
+            }
+            String key = entry.isNull(0) ? null : entry.getString(0);
+            if (key == null) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null), null);
+                return;
+            }
+            values[idx] = entry.isNull(1) ? null : entry.getString(1);
+            double expectedVersion = entry.isNull(2) ? 0 : entry.getDouble(2);
+            if (!(expectedVersion >= 0)) {
+                callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(key), null);
+                return;
+            }
+            expectedVersions[idx] = (long) expectedVersion;
+            if (entry.size() == 4 && !entry.isNull(3)) {
+                double ttl = entry.getDouble(3);
+                if (!(ttl > 0)) {
+                    callback.invoke(AsyncStorageErrorUtil.getInvalidValueError(key), null);
+                    return;
+                }
+                ttls[idx] = (long) ttl;
+            }
+            keys.add(key);
+        }
+        if (count == 0) {
+            callback.invoke(null, Arguments.createArray());
+            return;
+        }
+
+        final StateXMetrics.Sample sample = mMetrics.begin("multiCompareAndSet");
+        Map<StateXShards.Shard, List<Integer>> partition = mShards.partition(keys);
+        final ShardedCall call = beginShardedCall(partition.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        // Result of each entry, and the keys of the shards committed so far, notified together
+        // once all shards have completed.
+        final WritableMap[] results = new WritableMap[count];
+        final ArrayList<String> changedKeys = new ArrayList<>();
+        for (Map.Entry<StateXShards.Shard, List<Integer>> shardEntries : partition.entrySet()) {
+            final StateXShards.Shard shard = shardEntries.getKey();
+            final List<Integer> positions = shardEntries.getValue();
+            final ArrayList<String> shardKeys = new ArrayList<>();
+            for (int position : positions) {
+                shardKeys.add(keys.get(position));
+            }
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                // Whether each entry was applied, and the value, expiration time and version of its
+                // key after the call, the current ones for an entry that wasn't.
+                private final boolean[] mApplied = new boolean[positions.size()];
+                private final String[] mValues = new String[positions.size()];
+                private final long[] mExpirations = new long[positions.size()];
+                private final long[] mVersions = new long[positions.size()];
+
+                @Override
+                WritableMap apply(StorageEngine engine) throws IOException {
+                    call.executing(sample);
+                    long now = System.currentTimeMillis();
+                    String[] conflictKeys = new String[positions.size()];
+                    int[] conflictPositions = new int[positions.size()];
+                    int conflictCount = 0;
+                    for (int idx = 0; idx < positions.size(); idx++) {
+                        int position = positions.get(idx);
+                        String key = keys.get(position);
+                        mApplied[idx] = engine.getVersion(key) == expectedVersions[position];
+                        if (!mApplied[idx]) {
+                            conflictKeys[idx] = key;
+                            conflictPositions[conflictCount++] = idx;
+                            continue;
+                        }
+                        mValues[idx] = values[position];
+                        if (mValues[idx] == null) {
+                            engine.remove(Collections.singletonList(key));
+                            mExpirations[idx] = 0;
+                            mVersions[idx] = 0;
                         } else {
-                            keys.add(key);
+                            mExpirations[idx] = ttls[position] > 0 ? now + ttls[position] : 0;
+                            mVersions[idx] = engine.set(key, mValues[idx], mExpirations[idx]);
+                        }
+                    }
+                    if (conflictCount > 0) {
+                        // Read within the transaction, so the values are current at commit time.
+                        String[] values = new String[positions.size()];
+                        long[] expirations = new long[positions.size()];
+                        long[] versions = new long[positions.size()];
+                        engine.multiGet(
+                                conflictKeys,
+                                conflictPositions,
+                                conflictCount,
+                                values,
+                                expirations,
+                                versions);
+                        for (int idx = 0; idx < conflictCount; idx++) {
+                            int conflict = conflictPositions[idx];
+                            mValues[conflict] = values[conflict];
+                            mExpirations[conflict] = expirations[conflict];
+                            mVersions[conflict] = versions[conflict];
                         }
+                    }
+                    return null;
+                }
 
-                        if (keyValueArray.getArray(idx).getString(1) == null) {
-                            error = AsyncStorageErrorUtil.getInvalidValueError(null);
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    ArrayList<String> appliedKeys = new ArrayList<>();
+                    for (int idx = 0; idx < shardKeys.size(); idx++) {
+                        if (!mApplied[idx]) {
+                            continue;
+                        }
+                        appliedKeys.add(shardKeys.get(idx));
+                        if (committed && mValues[idx] != null) {
+                            mCache.put(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mExpirations[idx],
+                                    mVersions[idx]);
+                        } else {
+                            mCache.remove(shardKeys.get(idx));
+                        }
+                        if (committed) {
+                            shard.getChangeFeed().recordChange(
+                                    shardKeys.get(idx),
+                                    mValues[idx],
+                                    mVersions[idx]);
+                        }
+                    }
+                    if (committed) {
+                        collectGarbage(shard);
+                        evict(shard, false);
+                    }
+                    synchronized (call) {
+                        sample.keys(shardKeys.size());
+                        if (committed) {
+                            changedKeys.addAll(appliedKeys);
+                            for (int idx = 0; idx < shardKeys.size(); idx++) {
+                                WritableMap result = Arguments.createMap();
+                                result.putString("key", shardKeys.get(idx));
+                                result.putBoolean("ok", mApplied[idx]);
+                                if (mValues[idx] != null) {
+                                    result.putDouble("version", mVersions[idx]);
+                                } else {
+                                    result.putNull("version");
+                                }
+                                if (mApplied[idx]) {
+                                    sample.written(mValues[idx]);
+                                } else {
+                                    result.putString("value", mValues[idx]);
+                                    sample.read(mValues[idx]);
+                                }
+                                results[positions.get(idx)] = result;
+                            }
+                        }
+                        if (!call.complete(error)) {
                             return;
                         }
+                    }
+                    if (!changedKeys.isEmpty()) {
+                        notifyStateChanged(changedKeys);
+                    }
+                    // The results of shards that failed are missing, there is no data then.
+                    WritableArray data = null;
+                    if (!call.hasError()) {
+                        data = Arguments.createArray();
+                        for (WritableMap result : results) {
+                            data.pushMap(result);
+                        }
+                    }
+                    call.finish(sample, callback, data);
+                }
+            }, shardKeys);
+        }
+    }
+
+    /**
+     * Clears the database.
+     */
+    @ReactMethod
+    public void clear(final Callback callback) {
+        clearShards("clear", "", mShards.getAll(), callback);
+    }
+
+    /**
+     * Removes all keys starting with the namespace. The shard of a namespace configured with
+     * {@link StateXConfig.Builder#setShardedNamespaces} is cleared at once, whatever the number of
+     * its keys, the keys of other namespaces are removed one by one.
+     */
+    @ReactMethod
+    public void clearNamespace(final String namespace, final Callback callback) {
+        if (namespace == null || namespace.isEmpty()) {
+            callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null));
+            return;
+        }
+        clearShards("clearNamespace", namespace, mShards.getForPrefix(namespace), callback);
+    }
+
+    /**
+     * Removes the keys starting with the prefix from the shards, all keys for an empty prefix.
+     */
+    private void clearShards(
+            String operation,
+            final String prefix,
+            List<StateXShards.Shard> shards,
+            final Callback callback) {
+        final StateXMetrics.Sample sample = mMetrics.begin(operation);
+        final ShardedCall call = beginShardedCall(shards.size(), sample, callback);
+        if (call == null) {
+            return;
+        }
+        for (final StateXShards.Shard shard : shards) {
+            shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+                @Override
+                WritableMap apply(StorageEngine engine) throws IOException {
+                    call.executing(sample);
+                    String namespace = shard.getNamespace();
+                    if (prefix.isEmpty() || (namespace != null && namespace.startsWith(prefix))) {
+                        engine.clear();
+                        return null;
+                    }
+                    ArrayList<String> keys = new ArrayList<>();
+                    StorageEngine.Scan scan = engine.scan(prefix, null, true, null, 0, false);
+                    try {
+                        while (scan.moveToNext()) {
+                            keys.add(scan.getKey());
+                        }
+                    } finally {
+                        scan.close();
+                    }
+                    engine.remove(keys);
+                    return null;
+                }
 
-                        if (!AsyncLocalStorageUtil.mergeImpl(
-                                mStateXDatabaseSupplier.get(),
-                                key,
-                                keyValueArray.getArray(idx).getString(1))) {
-                            error = AsyncStorageErrorUtil.getDBError(null);
+                @Override
+                void onComplete(@Nullable WritableMap error, boolean committed) {
+                    if (prefix.isEmpty()) {
+                        mCache.clear();
+                    } else {
+                        mCache.removePrefix(prefix);
+                    }
+                    if (committed) {
+                        shard.getChangeFeed().recordClear(prefix);
+                        mNotifier.notifyCleared(prefix);
+                        collectGarbage(shard);
+                    }
+                    synchronized (call) {
+                        if (!call.complete(error)) {
                             return;
                         }
                     }
-                    mStateXDatabaseSupplier.get().setTransactionSuccessful();
-                } catch (Exception e) {
-                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                    error = AsyncStorageErrorUtil.getError(null, e.getMessage());
-                } finally {
+                    call.finish(sample, callback);
+                }
+            }, null);
+        }
+    }
+
+    /**
+     * Returns an array with all keys from the database.
+     */
+    @ReactMethod
+    public void getAllKeys(final Callback callback) {
+        final StateXMetrics.Sample sample = mMetrics.begin("getAllKeys");
+        final List<StateXShards.Shard> shards = mShards.getAll();
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                if (!ensureDatabase(shards)) {
+                    callback.invoke(AsyncStorageErrorUtil.getDBError(null), null);
+                    sample.end(false);
+                    return;
+                }
+                sample.executing();
+                WritableArray data = Arguments.createArray();
+                try {
+                    StorageEngine.Scan scan = mShards.scan("", null, true, null, 0, false);
                     try {
-                        mStateXDatabaseSupplier.get().endTransaction();
-                    } catch (Exception e) {
-                        FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                        if (error == null) {
-                            error = AsyncStorageErrorUtil.getError(null, e.getMessage());
+                        while (scan.moveToNext()) {
+                            data.pushString(scan.getKey());
                         }
+                    } finally {
+                        scan.close();
                     }
+                } catch (Exception e) {
+                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                    callback.invoke(AsyncStorageErrorUtil.getError(null, e.getMessage()), null);
+                    sample.end(false);
+                    return;
                 }
-                if (error != null) {
-                    callback.invoke(error);
+                // Keys are pushed while the scan is read, only the callback is left to measure.
+                sample.marshalling();
+                sample.keys(data.size());
+                callback.invoke(null, data);
+                sample.end(true);
+            }
+        };
+        if (!scheduleRead(StateXScheduler.Priority.BULK, shards, null, read)) {
+            rejectCall(sample, callback);
+        }
+    }
+
+    /**
+     * Returns a page of at most pageSize keys, in key order, as a map with the "keys" and the
+     * "cursor" to pass to get the next page, which is null after the last page. The first page is
+     * returned for a null cursor. Pages are read independently, so keys written or removed between
+     * two calls may or may not be seen.
+     */
+    @ReactMethod
+    public void getAllKeysPage(
+            final @Nullable String cursor,
+            final int pageSize,
+            final Callback callback) {
+        if (pageSize <= 0) {
+            callback.invoke(AsyncStorageErrorUtil.getError(null, "Invalid page size"), null);
+            return;
+        }
+
+        final StateXMetrics.Sample sample = mMetrics.begin("getAllKeysPage");
+        final List<StateXShards.Shard> shards = mShards.getAll();
+        Runnable read = new Runnable() {
+            @Override
+            public void run() {
+                if (!ensureDatabase(shards)) {
+                    callback.invoke(AsyncStorageErrorUtil.getDBError(null), null);
+                    sample.end(false);
+                    return;
+                }
+                sample.executing();
+                WritableArray keys = Arguments.createArray();
+                String lastKey;
+                try {
+                    lastKey = readPage("", cursor, pageSize, false, keys);
+                } catch (Exception e) {
+                    FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                    callback.invoke(AsyncStorageErrorUtil.getError(null, e.getMessage()), null);
+                    sample.end(false);
+                    return;
+                }
+                sample.marshalling();
+                sample.keys(keys.size());
+                WritableMap page = Arguments.createMap();
+                page.putArray("keys", keys);
+                if (lastKey != null) {
+                    page.putString("cursor", lastKey);
                 } else {
-                    callback.invoke();
-                    notifyStateChanged(keys);
+                    page.putNull("cursor");
                 }
+                callback.invoke(null, page);
+                sample.end(true);
             }
-        }.execute();
+        };
+        if (!scheduleRead(StateXScheduler.Priority.BULK, shards, null, read)) {
+            rejectCall(sample, callback);
+        }
     }
 
     /**
-     * Clears the database.
+     * Streams all keys starting with the options' "prefix", or (key, value) pairs if
+     * "includeValues" is set, as {@link #EVENT_EXPORT} device events of at most "chunkSize" entries:
+     * {streamId, data} for each chunk, then {streamId, done: true} or {streamId, error}.
+     * Chunks are read one at a time as bulk work, behind other reads and writes, so memory use
+     * stays bounded by the chunk size, whatever the size of the table.
      */
     @ReactMethod
-    public void clear(final Callback callback) {
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
+    public void exportAll(final String streamId, final @Nullable ReadableMap options) {
+        String prefix = getOptionalString(options, "prefix");
+        int chunkSize = options != null && options.hasKey("chunkSize") && !options.isNull("chunkSize") ?
+                options.getInt("chunkSize") : DEFAULT_EXPORT_CHUNK_SIZE;
+        boolean includeValues = options != null && options.hasKey("includeValues") &&
+                !options.isNull("includeValues") && options.getBoolean("includeValues");
+        if (chunkSize <= 0) {
+            emitExportEvent(streamId, null, AsyncStorageErrorUtil.getError(null, "Invalid chunk size"));
+            return;
+        }
+        if (prefix == null) {
+            prefix = "";
+        }
+        exportChunk(streamId, prefix, null, chunkSize, includeValues, mShards.getForPrefix(prefix));
+    }
+
+    private void exportChunk(
+            final String streamId,
+            final String prefix,
+            final @Nullable String afterKey,
+            final int chunkSize,
+            final boolean includeValues,
+            final List<StateXShards.Shard> shards) {
+        // Each chunk is measured as a call of its own.
+        final StateXMetrics.Sample sample = mMetrics.begin("exportAll");
+        Runnable read = new Runnable() {
             @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!mStateXDatabaseSupplier.ensureDatabase()) {
-                    callback.invoke(AsyncStorageErrorUtil.getDBError(null));
+            public void run() {
+                if (!ensureDatabase(shards)) {
+                    emitExportEvent(streamId, null, AsyncStorageErrorUtil.getDBError(null));
+                    sample.end(false);
                     return;
                 }
+                sample.executing();
+                WritableArray data = Arguments.createArray();
+                String lastKey;
                 try {
-                    mStateXDatabaseSupplier.get().delete(TABLE_STATE, null, null);
-                    callback.invoke();
+                    lastKey = readPage(prefix, afterKey, chunkSize, includeValues, data);
                 } catch (Exception e) {
                     FLog.w(ReactConstants.TAG, e.getMessage(), e);
-                    callback.invoke(AsyncStorageErrorUtil.getError(null, e.getMessage()));
+                    emitExportEvent(streamId, null, AsyncStorageErrorUtil.getError(null, e.getMessage()));
+                    sample.end(false);
+                    return;
+                }
+                sample.marshalling();
+                sample.keys(data.size());
+                if (data.size() > 0) {
+                    emitExportEvent(streamId, data, null);
+                }
+                sample.end(true);
+                if (lastKey != null) {
+                    exportChunk(streamId, prefix, lastKey, chunkSize, includeValues, shards);
+                } else {
+                    emitExportEvent(streamId, null, null);
                 }
             }
-        }.execute();
+        };
+        // Only the first chunk waits for the writes submitted before the call.
+        List<StateXShards.Shard> awaitedShards = afterKey == null ?
+                shards :
+                Collections.<StateXShards.Shard>emptyList();
+        if (!scheduleRead(StateXScheduler.Priority.BULK, awaitedShards, null, read)) {
+            emitExportEvent(streamId, null, AsyncStorageErrorUtil.getBusyError(null));
+            sample.end(false);
+        }
     }
 
     /**
-     * Returns an array with all keys from the database.
+     * Reads up to pageSize keys (or pairs) starting with the prefix and after afterKey into data.
+     * @return the last key read if there may be more, null otherwise
+     */
+    private @Nullable String readPage(
+            String prefix,
+            @Nullable String afterKey,
+            int pageSize,
+            boolean includeValues,
+            WritableArray data) throws IOException {
+        StorageEngine.Scan scan = mShards.scan(prefix, afterKey, false, null, pageSize, includeValues);
+        String lastKey = null;
+        int count = 0;
+        try {
+            while (scan.moveToNext()) {
+                lastKey = scan.getKey();
+                if (includeValues) {
+                    WritableArray row = Arguments.createArray();
+                    row.pushString(lastKey);
+                    row.pushString(scan.getValue());
+                    data.pushArray(row);
+                } else {
+                    data.pushString(lastKey);
+                }
+                count++;
+            }
+        } finally {
+            scan.close();
+        }
+        return count == pageSize ? lastKey : null;
+    }
+
+    private void emitExportEvent(
+            String streamId,
+            @Nullable WritableArray data,
+            @Nullable WritableMap error) {
+        WritableMap event = Arguments.createMap();
+        event.putString("streamId", streamId);
+        if (error != null) {
+            event.putMap("error", error);
+        } else if (data != null) {
+            event.putArray("data", data);
+        } else {
+            event.putBoolean("done", true);
+        }
+        getReactApplicationContext()
+                .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
+                .emit(EVENT_EXPORT, event);
+    }
+
+    /**
+     * Returns the keys starting with the given prefix, in key order. The options may restrict them
+     * to a range, with an inclusive "startKey" and an exclusive "endKey", and set a "limit".
      */
     @ReactMethod
-    public void getAllKeys(final Callback callback) {
-        new GuardedAsyncTask<Void, Void>(getReactApplicationContext()) {
+    public void getKeysWithPrefix(
+            final String prefix,
+            final @Nullable ReadableMap options,
+            final Callback callback) {
+        scanByPrefix("getKeysWithPrefix", prefix, options, false, callback);
+    }
+
+    /**
+     * Returns the (key, value) pairs of the keys starting with the given prefix, in key order.
+     * Takes the same options as {@link #getKeysWithPrefix}.
+     */
+    @ReactMethod
+    public void multiGetByPrefix(
+            final String prefix,
+            final @Nullable ReadableMap options,
+            final Callback callback) {
+        scanByPrefix("multiGetByPrefix", prefix, options, true, callback);
+    }
+
+    private void scanByPrefix(
+            String operation,
+            final String prefix,
+            final @Nullable ReadableMap options,
+            final boolean includeValues,
+            final Callback callback) {
+        if (prefix == null) {
+            callback.invoke(AsyncStorageErrorUtil.getInvalidKeyError(null), null);
+            return;
+        }
+        final String startKey = getOptionalString(options, "startKey");
+        final String endKey = getOptionalString(options, "endKey");
+        final int limit = options != null && options.hasKey("limit") && !options.isNull("limit") ?
+                options.getInt("limit") : 0;
+
+        final StateXMetrics.Sample sample = mMetrics.begin(operation);
+        final List<StateXShards.Shard> shards = mShards.getForPrefix(prefix);
+        Runnable read = new Runnable() {
             @Override
-            protected void doInBackgroundGuarded(Void... params) {
-                if (!ensureDatabase()) {
+            public void run() {
+                if (!ensureDatabase(shards)) {
                     callback.invoke(AsyncStorageErrorUtil.getDBError(null), null);
+                    sample.end(false);
                     return;
                 }
+                sample.executing();
                 WritableArray data = Arguments.createArray();
-                String[] columns = {KEY_COLUMN};
-                Cursor cursor = mStateXDatabaseSupplier.get()
-                        .query(TABLE_STATE, columns, null, null, null, null, null);
                 try {
-                    if (cursor.moveToFirst()) {
-                        do {
-                            data.pushString(cursor.getString(0));
-                        } while (cursor.moveToNext());
+                    StorageEngine.Scan scan =
+                            mShards.scan(prefix, startKey, true, endKey, limit, includeValues);
+                    try {
+                        while (scan.moveToNext()) {
+                            if (includeValues) {
+                                WritableArray row = Arguments.createArray();
+                                String value = scan.getValue();
+                                row.pushString(scan.getKey());
+                                row.pushString(value);
+                                data.pushArray(row);
+                                sample.read(value);
+                            } else {
+                                data.pushString(scan.getKey());
+                            }
+                        }
+                    } finally {
+                        scan.close();
                     }
                 } catch (Exception e) {
                     FLog.w(ReactConstants.TAG, e.getMessage(), e);
                     callback.invoke(AsyncStorageErrorUtil.getError(null, e.getMessage()), null);
+                    sample.end(false);
                     return;
-                } finally {
-                    cursor.close();
                 }
+                sample.marshalling();
+                sample.keys(data.size());
                 callback.invoke(null, data);
+                sample.end(true);
             }
-        }.execute();
+        };
+        if (!scheduleRead(StateXScheduler.Priority.BULK, shards, null, read)) {
+            rejectCall(sample, callback);
+        }
+    }
+
+    /**
+     * Returns the size and the hit, miss and eviction counters of the read cache.
+     */
+    @ReactMethod
+    public void getCacheStats(final Callback callback) {
+        callback.invoke(null, getCacheStatsMap());
+    }
+
+    /**
+     * Returns the counters and latency histograms of each operation and of the write transactions,
+     * along with the read cache stats and the queue depths of the scheduler. Only the cache and
+     * scheduler stats are collected unless metrics are enabled with
+     * {@link StateXConfig.Builder#setMetricsEnabled}.
+     */
+    @ReactMethod
+    public void getStats(final Callback callback) {
+        WritableMap stats = mMetrics.toMap();
+        stats.putMap("cache", getCacheStatsMap());
+        stats.putMap("scheduler", mScheduler.toMap());
+        callback.invoke(null, stats);
+    }
+
+    private WritableMap getCacheStatsMap() {
+        WritableMap stats = Arguments.createMap();
+        stats.putDouble("maxSize", mCache.getMaxSize());
+        stats.putDouble("size", mCache.getSize());
+        stats.putInt("hitCount", mCache.getHitCount());
+        stats.putInt("missCount", mCache.getMissCount());
+        stats.putInt("evictionCount", mCache.getEvictionCount());
+        return stats;
+    }
+
+    /**
+     * Verify the database of the shard is open for reads and writes.
+     */
+    /* package */ boolean ensureDatabase(StateXShards.Shard shard) {
+        return !mShuttingDown && mShards.open(shard);
+    }
+
+    /* package */ boolean ensureDatabase(List<StateXShards.Shard> shards) {
+        for (StateXShards.Shard shard : shards) {
+            if (!ensureDatabase(shard)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static @Nullable String getOptionalString(@Nullable ReadableMap map, String name) {
+        return map != null && map.hasKey(name) && !map.isNull(name) ? map.getString(name) : null;
+    }
+
+    /**
+     * Returns the keys of an array of (key, value) pairs, with null for malformed pairs, so that
+     * positions match the pairs'.
+     */
+    private static ArrayList<String> pairKeys(ReadableArray keyValueArray) {
+        ArrayList<String> keys = new ArrayList<>(keyValueArray.size());
+        for (int idx = 0; idx < keyValueArray.size(); idx++) {
+            ReadableArray pair = keyValueArray.getArray(idx);
+            keys.add(pair != null && pair.size() > 0 ? pair.getString(0) : null);
+        }
+        return keys;
+    }
+
+    /**
+     * Queues a garbage collection of the storage engine of the shard, e.g. of the value files no
+     * longer referenced, unless one is queued already.
+     */
+    /* package */ void collectGarbage(final StateXShards.Shard shard) {
+        if (!shard.getEngine().mayHaveGarbage() ||
+                !shard.getGarbageCollectionPending().compareAndSet(false, true)) {
+            return;
+        }
+        shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+            @Override
+            WritableMap apply(StorageEngine engine) throws IOException {
+                // Writes committed from now on trigger another collection.
+                shard.getGarbageCollectionPending().set(false);
+                engine.collectGarbage();
+                return null;
+            }
+
+            @Override
+            void onComplete(@Nullable WritableMap error, boolean committed) {
+            }
+        }, Collections.<String>emptyList());
+    }
+
+    /**
+     * Queues the deletion of a batch of expired keys of the shard, unless one is queued already.
+     * Another batch is queued right after if the batch was full, so other writes and reads get to
+     * run in between. Deleted keys are notified like removed keys.
+     */
+    private void sweepExpired(final StateXShards.Shard shard) {
+        if (!shard.getExpirySweepPending().compareAndSet(false, true)) {
+            return;
+        }
+        shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+            private final ArrayList<String> mExpired = new ArrayList<>();
+
+            @Override
+            WritableMap apply(StorageEngine engine) throws IOException {
+                shard.getExpirySweepPending().set(false);
+                mExpired.clear();
+                engine.removeExpired(System.currentTimeMillis(), EXPIRY_SWEEP_BATCH_SIZE, mExpired);
+                return null;
+            }
+
+            @Override
+            void onComplete(@Nullable WritableMap error, boolean committed) {
+                if (!committed || error != null || mExpired.isEmpty()) {
+                    return;
+                }
+                for (String key : mExpired) {
+                    mCache.remove(key);
+                    shard.getChangeFeed().recordChange(key, null, 0);
+                }
+                notifyStateChanged(mExpired);
+                collectGarbage(shard);
+                if (mExpired.size() == EXPIRY_SWEEP_BATCH_SIZE) {
+                    sweepExpired(shard);
+                }
+            }
+        }, Collections.<String>emptyList());
+    }
+
+    /**
+     * Queues an eviction run in the shard, unless one is queued already. It writes the recorded
+     * reads and, if the quota is exceeded, evicts keys, removes them from the cache and notifies
+     * their removal.
+     * @param full whether a write failed because the database is full
+     */
+    /* package */ void evict(final StateXShards.Shard shard, boolean full) {
+        if (!shard.getEngine().isEvictionEnabled()) {
+            return;
+        }
+        if (full) {
+            shard.getEvictionForFullStorage().set(true);
+        }
+        if (!shard.getEvictionPending().compareAndSet(false, true)) {
+            return;
+        }
+        shard.getWriteQueue().enqueue(new StateXWriteQueue.Write() {
+            private final ArrayList<String> mEvicted = new ArrayList<>();
+            private boolean mMore;
+
+            @Override
+            WritableMap apply(StorageEngine engine) throws IOException {
+                shard.getEvictionPending().set(false);
+                mEvicted.clear();
+                mMore = engine.evict(shard.getEvictionForFullStorage().getAndSet(false), mEvicted);
+                return null;
+            }
+
+            @Override
+            void onComplete(@Nullable WritableMap error, boolean committed) {
+                if (!committed || error != null) {
+                    return;
+                }
+                if (!mEvicted.isEmpty()) {
+                    for (String key : mEvicted) {
+                        mCache.remove(key);
+                        shard.getChangeFeed().recordChange(key, null, 0);
+                    }
+                    notifyStateChanged(mEvicted);
+                    collectGarbage(shard);
+                }
+                if (mMore) {
+                    evict(shard, false);
+                }
+            }
+        }, Collections.<String>emptyList());
     }
 
     /**
-     * Verify the database is open for reads and writes.
+     * Admits a read of the given priority and runs it on the scheduler once the writes it has to
+     * see have completed: those of the keys it reads in the shards, or all those submitted to the
+     * shards so far if keys is null. Pending writes of the shards are submitted right away rather
+     * than at the end of the coalescing window. The read waits without holding a thread.
+     * @return false if too many calls of the priority are pending, in which case the read never
+     *     runs
      */
-    private boolean ensureDatabase() {
-        return !mShuttingDown && mStateXDatabaseSupplier.ensureDatabase();
-    }
-
-    private void notifyStateChanged(ArrayList<String> keys) {
-        /*Intent intent = new Intent(StateX.ACTION_STATE_CHANGED);
-        intent.putStringArrayListExtra(StateX.EXTRA_KEYS, keys);*/
-        LocalBroadcastManager broadcastManager = LocalBroadcastManager.getInstance(
-                getReactApplicationContext());
-        for (String key : keys) {
-            Intent intent = new Intent(StateX.ACTION_STATE_CHANGED);
-            Uri uri = StateX.uriForKey(key);
-            intent.setData(uri);
-            broadcastManager.sendBroadcast(intent);
+    /* package */ boolean scheduleRead(
+            final StateXScheduler.Priority priority,
+            List<StateXShards.Shard> shards,
+            @Nullable Collection<String> keys,
+            final Runnable read) {
+        if (!mScheduler.tryAcquire(priority)) {
+            return false;
+        }
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.run();
+                } finally {
+                    mScheduler.release(priority);
+                }
+            }
+        };
+        // Waits for the shards one after the other, each time from the completion of the write.
+        Runnable next = new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.execute(priority, task);
+            }
+        };
+        for (int idx = shards.size() - 1; idx >= 0; idx--) {
+            final StateXWriteQueue writeQueue = shards.get(idx).getWriteQueue();
+            writeQueue.flush();
+            final long writeBarrier = writeQueue.barrier(keys);
+            final Runnable afterWrites = next;
+            next = new Runnable() {
+                @Override
+                public void run() {
+                    writeQueue.runAfter(writeBarrier, afterWrites);
+                }
+            };
+        }
+        next.run();
+        return true;
+    }
+
+    /**
+     * Admits a call of the given priority whose writes are split across the given number of shards.
+     * @return the call, or null if too many calls are pending, in which case the call has failed
+     */
+    private @Nullable ShardedCall beginShardedCall(
+            int writeCount,
+            StateXMetrics.Sample sample,
+            Callback callback) {
+        if (!mScheduler.tryAcquire(StateXScheduler.Priority.WRITE)) {
+            rejectCall(sample, callback);
+            return null;
+        }
+        return new ShardedCall(mScheduler, writeCount);
+    }
+
+    /**
+     * Fails a call that the scheduler didn't admit.
+     */
+    private static void rejectCall(StateXMetrics.Sample sample, Callback callback) {
+        callback.invoke(AsyncStorageErrorUtil.getBusyError(null), null);
+        sample.end(false);
+    }
+
+    /* package */ void notifyStateChanged(ArrayList<String> keys) {
+        mNotifier.notifyStateChanged(keys);
+    }
+
+    /**
+     * A call whose writes are split across shards, which may commit in parallel. It completes with
+     * the first error once all of them have, and then leaves the scheduler's pending writes. The
+     * sample of the call is only touched while holding the call's lock.
+     */
+    private static class ShardedCall {
+        private final StateXScheduler mScheduler;
+        private int mRemaining;
+        private @Nullable WritableMap mError;
+
+        ShardedCall(StateXScheduler scheduler, int writeCount) {
+            mScheduler = scheduler;
+            mRemaining = writeCount;
+        }
+
+        synchronized void executing(StateXMetrics.Sample sample) {
+            sample.executing();
+        }
+
+        /**
+         * Records the completion of one of the writes.
+         * @return true for the last one, which then has to {@link #finish} the call
+         */
+        synchronized boolean complete(@Nullable WritableMap error) {
+            if (mError == null) {
+                mError = error;
+            }
+            return --mRemaining == 0;
+        }
+
+        /**
+         * Whether one of the writes completed with an error, once all of them have.
+         */
+        synchronized boolean hasError() {
+            return mError != null;
+        }
+
+        void finish(StateXMetrics.Sample sample, Callback callback) {
+            mScheduler.release(StateXScheduler.Priority.WRITE);
+            sample.marshalling();
+            if (mError != null) {
+                callback.invoke(mError);
+            } else {
+                callback.invoke();
+            }
+            sample.end(mError == null);
+        }
+
+        /**
+         * Like {@link #finish(StateXMetrics.Sample, Callback)} for a call returning a result,
+         * passed to the callback after the error unless there is one.
+         */
+        void finish(
+                StateXMetrics.Sample sample,
+                Callback callback,
+                @Nullable WritableArray result) {
+            mScheduler.release(StateXScheduler.Priority.WRITE);
+            sample.marshalling();
+            if (mError != null) {
+                callback.invoke(mError, null);
+            } else {
+                callback.invoke(null, result);
+            }
+            sample.end(mError == null);
         }
     }
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broadcasts {@link StateX#ACTION_STATE_CHANGED} for changed keys.
+ * <p/>
+ * Keys changed within a short window are coalesced into a single broadcast carrying all of them in
+ * {@link StateX#EXTRA_KEYS}. In per-key mode, one broadcast with the {@link StateX#uriForKey} data
+ * is sent for each key instead, for receivers that filter on the data URI.
+ * <p/>
+ * Native {@link StateXObserver}s registered for the keys are called with the same batches. The
+ * {@link android.database.ContentObserver}s of the {@link StateXProvider} URIs get a single
+ * notification per window, an IPC sent off the main thread: for the URI of the key if only one
+ * changed, otherwise for the longest path the keys have in common, the root for unrelated keys.
+ * Notifying a URI also notifies the observers of its descendants, so no observer of a changed key
+ * misses it, but observers of unchanged keys sharing the path are notified too.
+ */
+/* package */ class StateXNotifier {
+
+    // Sends the content notifications in order, on a thread that stops when there are none.
+    private static final Executor sContentExecutor = new ThreadPoolExecutor(
+            0,
+            1,
+            1,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new StateXThreadFactory("StateXContentNotifier"));
+
+    private final LocalBroadcastManager mBroadcastManager;
+    private final ContentResolver mContentResolver;
+    private final String mAuthority;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final long mWindowMs;
+    private final boolean mPerKey;
+    private final LinkedHashSet<String> mPendingKeys = new LinkedHashSet<>();
+    private final LinkedHashSet<String> mPendingPrefixes = new LinkedHashSet<>();
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private boolean mFlushScheduled;
+
+    /* package */ StateXNotifier(Context context, long windowMs, boolean perKey) {
+        mBroadcastManager = LocalBroadcastManager.getInstance(context);
+        mContentResolver = context.getContentResolver();
+        mAuthority = StateXProvider.getAuthority(context);
+        mWindowMs = windowMs;
+        mPerKey = perKey;
+    }
+
+    /* package */ void notifyStateChanged(Collection<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            mPendingKeys.addAll(keys);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mWindowMs);
+    }
+
+    /**
+     * Notifies the content observers of the keys starting with the prefix, of all keys for an empty
+     * prefix, when the removed keys aren't known.
+     */
+    /* package */ void notifyCleared(String prefix) {
+        synchronized (this) {
+            mPendingPrefixes.add(prefix);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, mWindowMs);
+    }
+
+    private void flush() {
+        ArrayList<String> keys;
+        ArrayList<String> prefixes;
+        synchronized (this) {
+            keys = new ArrayList<>(mPendingKeys);
+            prefixes = new ArrayList<>(mPendingPrefixes);
+            mPendingKeys.clear();
+            mPendingPrefixes.clear();
+            mFlushScheduled = false;
+        }
+        ArrayList<String> paths = new ArrayList<>(prefixes);
+        paths.addAll(keys);
+        if (!paths.isEmpty()) {
+            notifyContentChange(getCommonPath(paths));
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        StateXObserverRegistry.getInstance().dispatch(keys);
+        if (mPerKey) {
+            for (String key : keys) {
+                Intent intent = new Intent(StateX.ACTION_STATE_CHANGED);
+                intent.setData(StateX.uriForKey(key));
+                mBroadcastManager.sendBroadcast(intent);
+            }
+        } else {
+            Intent intent = new Intent(StateX.ACTION_STATE_CHANGED);
+            intent.putStringArrayListExtra(StateX.EXTRA_KEYS, keys);
+            mBroadcastManager.sendBroadcast(intent);
+        }
+    }
+
+    private void notifyContentChange(final String path) {
+        sContentExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mContentResolver.notifyChange(
+                        StateXProvider.uriForKey(mAuthority, path),
+                        null,
+                        false);
+            }
+        });
+    }
+
+    /**
+     * Returns the longest sequence of whole "/" separated segments the paths start with.
+     */
+    private static String getCommonPath(List<String> paths) {
+        List<String> common = Arrays.asList(paths.get(0).split("/"));
+        for (int idx = 1; idx < paths.size() && !common.isEmpty(); idx++) {
+            String[] segments = paths.get(idx).split("/");
+            int length = 0;
+            while (length < common.size() &&
+                    length < segments.length &&
+                    common.get(length).equals(segments[length])) {
+                length++;
+            }
+            common = common.subList(0, length);
+        }
+        StringBuilder path = new StringBuilder();
+        for (String segment : common) {
+            if (path.length() > 0) {
+                path.append('/');
+            }
+            path.append(segment);
+        }
+        return path.toString();
+    }
+}
@@ -0,0 +1,21 @@
+package co.rewen.statex;
+
+import java.util.List;
+
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+/**
+ * Native observer of state changes, see {@link StateX#registerObserver}.
+ */
+public interface StateXObserver {
+    /**
+     * Called with the changed keys the observer was registered for.
+     */
+    void onStateChanged(List<String> keys);
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Observers of exact keys or key prefixes, indexed by a trie of the keys, so that dispatching a
+ * changed key only costs a walk down its characters, whatever the number of observers.
+ */
+/* package */ class StateXObserverRegistry {
+
+    private static final StateXObserverRegistry sInstance = new StateXObserverRegistry();
+
+    private static class Registration {
+        final StateXObserver mObserver;
+        final Executor mExecutor;
+        final Node mNode;
+        final boolean mMatchPrefix;
+
+        Registration(StateXObserver observer, Executor executor, Node node, boolean matchPrefix) {
+            mObserver = observer;
+            mExecutor = executor;
+            mNode = node;
+            mMatchPrefix = matchPrefix;
+        }
+    }
+
+    private static class Node {
+        final @Nullable Node mParent;
+        final char mChar;
+        final HashMap<Character, Node> mChildren = new HashMap<>();
+        final ArrayList<Registration> mExact = new ArrayList<>();
+        final ArrayList<Registration> mPrefix = new ArrayList<>();
+
+        Node(@Nullable Node parent, char c) {
+            mParent = parent;
+            mChar = c;
+        }
+
+        boolean isEmpty() {
+            return mChildren.isEmpty() && mExact.isEmpty() && mPrefix.isEmpty();
+        }
+    }
+
+    private final Node mRoot = new Node(null, '\0');
+    private final HashMap<StateXObserver, ArrayList<Registration>> mRegistrations = new HashMap<>();
+
+    /* package */ static StateXObserverRegistry getInstance() {
+        return sInstance;
+    }
+
+    /* package */ synchronized void register(
+            String key,
+            boolean matchPrefix,
+            StateXObserver observer,
+            Executor executor) {
+        Node node = mRoot;
+        for (int idx = 0; idx < key.length(); idx++) {
+            char c = key.charAt(idx);
+            Node child = node.mChildren.get(c);
+            if (child == null) {
+                child = new Node(node, c);
+                node.mChildren.put(c, child);
+            }
+            node = child;
+        }
+        Registration registration = new Registration(observer, executor, node, matchPrefix);
+        (matchPrefix ? node.mPrefix : node.mExact).add(registration);
+        ArrayList<Registration> registrations = mRegistrations.get(observer);
+        if (registrations == null) {
+            registrations = new ArrayList<>();
+            mRegistrations.put(observer, registrations);
+        }
+        registrations.add(registration);
+    }
+
+    /* package */ synchronized void unregister(StateXObserver observer) {
+        ArrayList<Registration> registrations = mRegistrations.remove(observer);
+        if (registrations == null) {
+            return;
+        }
+        for (Registration registration : registrations) {
+            Node node = registration.mNode;
+            (registration.mMatchPrefix ? node.mPrefix : node.mExact).remove(registration);
+            // Prune the branches left without observers.
+            while (node.mParent != null && node.isEmpty()) {
+                node.mParent.mChildren.remove(node.mChar);
+                node = node.mParent;
+            }
+        }
+    }
+
+    /**
+     * Calls each observer matching some of the keys once, on the executor it was registered with,
+     * with the keys it matches.
+     */
+    /* package */ void dispatch(Collection<String> keys) {
+        LinkedHashMap<StateXObserver, Match> matches = new LinkedHashMap<>();
+        synchronized (this) {
+            if (mRegistrations.isEmpty()) {
+                return;
+            }
+            for (String key : keys) {
+                Node node = mRoot;
+                addMatches(matches, node.mPrefix, key);
+                for (int idx = 0; idx < key.length() && node != null; idx++) {
+                    node = node.mChildren.get(key.charAt(idx));
+                    if (node != null) {
+                        addMatches(matches, node.mPrefix, key);
+                    }
+                }
+                if (node != null) {
+                    addMatches(matches, node.mExact, key);
+                }
+            }
+        }
+        for (Map.Entry<StateXObserver, Match> entry : matches.entrySet()) {
+            final StateXObserver observer = entry.getKey();
+            final List<String> matchedKeys = new ArrayList<>(entry.getValue().mKeys);
+            entry.getValue().mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    observer.onStateChanged(matchedKeys);
+                }
+            });
+        }
+    }
+
+    private static class Match {
+        final Executor mExecutor;
+        final LinkedHashSet<String> mKeys = new LinkedHashSet<>();
+
+        Match(Executor executor) {
+            mExecutor = executor;
+        }
+    }
+
+    private static void addMatches(
+            Map<StateXObserver, Match> matches,
+            List<Registration> registrations,
+            String key) {
+        for (int idx = 0; idx < registrations.size(); idx++) {
+            Registration registration = registrations.get(idx);
+            Match match = matches.get(registration.mObserver);
+            if (match == null) {
+                match = new Match(registration.mExecutor);
+                matches.put(registration.mObserver, match);
+            }
+            match.mKeys.add(key);
+        }
+    }
+}
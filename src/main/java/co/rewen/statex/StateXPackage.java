@@ -1,7 +1,6 @@
 package co.rewen.statex;
 
 import com.facebook.react.ReactPackage;
-import com.facebook.react.bridge.JavaScriptModule;
 import com.facebook.react.bridge.NativeModule;
 import com.facebook.react.bridge.ReactApplicationContext;
 import com.facebook.react.uimanager.ViewManager;
@@ -18,18 +17,29 @@ import java.util.List;
  * LICENSE file in the root directory of this source tree.
  */
 public class StateXPackage implements ReactPackage {
+    private final StateXConfig mConfig;
+    private final StorageEngine.Type mEngineType;
+
+    public StateXPackage() {
+        this(StateXConfig.defaults());
+    }
+
+    public StateXPackage(StateXConfig config) {
+        this(config, StorageEngine.Type.SQLITE);
+    }
+
+    public StateXPackage(StateXConfig config, StorageEngine.Type engineType) {
+        mConfig = config;
+        mEngineType = engineType;
+    }
+
     @Override
     public List<NativeModule> createNativeModules(ReactApplicationContext reactApplicationContext) {
         ArrayList<NativeModule> modules = new ArrayList<>();
-        modules.add(new StateXModule(reactApplicationContext));
+        modules.add(new StateXModule(reactApplicationContext, mConfig, mEngineType));
         return modules;
     }
 
-    @Override
-    public List<Class<? extends JavaScriptModule>> createJSModules() {
-        return Collections.emptyList();
-    }
-
     @Override
     public List<ViewManager> createViewManagers(ReactApplicationContext reactApplicationContext) {
         return Collections.emptyList();
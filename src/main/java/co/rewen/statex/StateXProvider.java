@@ -0,0 +1,500 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the keys of StateX to other components and processes of the app, under the authority
+ * {@link #getAuthority}, declared by the library's manifest as the application id followed by
+ * ".statex". The URI of a key is {@link #uriForKey}, the mirror of {@link StateX#uriForKey}.
+ * <ul>
+ *   <li>query: the {@link #COLUMN_KEY}, {@link #COLUMN_VALUE} and {@link #COLUMN_VERSION} of the
+ *   key, or of the keys starting with it for a {@link #uriForPrefix} URI, in key order.</li>
+ *   <li>insert: sets the {@link #COLUMN_VALUE} of the key of the URI, or of the
+ *   {@link #COLUMN_KEY} value, with an optional {@link #COLUMN_TTL} in milliseconds.</li>
+ *   <li>update: merges the {@link #COLUMN_VALUE} into the stored value, see
+ *   {@link StateXModule#multiMerge}.</li>
+ *   <li>delete: removes the key, or the keys starting with it for a prefix URI.</li>
+ * </ul>
+ * {@link #bulkInsert} and {@link #applyBatch} write all their rows in a single transaction per
+ * shard, either all of them or none. Reads within a batch, e.g. assertions, don't see its writes.
+ * <p/>
+ * Changes, whether made here, from JS or through {@link StateXClient}, are notified to the
+ * {@link android.database.ContentObserver}s of the URI of the key, and to those of a prefix URI
+ * registered with notifyForDescendants, for prefixes ending with a "/". Changes made within a
+ * window are notified together, for the path the keys have in common, see {@link StateXNotifier}.
+ * <p/>
+ * While a {@link StateXModule} runs in the process, the provider goes through its
+ * {@link StateXClient}, sharing its read cache and write queues. Otherwise, e.g. when the process
+ * was started for the provider, it opens the SQLite databases itself, with the configuration
+ * passed to {@link #configure}.
+ */
+public class StateXProvider extends ContentProvider {
+
+    public static final String COLUMN_KEY = "key";
+    public static final String COLUMN_VALUE = "value";
+    public static final String COLUMN_VERSION = "version";
+    public static final String COLUMN_TTL = "ttl";
+    /**
+     * Query parameter of {@link #uriForPrefix} URIs.
+     */
+    public static final String PARAM_PREFIX = "prefix";
+    /**
+     * Query parameter limiting the number of keys of a prefix query.
+     */
+    public static final String PARAM_LIMIT = "limit";
+
+    private static final String AUTHORITY_SUFFIX = ".statex";
+    private static final String[] DEFAULT_PROJECTION = {COLUMN_KEY, COLUMN_VALUE, COLUMN_VERSION};
+    private static final String ITEM_TYPE = "vnd.android.cursor.item/vnd.co.rewen.state";
+    private static final String DIR_TYPE = "vnd.android.cursor.dir/vnd.co.rewen.state";
+
+    // Guards the client of the running module and the storage opened without it, which is only
+    // used while holding it, so that the provider never uses both at once.
+    private static final Object sLock = new Object();
+    private static @Nullable StateXClient sClient;
+    private static @Nullable DirectStorage sDirectStorage;
+    private static StateXConfig sConfig = StateXConfig.defaults();
+    private static StorageEngine.Type sEngineType = StorageEngine.Type.SQLITE;
+
+    // Operations of the applyBatch call in progress on each thread, applied once all are known.
+    private final ThreadLocal<ArrayList<StateXClient.Operation>> mBatch = new ThreadLocal<>();
+
+    public static String getAuthority(Context context) {
+        return context.getPackageName() + AUTHORITY_SUFFIX;
+    }
+
+    public static Uri uriForKey(Context context, String key) {
+        return uriForKey(getAuthority(context), key);
+    }
+
+    /**
+     * Returns the URI of the keys starting with the prefix, all keys for an empty prefix.
+     */
+    public static Uri uriForPrefix(Context context, String prefix) {
+        return uriForKey(context, prefix)
+                .buildUpon()
+                .appendQueryParameter(PARAM_PREFIX, "true")
+                .build();
+    }
+
+    /* package */ static Uri uriForKey(String authority, String key) {
+        Uri.Builder builder = new Uri.Builder();
+        builder.scheme(ContentResolver.SCHEME_CONTENT);
+        builder.authority(authority);
+        builder.path(key);
+        return builder.build();
+    }
+
+    /**
+     * Sets the configuration and the engine the provider uses while no {@link StateXModule} runs in
+     * the process, the same as the {@link StateXPackage}'s. Call it from
+     * {@link android.app.Application#onCreate} if they aren't the defaults. The provider needs a
+     * running module with {@link StorageEngine.Type#LOG_STRUCTURED}, whose index lives in memory.
+     */
+    public static void configure(StateXConfig config, StorageEngine.Type engineType) {
+        synchronized (sLock) {
+            sConfig = config;
+            sEngineType = engineType;
+        }
+    }
+
+    /**
+     * Routes the provider through the client of a module that has started. Waits for the reads and
+     * writes the provider is making without it, then closes the storage it opened for them.
+     */
+    /* package */ static void attach(StateXClient client) {
+        synchronized (sLock) {
+            if (sDirectStorage != null) {
+                sDirectStorage.close();
+                sDirectStorage = null;
+            }
+            sClient = client;
+        }
+    }
+
+    /* package */ static void detach(StateXClient client) {
+        synchronized (sLock) {
+            if (sClient == client) {
+                sClient = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean onCreate() {
+        // Storage is opened by the first call, off the main thread.
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return isPrefix(uri) ? DIR_TYPE : ITEM_TYPE;
+    }
+
+    @Override
+    public @Nullable Cursor query(
+            Uri uri,
+            @Nullable String[] projection,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs,
+            @Nullable String sortOrder) {
+        String[] columns = projection != null ? projection : DEFAULT_PROJECTION;
+        List<StateXClient.Entry> entries;
+        try {
+            if (isPrefix(uri)) {
+                entries = scan(keyOf(uri), getLimit(uri));
+            } else {
+                StateXClient.Entry entry = get(keyOf(uri));
+                entries = entry != null ?
+                        Collections.singletonList(entry) :
+                        Collections.<StateXClient.Entry>emptyList();
+            }
+        } catch (IOException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(columns, entries.size());
+        for (StateXClient.Entry entry : entries) {
+            Object[] row = new Object[columns.length];
+            for (int idx = 0; idx < columns.length; idx++) {
+                switch (columns[idx]) {
+                    case COLUMN_KEY:
+                        row[idx] = entry.getKey();
+                        break;
+                    case COLUMN_VALUE:
+                        row[idx] = entry.getValue();
+                        break;
+                    case COLUMN_VERSION:
+                        row[idx] = entry.getVersion();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown column: " + columns[idx]);
+                }
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    @Override
+    public @Nullable Uri insert(Uri uri, @Nullable ContentValues values) {
+        StateXClient.Operation operation = toSetOperation(uri, values);
+        if (!apply(Collections.singletonList(operation))) {
+            return null;
+        }
+        return uriForKey(getAuthority(getContext()), operation.mKey);
+    }
+
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        ArrayList<StateXClient.Operation> operations = new ArrayList<>(values.length);
+        for (ContentValues row : values) {
+            operations.add(toSetOperation(uri, row));
+        }
+        return apply(operations) ? operations.size() : 0;
+    }
+
+    @Override
+    public int update(
+            Uri uri,
+            @Nullable ContentValues values,
+            @Nullable String selection,
+            @Nullable String[] selectionArgs) {
+        String value = values != null ? values.getAsString(COLUMN_VALUE) : null;
+        StateXClient.Operation operation = StateXClient.Operation.merge(keyOf(uri), value);
+        return apply(Collections.singletonList(operation)) ? 1 : 0;
+    }
+
+    @Override
+    public int delete(Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        ArrayList<StateXClient.Operation> operations = new ArrayList<>();
+        if (isPrefix(uri)) {
+            try {
+                for (StateXClient.Entry entry : scan(keyOf(uri), 0)) {
+                    operations.add(StateXClient.Operation.remove(entry.getKey()));
+                }
+            } catch (IOException e) {
+                FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                return 0;
+            }
+        } else {
+            operations.add(StateXClient.Operation.remove(keyOf(uri)));
+        }
+        return apply(operations) ? operations.size() : 0;
+    }
+
+    /**
+     * Collects the writes of the operations, then applies them all in one transaction per shard.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ArrayList<StateXClient.Operation> batch = new ArrayList<>();
+        ContentProviderResult[] results;
+        mBatch.set(batch);
+        try {
+            results = super.applyBatch(operations);
+        } finally {
+            mBatch.remove();
+        }
+        try {
+            write(batch);
+        } catch (IOException e) {
+            throw new OperationApplicationException(e.getMessage(), e);
+        }
+        return results;
+    }
+
+    /**
+     * Writes the operations, or adds them to the batch in progress on this thread.
+     * @return false if they couldn't be written
+     */
+    private boolean apply(List<StateXClient.Operation> operations) {
+        ArrayList<StateXClient.Operation> batch = mBatch.get();
+        if (batch != null) {
+            batch.addAll(operations);
+            return true;
+        }
+        try {
+            write(operations);
+            return true;
+        } catch (IOException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private void write(List<StateXClient.Operation> operations) throws IOException {
+        StateXClient client;
+        synchronized (sLock) {
+            client = sClient;
+            if (client == null) {
+                getDirectStorage().write(operations);
+                return;
+            }
+        }
+        client.batchSync(operations);
+    }
+
+    private @Nullable StateXClient.Entry get(String key) throws IOException {
+        StateXClient client;
+        synchronized (sLock) {
+            client = sClient;
+            if (client == null) {
+                return getDirectStorage().get(key);
+            }
+        }
+        return client.getEntrySync(key);
+    }
+
+    private List<StateXClient.Entry> scan(String prefix, int limit) throws IOException {
+        StateXClient client;
+        synchronized (sLock) {
+            client = sClient;
+            if (client == null) {
+                return getDirectStorage().scan(prefix, limit);
+            }
+        }
+        return client.scanSync(prefix, limit);
+    }
+
+    /**
+     * Returns the storage opened without a module, opening it if needed. Called holding sLock.
+     */
+    private DirectStorage getDirectStorage() {
+        if (sEngineType != StorageEngine.Type.SQLITE) {
+            throw new IllegalStateException("StateX isn't running in this process");
+        }
+        if (sDirectStorage == null) {
+            sDirectStorage = new DirectStorage(getContext(), sConfig);
+        }
+        return sDirectStorage;
+    }
+
+    private static StateXClient.Operation toSetOperation(Uri uri, @Nullable ContentValues values) {
+        if (values == null) {
+            throw new IllegalArgumentException("No values for " + uri);
+        }
+        String key = values.containsKey(COLUMN_KEY) ? values.getAsString(COLUMN_KEY) : keyOf(uri);
+        Long ttl = values.getAsLong(COLUMN_TTL);
+        return StateXClient.Operation.set(
+                key,
+                values.getAsString(COLUMN_VALUE),
+                ttl != null ? ttl : 0);
+    }
+
+    private static String keyOf(Uri uri) {
+        String path = uri.getPath();
+        if (path == null) {
+            return "";
+        }
+        return path.startsWith("/") ? path.substring(1) : path;
+    }
+
+    private static boolean isPrefix(Uri uri) {
+        return Boolean.parseBoolean(uri.getQueryParameter(PARAM_PREFIX));
+    }
+
+    private static int getLimit(Uri uri) {
+        String limit = uri.getQueryParameter(PARAM_LIMIT);
+        try {
+            return limit != null ? Math.max(0, Integer.parseInt(limit)) : 0;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+    }
+
+    /**
+     * The SQLite databases of the shards, opened by the provider itself while no module runs.
+     * Reads and writes run in the caller's thread, under the provider lock. Eviction and the
+     * collection of unused value files are left to the module.
+     */
+    private static class DirectStorage {
+        private final StateXShards mShards;
+        private final StateXNotifier mNotifier;
+
+        DirectStorage(Context context, StateXConfig config) {
+            mShards = new StateXShards(
+                    createShard(context, null, config),
+                    createNamespaceShards(context, config));
+            mNotifier = new StateXNotifier(
+                    context,
+                    config.getNotificationWindowMs(),
+                    config.isPerKeyNotificationsEnabled());
+        }
+
+        private static ArrayList<StateXShards.Shard> createNamespaceShards(
+                Context context,
+                StateXConfig config) {
+            ArrayList<StateXShards.Shard> shards = new ArrayList<>();
+            for (String namespace : config.getShardedNamespaces()) {
+                shards.add(createShard(context, namespace, config));
+            }
+            return shards;
+        }
+
+        private static StateXShards.Shard createShard(
+                Context context,
+                @Nullable String namespace,
+                StateXConfig config) {
+            StorageEngine engine = new SQLiteStorageEngine(
+                    context,
+                    namespace == null ?
+                            StateXDatabaseSupplier.DATABASE_NAME :
+                            StateXShards.fileName(StateXDatabaseSupplier.DATABASE_NAME, namespace),
+                    config.isWriteAheadLoggingEnabled(),
+                    config,
+                    StateXMetrics.DISABLED);
+            return new StateXShards.Shard(namespace, engine, new StateXChangeFeed(null, config));
+        }
+
+        void close() {
+            for (StateXShards.Shard shard : mShards.getAll()) {
+                shard.getEngine().close();
+            }
+        }
+
+        @Nullable StateXClient.Entry get(String key) throws IOException {
+            StateXShards.Shard shard = mShards.get(key);
+            if (!mShards.open(shard)) {
+                throw new IOException("Database Error");
+            }
+            String[] keys = {key};
+            int[] positions = {0};
+            String[] values = new String[1];
+            long[] versions = new long[1];
+            shard.getEngine().multiGet(keys, positions, 1, values, new long[1], versions);
+            return values[0] != null ? new StateXClient.Entry(key, values[0], versions[0]) : null;
+        }
+
+        List<StateXClient.Entry> scan(String prefix, int limit) throws IOException {
+            for (StateXShards.Shard shard : mShards.getForPrefix(prefix)) {
+                if (!mShards.open(shard)) {
+                    throw new IOException("Database Error");
+                }
+            }
+            ArrayList<StateXClient.Entry> entries = new ArrayList<>();
+            StorageEngine.Scan scan = mShards.scan(prefix, null, true, null, limit, true);
+            try {
+                while (scan.moveToNext()) {
+                    entries.add(new StateXClient.Entry(
+                            scan.getKey(),
+                            scan.getValue(),
+                            scan.getVersion()));
+                }
+            } finally {
+                scan.close();
+            }
+            return entries;
+        }
+
+        void write(List<StateXClient.Operation> operations) throws IOException {
+            ArrayList<String> keys = new ArrayList<>(operations.size());
+            for (StateXClient.Operation operation : operations) {
+                keys.add(operation.mKey);
+            }
+            ArrayList<String> changedKeys = new ArrayList<>();
+            try {
+                for (Map.Entry<StateXShards.Shard, List<Integer>> shardOperations :
+                        mShards.partition(keys).entrySet()) {
+                    StateXShards.Shard shard = shardOperations.getKey();
+                    List<Integer> positions = shardOperations.getValue();
+                    if (!mShards.open(shard)) {
+                        throw new IOException("Database Error");
+                    }
+                    StorageEngine engine = shard.getEngine();
+                    engine.beginTransaction();
+                    try {
+                        StateXClient.applyOperations(
+                                engine,
+                                operations,
+                                positions,
+                                new String[positions.size()],
+                                new long[positions.size()],
+                                new long[positions.size()]);
+                        engine.setTransactionSuccessful();
+                    } finally {
+                        engine.endTransaction();
+                    }
+                    for (int position : positions) {
+                        changedKeys.add(keys.get(position));
+                    }
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                mNotifier.notifyStateChanged(changedKeys);
+            }
+        }
+    }
+}
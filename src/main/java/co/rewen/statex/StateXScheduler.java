@@ -0,0 +1,284 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import com.facebook.react.bridge.Arguments;
+import com.facebook.react.bridge.ReactContext;
+import com.facebook.react.bridge.WritableMap;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the work of StateX on threads of its own, rather than on the AsyncTask executor shared with
+ * every other module, so that a large scan of another module, or of this one, can't hold up a read.
+ * <p/>
+ * Tasks have a {@link Priority}: a free thread always takes the oldest task of the first priority
+ * that has one, so interactive reads overtake queued writes, and both overtake bulk work. Bulk
+ * tasks never occupy the last thread, which stays free for the rest.
+ * <p/>
+ * Calls are admitted with {@link #tryAcquire} and count as pending until they {@link #release}, at
+ * most {@link StateXConfig#getMaxPendingCalls()} per priority. Beyond it, callers fail the call
+ * right away, so that the queues stay bounded when calls come in faster than they complete.
+ * <p/>
+ * The threads run until {@link #shutdown}.
+ */
+/* package */ class StateXScheduler {
+
+    /* package */ enum Priority {
+        /**
+         * Reads a caller is waiting for.
+         */
+        INTERACTIVE,
+        /**
+         * Writes and the maintenance work of the write queues.
+         */
+        WRITE,
+        /**
+         * Scans of many keys and exports.
+         */
+        BULK,
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ReactContext mReactContext;
+    private final int mMaxPendingCalls;
+    private final int mMaxBulkThreads;
+    private final ArrayDeque<Runnable>[] mQueues;
+    // Per priority, guarded by this.
+    private final int[] mPending = new int[PRIORITIES.length];
+    private final int[] mRunning = new int[PRIORITIES.length];
+    private final int[] mPeakPending = new int[PRIORITIES.length];
+    private final long[] mRejected = new long[PRIORITIES.length];
+    private int mLiveThreads;
+    private boolean mShutdown;
+    private @Nullable Runnable mOnTerminated;
+
+    /**
+     * @param reactContext context to report the exceptions thrown by tasks to, like
+     *     {@link com.facebook.react.bridge.GuardedAsyncTask} does
+     * @param threadCount number of threads, at least 2 since bulk tasks never occupy the last one
+     */
+    @SuppressWarnings("unchecked")
+    /* package */ StateXScheduler(
+            ReactContext reactContext,
+            int threadCount,
+            int maxPendingCalls) {
+        if (threadCount < 2) {
+            throw new IllegalArgumentException("Invalid thread count: " + threadCount);
+        }
+        mReactContext = reactContext;
+        mMaxPendingCalls = maxPendingCalls;
+        mMaxBulkThreads = threadCount - 1;
+        mLiveThreads = threadCount;
+        mQueues = new ArrayDeque[PRIORITIES.length];
+        for (int idx = 0; idx < mQueues.length; idx++) {
+            mQueues[idx] = new ArrayDeque<>();
+        }
+        StateXThreadFactory threadFactory = new StateXThreadFactory("StateXWorker");
+        for (int idx = 0; idx < threadCount; idx++) {
+            threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }).start();
+        }
+    }
+
+    /**
+     * Admits a call of the given priority.
+     * @return false if too many calls of the priority are pending, in which case the call has to
+     *     fail without submitting anything
+     */
+    /* package */ synchronized boolean tryAcquire(Priority priority) {
+        int idx = priority.ordinal();
+        if (mPending[idx] >= mMaxPendingCalls) {
+            mRejected[idx]++;
+            return false;
+        }
+        mPending[idx]++;
+        if (mPending[idx] > mPeakPending[idx]) {
+            mPeakPending[idx] = mPending[idx];
+        }
+        return true;
+    }
+
+    /**
+     * Ends a call admitted by {@link #tryAcquire}.
+     */
+    /* package */ synchronized void release(Priority priority) {
+        mPending[priority.ordinal()]--;
+    }
+
+    /**
+     * Queues a task, of a call admitted already or of StateX itself.
+     */
+    /* package */ synchronized void execute(Priority priority, Runnable task) {
+        mQueues[priority.ordinal()].add(task);
+        notify();
+    }
+
+    /**
+     * Returns an executor running its tasks one at a time, in submission order, with the given
+     * priority.
+     */
+    /* package */ Executor newSerialExecutor(Priority priority) {
+        return new SerialExecutor(priority);
+    }
+
+    /**
+     * Stops the threads once the queued tasks, and the tasks they queue, have run. The last thread
+     * to stop then runs onTerminated. Tasks queued after that never run.
+     */
+    /* package */ synchronized void shutdown(Runnable onTerminated) {
+        mShutdown = true;
+        mOnTerminated = onTerminated;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of pending calls, queued tasks and running tasks of each priority, along
+     * with the peak number of pending calls and the number of rejected ones.
+     */
+    /* package */ synchronized WritableMap toMap() {
+        WritableMap map = Arguments.createMap();
+        for (Priority priority : PRIORITIES) {
+            int idx = priority.ordinal();
+            WritableMap stats = Arguments.createMap();
+            stats.putInt("pending", mPending[idx]);
+            stats.putInt("queued", mQueues[idx].size());
+            stats.putInt("running", mRunning[idx]);
+            stats.putInt("peakPending", mPeakPending[idx]);
+            stats.putDouble("rejected", mRejected[idx]);
+            map.putMap(priority.name().toLowerCase(Locale.US), stats);
+        }
+        map.putInt("maxPending", mMaxPendingCalls);
+        return map;
+    }
+
+    private void work() {
+        try {
+            runTasks();
+        } finally {
+            Runnable onTerminated = null;
+            synchronized (this) {
+                if (--mLiveThreads == 0) {
+                    onTerminated = mOnTerminated;
+                    mOnTerminated = null;
+                }
+            }
+            if (onTerminated != null) {
+                onTerminated.run();
+            }
+        }
+    }
+
+    private void runTasks() {
+        while (true) {
+            Priority priority;
+            Runnable task;
+            synchronized (this) {
+                while ((priority = nextPriority()) == null) {
+                    if (mShutdown && isIdle()) {
+                        // Nothing left running can queue more, stop the other threads too.
+                        notifyAll();
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                task = mQueues[priority.ordinal()].poll();
+                mRunning[priority.ordinal()]++;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                mReactContext.handleException(e);
+            } finally {
+                synchronized (this) {
+                    mRunning[priority.ordinal()]--;
+                    if (mShutdown) {
+                        // Threads waiting to stop once nothing runs.
+                        notifyAll();
+                    } else if (priority == Priority.BULK &&
+                            !mQueues[priority.ordinal()].isEmpty()) {
+                        // A bulk task may have been left behind while this one ran.
+                        notify();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isIdle() {
+        for (int idx = 0; idx < mQueues.length; idx++) {
+            if (!mQueues[idx].isEmpty() || mRunning[idx] > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private @Nullable Priority nextPriority() {
+        for (Priority priority : PRIORITIES) {
+            int idx = priority.ordinal();
+            if (mQueues[idx].isEmpty()) {
+                continue;
+            }
+            if (priority == Priority.BULK && mRunning[idx] >= mMaxBulkThreads) {
+                continue;
+            }
+            return priority;
+        }
+        return null;
+    }
+
+    private class SerialExecutor implements Executor {
+        private final Priority mPriority;
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+        private boolean mActive;
+
+        SerialExecutor(Priority priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public synchronized void execute(final Runnable command) {
+            mTasks.add(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (!mActive) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            Runnable next = mTasks.poll();
+            mActive = next != null;
+            if (next != null) {
+                StateXScheduler.this.execute(mPriority, next);
+            }
+        }
+    }
+}
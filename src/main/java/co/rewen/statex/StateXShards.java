@@ -0,0 +1,462 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static co.rewen.statex.AsyncLocalStorageUtil.KEY_ORDER;
+
+/**
+ * Routes keys to shards, each with its own storage engine and write queue, so that writes to
+ * different shards don't wait for each other.
+ * <p/>
+ * Keys starting with one of the namespaces of {@link StateXConfig#getShardedNamespaces()} belong to
+ * the shard of the longest such namespace, other keys to the default shard, which is the database
+ * used before sharding. Keys of a namespace that are still in the default shard, e.g. because the
+ * namespace was just configured, are moved to its shard the first time the shards are opened, before
+ * anything else can read or write them.
+ */
+/* package */ class StateXShards {
+
+    // Keys moved per transaction when moving keys from the default shard to their shard.
+    private static final int MIGRATION_BATCH_SIZE = 256;
+
+    /* package */ static class Shard {
+        private final @Nullable String mNamespace;
+        private final StorageEngine mEngine;
+        private final StateXChangeFeed mChangeFeed;
+        private @Nullable StateXWriteQueue mWriteQueue;
+        private final AtomicBoolean mGarbageCollectionPending = new AtomicBoolean();
+        private final AtomicBoolean mEvictionPending = new AtomicBoolean();
+        private final AtomicBoolean mEvictionForFullStorage = new AtomicBoolean();
+        private final AtomicBoolean mExpirySweepPending = new AtomicBoolean();
+
+        /* package */ Shard(
+                @Nullable String namespace,
+                StorageEngine engine,
+                StateXChangeFeed changeFeed) {
+            mNamespace = namespace;
+            mEngine = engine;
+            mChangeFeed = changeFeed;
+        }
+
+        /**
+         * Returns the namespace of the shard, or null for the default shard.
+         */
+        /* package */ @Nullable String getNamespace() {
+            return mNamespace;
+        }
+
+        /* package */ StorageEngine getEngine() {
+            return mEngine;
+        }
+
+        /**
+         * Returns the change feed of the transactions of the shard, only used by its writes.
+         */
+        /* package */ StateXChangeFeed getChangeFeed() {
+            return mChangeFeed;
+        }
+
+        /* package */ StateXWriteQueue getWriteQueue() {
+            if (mWriteQueue == null) {
+                throw new IllegalStateException("No write queue");
+            }
+            return mWriteQueue;
+        }
+
+        /**
+         * Sets the write queue, once, right after creating the shard, since it refers to the shard.
+         */
+        /* package */ void setWriteQueue(StateXWriteQueue writeQueue) {
+            mWriteQueue = writeQueue;
+        }
+
+        /* package */ AtomicBoolean getGarbageCollectionPending() {
+            return mGarbageCollectionPending;
+        }
+
+        /* package */ AtomicBoolean getEvictionPending() {
+            return mEvictionPending;
+        }
+
+        /* package */ AtomicBoolean getEvictionForFullStorage() {
+            return mEvictionForFullStorage;
+        }
+
+        /* package */ AtomicBoolean getExpirySweepPending() {
+            return mExpirySweepPending;
+        }
+    }
+
+    private final Shard mDefaultShard;
+    // Shards of namespaces, longest namespace first.
+    private final ArrayList<Shard> mNamespaceShards;
+    private final ArrayList<Shard> mAllShards = new ArrayList<>();
+    private volatile boolean mMigrated;
+
+    /* package */ StateXShards(Shard defaultShard, List<Shard> namespaceShards) {
+        mDefaultShard = defaultShard;
+        mNamespaceShards = new ArrayList<>(namespaceShards);
+        Collections.sort(mNamespaceShards, new Comparator<Shard>() {
+            @Override
+            public int compare(Shard lhs, Shard rhs) {
+                return rhs.mNamespace.length() - lhs.mNamespace.length();
+            }
+        });
+        mAllShards.add(defaultShard);
+        mAllShards.addAll(mNamespaceShards);
+    }
+
+    /**
+     * Returns a name made of the characters allowed in file names, unique to the namespace.
+     */
+    /* package */ static String fileName(String prefix, String namespace) {
+        StringBuilder name = new StringBuilder(prefix).append('-');
+        for (int idx = 0; idx < namespace.length(); idx++) {
+            char c = namespace.charAt(idx);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                    c == '-' || c == '.') {
+                name.append(c);
+            } else {
+                name.append('_').append(String.format("%04x", (int) c));
+            }
+        }
+        return name.toString();
+    }
+
+    /* package */ Shard getDefaultShard() {
+        return mDefaultShard;
+    }
+
+    /* package */ List<Shard> getAll() {
+        return mAllShards;
+    }
+
+    /**
+     * Returns the shard the key belongs to.
+     */
+    /* package */ Shard get(String key) {
+        for (Shard shard : mNamespaceShards) {
+            if (key.startsWith(shard.mNamespace)) {
+                return shard;
+            }
+        }
+        return mDefaultShard;
+    }
+
+    /**
+     * Returns the shard of the namespace, or null if it isn't sharded.
+     */
+    /* package */ @Nullable Shard getByNamespace(String namespace) {
+        for (Shard shard : mNamespaceShards) {
+            if (shard.mNamespace.equals(namespace)) {
+                return shard;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shards that may hold keys starting with the prefix: the shard of the prefix
+     * itself and the shards of the namespaces starting with it.
+     */
+    /* package */ List<Shard> getForPrefix(String prefix) {
+        ArrayList<Shard> shards = new ArrayList<>();
+        Shard owner = get(prefix);
+        for (Shard shard : mAllShards) {
+            if (shard == owner || (shard.mNamespace != null && shard.mNamespace.startsWith(prefix))) {
+                shards.add(shard);
+            }
+        }
+        return shards;
+    }
+
+    /**
+     * Groups the positions of the keys by shard. Null keys are put in the default shard.
+     */
+    /* package */ Map<Shard, List<Integer>> partition(List<String> keys) {
+        LinkedHashMap<Shard, List<Integer>> partition = new LinkedHashMap<>();
+        for (int idx = 0; idx < keys.size(); idx++) {
+            String key = keys.get(idx);
+            Shard shard = key != null ? get(key) : mDefaultShard;
+            List<Integer> positions = partition.get(shard);
+            if (positions == null) {
+                positions = new ArrayList<>();
+                partition.put(shard, positions);
+            }
+            positions.add(idx);
+        }
+        return partition;
+    }
+
+    /**
+     * Opens the storage of the shard, moving the keys of namespaces out of the default shard first
+     * if no shard was opened yet.
+     * @return false if it couldn't be opened
+     */
+    /* package */ boolean open(Shard shard) {
+        if (!mMigrated && !migrate()) {
+            return false;
+        }
+        return shard.mEngine.open();
+    }
+
+    /**
+     * Opens all shards.
+     */
+    /* package */ boolean openAll() {
+        for (Shard shard : mAllShards) {
+            if (!open(shard)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scans the shards that may hold keys starting with the prefix, see {@link StorageEngine#scan},
+     * merging their rows in key order.
+     */
+    /* package */ StorageEngine.Scan scan(
+            String prefix,
+            @Nullable String startKey,
+            boolean startInclusive,
+            @Nullable String endKey,
+            int limit,
+            boolean includeValues) throws IOException {
+        List<Shard> shards = getForPrefix(prefix);
+        if (shards.size() == 1) {
+            return shards.get(0).mEngine.scan(
+                    prefix,
+                    startKey,
+                    startInclusive,
+                    endKey,
+                    limit,
+                    includeValues);
+        }
+        ArrayList<StorageEngine.Scan> scans = new ArrayList<>(shards.size());
+        try {
+            for (Shard shard : shards) {
+                scans.add(shard.mEngine.scan(
+                        prefix,
+                        startKey,
+                        startInclusive,
+                        endKey,
+                        limit,
+                        includeValues));
+            }
+            return new MergedScan(scans, limit);
+        } catch (IOException | RuntimeException e) {
+            for (StorageEngine.Scan scan : scans) {
+                scan.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Moves the keys of each namespace found in the default shard to the shard of the namespace,
+     * unless the shard has a value for them already, which is then the newer one. Keys are copied
+     * before they are removed from the default shard, so a move interrupted by a crash is completed
+     * by the next one.
+     */
+    private synchronized boolean migrate() {
+        if (mMigrated) {
+            return true;
+        }
+        if (mNamespaceShards.isEmpty()) {
+            mMigrated = true;
+            return true;
+        }
+        StorageEngine defaultEngine = mDefaultShard.mEngine;
+        try {
+            if (!defaultEngine.open()) {
+                return false;
+            }
+            for (Shard shard : mNamespaceShards) {
+                ArrayList<String> keys = new ArrayList<>();
+                StorageEngine.Scan scan = defaultEngine.scan(shard.mNamespace, null, true, null, 0, false);
+                try {
+                    while (scan.moveToNext()) {
+                        // Keys of a longer namespace move to their own shard.
+                        if (get(scan.getKey()) == shard) {
+                            keys.add(scan.getKey());
+                        }
+                    }
+                } finally {
+                    scan.close();
+                }
+                if (keys.isEmpty()) {
+                    continue;
+                }
+                if (!shard.mEngine.open()) {
+                    return false;
+                }
+                for (int start = 0; start < keys.size(); start += MIGRATION_BATCH_SIZE) {
+                    moveKeys(
+                            defaultEngine,
+                            shard.mEngine,
+                            keys.subList(start, Math.min(keys.size(), start + MIGRATION_BATCH_SIZE)));
+                }
+                FLog.i(ReactConstants.TAG, "Moved " + keys.size() + " keys to the shard of " +
+                        shard.mNamespace);
+            }
+        } catch (Exception e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            return false;
+        }
+        mMigrated = true;
+        return true;
+    }
+
+    private static void moveKeys(StorageEngine source, StorageEngine target, List<String> keys)
+            throws Exception {
+        int count = keys.size();
+        String[] keyArray = keys.toArray(new String[count]);
+        int[] positions = new int[count];
+        for (int idx = 0; idx < count; idx++) {
+            positions[idx] = idx;
+        }
+        String[] values = new String[count];
+        long[] expirations = new long[count];
+        source.multiGet(keyArray, positions, count, values, expirations, new long[count]);
+        String[] targetValues = new String[count];
+        target.multiGet(
+                keyArray,
+                positions,
+                count,
+                targetValues,
+                new long[count],
+                new long[count]);
+
+        target.beginTransaction();
+        try {
+            for (int idx = 0; idx < count; idx++) {
+                if (values[idx] != null && targetValues[idx] == null) {
+                    target.set(keyArray[idx], values[idx], expirations[idx]);
+                }
+            }
+            target.setTransactionSuccessful();
+        } finally {
+            target.endTransaction();
+        }
+        source.beginTransaction();
+        try {
+            source.remove(keys);
+            source.setTransactionSuccessful();
+        } finally {
+            source.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the keys of the collection that belong to the shard.
+     */
+    /* package */ List<String> keysOf(Shard shard, Collection<String> keys) {
+        ArrayList<String> shardKeys = new ArrayList<>();
+        for (String key : keys) {
+            if (key != null && get(key) == shard) {
+                shardKeys.add(key);
+            }
+        }
+        return shardKeys;
+    }
+
+    /**
+     * Merges scans returning rows in key order, keys being unique across them.
+     */
+    private static class MergedScan implements StorageEngine.Scan {
+        private final ArrayList<StorageEngine.Scan> mScans;
+        private final PriorityQueue<StorageEngine.Scan> mHeads;
+        private final int mLimit;
+        private int mCount;
+        private @Nullable StorageEngine.Scan mCurrent;
+        private boolean mStarted;
+
+        MergedScan(ArrayList<StorageEngine.Scan> scans, int limit) {
+            mScans = scans;
+            mLimit = limit;
+            mHeads = new PriorityQueue<>(scans.size(), new Comparator<StorageEngine.Scan>() {
+                @Override
+                public int compare(StorageEngine.Scan lhs, StorageEngine.Scan rhs) {
+                    return KEY_ORDER.compare(lhs.getKey(), rhs.getKey());
+                }
+            });
+        }
+
+        @Override
+        public boolean moveToNext() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                for (StorageEngine.Scan scan : mScans) {
+                    if (scan.moveToNext()) {
+                        mHeads.add(scan);
+                    }
+                }
+            } else if (mCurrent != null && mCurrent.moveToNext()) {
+                mHeads.add(mCurrent);
+            }
+            mCurrent = mLimit > 0 && mCount >= mLimit ? null : mHeads.poll();
+            if (mCurrent == null) {
+                return false;
+            }
+            mCount++;
+            return true;
+        }
+
+        @Override
+        public String getKey() {
+            return getCurrent().getKey();
+        }
+
+        @Override
+        public String getValue() throws IOException {
+            return getCurrent().getValue();
+        }
+
+        @Override
+        public long getExpiresAt() {
+            return getCurrent().getExpiresAt();
+        }
+
+        @Override
+        public long getVersion() {
+            return getCurrent().getVersion();
+        }
+
+        @Override
+        public void close() {
+            for (StorageEngine.Scan scan : mScans) {
+                scan.close();
+            }
+        }
+
+        private StorageEngine.Scan getCurrent() {
+            if (mCurrent == null) {
+                throw new IllegalStateException("No current row");
+            }
+            return mCurrent;
+        }
+    }
+}
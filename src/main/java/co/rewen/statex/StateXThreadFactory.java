@@ -0,0 +1,42 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads running at background priority.
+ */
+/* package */ class StateXThreadFactory implements ThreadFactory {
+
+    private final String mName;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    /* package */ StateXThreadFactory(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                },
+                mName + "-" + mCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
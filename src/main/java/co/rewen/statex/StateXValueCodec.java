@@ -0,0 +1,214 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static co.rewen.statex.StateXDatabaseSupplier.CODEC_COLUMN;
+import static co.rewen.statex.StateXDatabaseSupplier.VALUE_COLUMN;
+
+/**
+ * Encodes values into the value and codec columns of the state table.
+ * <p/>
+ * Values shorter than the compression threshold are stored as TEXT with {@link #CODEC_NONE}.
+ * Longer ones are stored as a BLOB with {@link #CODEC_DEFLATE}: the length of their UTF-8 encoding
+ * as 4 big-endian bytes, followed by that encoding compressed with Deflate. Values that don't get
+ * smaller are stored as TEXT. Values longer than the external threshold are stored in a side file,
+ * see {@link StateXValueFiles}, with {@link #CODEC_EXTERNAL} and the reference to the file as TEXT.
+ * Decoding doesn't depend on the thresholds, so they can be changed at any time.
+ */
+/* package */ class StateXValueCodec {
+
+    /* package */ static final int CODEC_NONE = 0;
+    /* package */ static final int CODEC_DEFLATE = 1;
+    /* package */ static final int CODEC_EXTERNAL = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HEADER_SIZE = 4;
+
+    // Deflater and Inflater hold native buffers, keep one per thread rather than one per value.
+    private static final ThreadLocal<Deflater> sDeflater = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED);
+        }
+    };
+    private static final ThreadLocal<Inflater> sInflater = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater();
+        }
+    };
+
+    private final int mCompressionThreshold;
+    private final int mExternalThreshold;
+    private final StateXValueFiles mFiles;
+
+    /**
+     * @param compressionThreshold length from which values are compressed, 0 to never compress
+     * @param externalThreshold length from which values are stored in side files, 0 to never
+     */
+    /* package */ StateXValueCodec(
+            int compressionThreshold,
+            int externalThreshold,
+            StateXValueFiles files) {
+        mCompressionThreshold = compressionThreshold;
+        mExternalThreshold = externalThreshold;
+        mFiles = files;
+    }
+
+    /* package */ StateXValueFiles getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * Binds the encoded value and its codec to the given parameters of the statement.
+     * @return the number of bytes used to store the value
+     */
+    /* package */ long bind(SQLiteStatement statement, int valueIndex, int codecIndex, String value)
+            throws IOException {
+        if (isExternal(value)) {
+            statement.bindString(valueIndex, mFiles.write(value));
+            statement.bindLong(codecIndex, CODEC_EXTERNAL);
+            return utf8Length(value);
+        }
+        byte[] compressed = compress(value);
+        if (compressed != null) {
+            statement.bindBlob(valueIndex, compressed);
+            statement.bindLong(codecIndex, CODEC_DEFLATE);
+            return compressed.length;
+        } else {
+            statement.bindString(valueIndex, value);
+            statement.bindLong(codecIndex, CODEC_NONE);
+            return utf8Length(value);
+        }
+    }
+
+    /**
+     * Puts the encoded value and its codec into the content values.
+     * @return the number of bytes used to store the value
+     */
+    /* package */ long put(ContentValues contentValues, String value) throws IOException {
+        if (isExternal(value)) {
+            contentValues.put(VALUE_COLUMN, mFiles.write(value));
+            contentValues.put(CODEC_COLUMN, CODEC_EXTERNAL);
+            return utf8Length(value);
+        }
+        byte[] compressed = compress(value);
+        if (compressed != null) {
+            contentValues.put(VALUE_COLUMN, compressed);
+            contentValues.put(CODEC_COLUMN, CODEC_DEFLATE);
+            return compressed.length;
+        } else {
+            contentValues.put(VALUE_COLUMN, value);
+            contentValues.put(CODEC_COLUMN, CODEC_NONE);
+            return utf8Length(value);
+        }
+    }
+
+    /**
+     * Returns the length of the UTF-8 encoding of the string, without encoding it.
+     */
+    /* package */ static int utf8Length(String string) {
+        int length = string.length();
+        for (int idx = 0; idx < string.length(); idx++) {
+            char c = string.charAt(idx);
+            if (c >= 0x800) {
+                // Surrogate pairs take 4 bytes, 2 for each of their chars.
+                length += c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE ? 1 : 2;
+            } else if (c >= 0x80) {
+                length += 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the value stored in the given value and codec columns of the cursor.
+     * Externalized values can only be decoded between {@link StateXValueFiles#beginRead} and
+     * {@link StateXValueFiles#endRead} calls surrounding the query, or on the writer thread.
+     */
+    /* package */ String decode(Cursor cursor, int valueIndex, int codecIndex) throws IOException {
+        switch (cursor.getInt(codecIndex)) {
+            case CODEC_NONE:
+                return cursor.getString(valueIndex);
+            case CODEC_DEFLATE:
+                return decompress(cursor.getBlob(valueIndex));
+            case CODEC_EXTERNAL:
+                return mFiles.read(cursor.getString(valueIndex));
+            default:
+                throw new IllegalStateException("Unknown codec " + cursor.getInt(codecIndex));
+        }
+    }
+
+    private boolean isExternal(String value) {
+        return mExternalThreshold > 0 && value.length() >= mExternalThreshold;
+    }
+
+    private byte[] compress(String value) {
+        if (mCompressionThreshold <= 0 || value.length() < mCompressionThreshold) {
+            return null;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        Deflater deflater = sDeflater.get();
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        // Only keep the compressed value if it is smaller.
+        byte[] compressed = new byte[bytes.length];
+        int length = HEADER_SIZE;
+        while (!deflater.finished() && length < compressed.length) {
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        compressed[0] = (byte) (bytes.length >>> 24);
+        compressed[1] = (byte) (bytes.length >>> 16);
+        compressed[2] = (byte) (bytes.length >>> 8);
+        compressed[3] = (byte) bytes.length;
+        return Arrays.copyOf(compressed, length);
+    }
+
+    private static String decompress(byte[] compressed) {
+        int length = ((compressed[0] & 0xFF) << 24) |
+                ((compressed[1] & 0xFF) << 16) |
+                ((compressed[2] & 0xFF) << 8) |
+                (compressed[3] & 0xFF);
+        byte[] bytes = new byte[length];
+        Inflater inflater = sInflater.get();
+        inflater.reset();
+        inflater.setInput(compressed, HEADER_SIZE, compressed.length - HEADER_SIZE);
+        try {
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(bytes, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length) {
+                throw new IllegalStateException("Truncated compressed value");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupted compressed value", e);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
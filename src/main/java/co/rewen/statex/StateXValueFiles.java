@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.content.Context;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Side files holding values too large to be stored in the state table, which then only holds a
+ * reference: the name of the file and the CRC32 of its content.
+ * <p/>
+ * Values are read through a memory-mapped buffer, so they never go through a CursorWindow and are
+ * decoded without an intermediate copy of their bytes. Files are never modified: a new value gets
+ * a new file, and files no longer referenced are deleted by {@link #delete} once no read that may
+ * still use them is in progress (see {@link #beginRead}).
+ */
+/* package */ class StateXValueFiles {
+
+    /* package */ static final String DIRECTORY_NAME = "StateXValues";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int CHECKSUM_CHUNK_SIZE = 8192;
+
+    private final Context mContext;
+    private final String mDirectoryName;
+    private File mDirectory;
+    // Unknown until the directory is first listed.
+    private volatile boolean mMayHaveFiles = true;
+    private int mReaders;
+    private final ArrayList<File> mDoomed = new ArrayList<>();
+
+    /* package */ StateXValueFiles(Context context, String directoryName) {
+        mContext = context;
+        mDirectoryName = directoryName;
+    }
+
+    /**
+     * Writes the value to a new file and returns its reference.
+     */
+    /* package */ String write(String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF_8);
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, 0, bytes.length);
+
+        File directory = getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        mMayHaveFiles = true;
+        String name = UUID.randomUUID().toString();
+        FileOutputStream out = new FileOutputStream(new File(directory, name));
+        try {
+            out.write(bytes);
+            // The reference is committed right after, the file must be durable by then.
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return name + ':' + Long.toHexString(checksum.getValue());
+    }
+
+    /**
+     * Reads the value of the given reference, verifying its checksum.
+     */
+    /* package */ String read(String reference) throws IOException {
+        int separator = reference.lastIndexOf(':');
+        if (separator < 0) {
+            throw new IOException("Invalid value file reference " + reference);
+        }
+        String name = reference.substring(0, separator);
+        long expectedChecksum = Long.parseLong(reference.substring(separator + 1), 16);
+
+        RandomAccessFile file = new RandomAccessFile(new File(getDirectory(), name), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (checksum(buffer) != expectedChecksum) {
+                throw new IOException("Corrupted value file " + name);
+            }
+            return UTF_8.newDecoder().decode(buffer).toString();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the size of the file of a reference, 0 if it doesn't exist.
+     */
+    /* package */ long length(String reference) {
+        return new File(getDirectory(), nameOf(reference)).length();
+    }
+
+    /**
+     * Returns the name of the file of a reference.
+     */
+    /* package */ static String nameOf(String reference) {
+        int separator = reference.lastIndexOf(':');
+        return separator < 0 ? reference : reference.substring(0, separator);
+    }
+
+    /**
+     * Returns false if there is certainly no file, so there is nothing to collect.
+     */
+    /* package */ boolean mayHaveFiles() {
+        return mMayHaveFiles;
+    }
+
+    /**
+     * Returns the names of all files, referenced or not. Must be called on the writer thread.
+     */
+    /* package */ HashSet<String> list() {
+        HashSet<String> names = new HashSet<>();
+        String[] files = getDirectory().list();
+        if (files != null) {
+            for (String name : files) {
+                names.add(name);
+            }
+        }
+        if (names.isEmpty()) {
+            mMayHaveFiles = false;
+        }
+        return names;
+    }
+
+    /**
+     * Deletes files that are no longer referenced by committed rows. Files are only deleted once
+     * the reads in progress, which may have seen an older row, have ended.
+     */
+    /* package */ synchronized void delete(Collection<String> names) {
+        for (String name : names) {
+            mDoomed.add(new File(getDirectory(), name));
+        }
+        if (mReaders == 0) {
+            deleteDoomed();
+        }
+    }
+
+    /**
+     * Deletes all files, for when the database itself is deleted.
+     */
+    /* package */ void deleteAll() {
+        delete(list());
+    }
+
+    /**
+     * Must be called before querying rows whose referenced files will be read, and followed by
+     * {@link #endRead}.
+     */
+    /* package */ synchronized void beginRead() {
+        mReaders++;
+    }
+
+    /* package */ synchronized void endRead() {
+        mReaders--;
+        if (mReaders == 0 && !mDoomed.isEmpty()) {
+            deleteDoomed();
+        }
+    }
+
+    private void deleteDoomed() {
+        for (File file : mDoomed) {
+            if (!file.delete() && file.exists()) {
+                FLog.w(ReactConstants.TAG, "Could not delete value file " + file);
+            }
+        }
+        mDoomed.clear();
+    }
+
+    private synchronized File getDirectory() {
+        if (mDirectory == null) {
+            mDirectory = new File(mContext.getFilesDir(), mDirectoryName);
+        }
+        return mDirectory;
+    }
+
+    private static long checksum(ByteBuffer buffer) {
+        CRC32 checksum = new CRC32();
+        ByteBuffer source = buffer.duplicate();
+        byte[] chunk = new byte[Math.min(CHECKSUM_CHUNK_SIZE, source.remaining())];
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            checksum.update(chunk, 0, length);
+        }
+        return checksum.getValue();
+    }
+}
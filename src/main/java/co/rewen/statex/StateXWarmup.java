@@ -0,0 +1,218 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.common.ReactConstants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the keys likely to be read first into the read cache when the module starts, so that the
+ * first reads don't wait for the database.
+ * <p/>
+ * The keys are the ones configured with {@link StateXConfig.Builder#setPreloadKeys} and
+ * {@link StateXConfig.Builder#setPreloadPrefixes}, and, if startup key recording is enabled, the
+ * keys read during the previous startup, which are kept in shared preferences.
+ */
+/* package */ class StateXWarmup {
+
+    private static final String PREFERENCES_NAME = "StateXWarmup";
+    private static final String STARTUP_KEYS = "startupKeys";
+    /* package */ static final int MAX_STARTUP_KEYS = 256;
+
+    private final Context mContext;
+    private final List<String> mPreloadKeys;
+    private final List<String> mPreloadPrefixes;
+    private final long mRecordingWindowMs;
+    private final LinkedHashSet<String> mStartupKeys = new LinkedHashSet<>();
+    private volatile boolean mRecording;
+    private long mRecordingStart;
+
+    /* package */ StateXWarmup(Context context, StateXConfig config) {
+        mContext = context.getApplicationContext();
+        mPreloadKeys = config.getPreloadKeys();
+        mPreloadPrefixes = config.getPreloadPrefixes();
+        mRecordingWindowMs = config.getStartupKeyRecordingWindowMs();
+    }
+
+    /**
+     * Opens the storage of all shards and loads the keys into the cache, as long as they fit.
+     * Values are cached with {@link StateXCache#putIfUnchanged}, so writes that commit meanwhile
+     * win. Starts recording the keys read, if enabled.
+     */
+    /* package */ void run(StateXShards shards, StateXCache cache, StateXMetrics metrics) {
+        LinkedHashSet<String> keys = new LinkedHashSet<>(mPreloadKeys);
+        if (mRecordingWindowMs > 0) {
+            keys.addAll(loadStartupKeys());
+            synchronized (this) {
+                mStartupKeys.clear();
+                mRecordingStart = System.currentTimeMillis();
+                mRecording = true;
+            }
+        }
+        StateXMetrics.Sample sample = metrics.begin("preload");
+        if (!shards.openAll()) {
+            sample.end(false);
+            return;
+        }
+        sample.executing();
+        if (!cache.isEnabled() || (keys.isEmpty() && mPreloadPrefixes.isEmpty())) {
+            sample.end(true);
+            return;
+        }
+
+        long budget = cache.getMaxSize();
+        int count = 0;
+        try {
+            if (!keys.isEmpty()) {
+                ArrayList<String> keyList = new ArrayList<>(keys);
+                String[] keyArray = keyList.toArray(new String[keyList.size()]);
+                String[] values = new String[keyArray.length];
+                long[] expirations = new long[keyArray.length];
+                long[] versions = new long[keyArray.length];
+                long generation = cache.generation();
+                for (Map.Entry<StateXShards.Shard, List<Integer>> shardKeys :
+                        shards.partition(keyList).entrySet()) {
+                    List<Integer> shardPositions = shardKeys.getValue();
+                    int[] positions = new int[shardPositions.size()];
+                    for (int idx = 0; idx < positions.length; idx++) {
+                        positions[idx] = shardPositions.get(idx);
+                    }
+                    shardKeys.getKey().getEngine().multiGet(
+                            keyArray,
+                            positions,
+                            positions.length,
+                            values,
+                            expirations,
+                            versions);
+                }
+                for (int idx = 0; idx < keyArray.length && budget > 0; idx++) {
+                    if (values[idx] != null) {
+                        cache.putIfUnchanged(
+                                generation,
+                                keyArray[idx],
+                                values[idx],
+                                expirations[idx],
+                                versions[idx]);
+                        budget -= StateXCache.sizeOf(keyArray[idx], values[idx]);
+                        sample.read(values[idx]);
+                        count++;
+                    }
+                }
+            }
+            for (String prefix : mPreloadPrefixes) {
+                if (budget <= 0) {
+                    break;
+                }
+                long generation = cache.generation();
+                StorageEngine.Scan scan = shards.scan(prefix, null, true, null, 0, true);
+                try {
+                    while (budget > 0 && scan.moveToNext()) {
+                        String key = scan.getKey();
+                        String value = scan.getValue();
+                        cache.putIfUnchanged(
+                                generation,
+                                key,
+                                value,
+                                scan.getExpiresAt(),
+                                scan.getVersion());
+                        budget -= StateXCache.sizeOf(key, value);
+                        sample.read(value);
+                        count++;
+                    }
+                } finally {
+                    scan.close();
+                }
+            }
+        } catch (Exception e) {
+            // Keys that weren't preloaded are read from the database as usual.
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            sample.keys(count);
+            sample.end(false);
+            return;
+        }
+        sample.keys(count);
+        sample.end(true);
+    }
+
+    /**
+     * Records keys read by the app, while the recording window is open. The keys are saved once the
+     * window closes or {@link #MAX_STARTUP_KEYS} are recorded, whichever comes first.
+     */
+    /* package */ void recordReads(List<String> keys) {
+        if (!mRecording) {
+            return;
+        }
+        synchronized (this) {
+            if (!mRecording) {
+                return;
+            }
+            if (System.currentTimeMillis() - mRecordingStart <= mRecordingWindowMs) {
+                for (String key : keys) {
+                    if (mStartupKeys.size() >= MAX_STARTUP_KEYS) {
+                        break;
+                    }
+                    mStartupKeys.add(key);
+                }
+                if (mStartupKeys.size() < MAX_STARTUP_KEYS) {
+                    return;
+                }
+            }
+            stopRecording();
+        }
+    }
+
+    /**
+     * Saves the keys recorded so far, if still recording, e.g. when the module is destroyed before
+     * the window closes.
+     */
+    /* package */ synchronized void stopRecording() {
+        if (!mRecording) {
+            return;
+        }
+        mRecording = false;
+        JSONArray keys = new JSONArray();
+        for (String key : mStartupKeys) {
+            keys.put(key);
+        }
+        mStartupKeys.clear();
+        getPreferences().edit().putString(STARTUP_KEYS, keys.toString()).apply();
+    }
+
+    private List<String> loadStartupKeys() {
+        ArrayList<String> keys = new ArrayList<>();
+        String json = getPreferences().getString(STARTUP_KEYS, null);
+        if (json == null) {
+            return keys;
+        }
+        try {
+            JSONArray array = new JSONArray(json);
+            for (int idx = 0; idx < array.length(); idx++) {
+                keys.add(array.getString(idx));
+            }
+        } catch (JSONException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+        }
+        return keys;
+    }
+
+    private SharedPreferences getPreferences() {
+        return mContext.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+}
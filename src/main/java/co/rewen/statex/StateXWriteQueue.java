@@ -0,0 +1,370 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.database.sqlite.SQLiteFullException;
+
+import com.facebook.common.logging.FLog;
+import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.common.ReactConstants;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the writes submitted within a short window and commits them in a single transaction
+ * (group commit), so that many small writes only pay for one transaction and one sync.
+ * <p/>
+ * Writes are applied and completed in submission order. If the shared transaction fails, every
+ * write of the batch is retried in its own transaction, so a failing write only fails its caller.
+ * <p/>
+ * Readers can use {@link #barrier} and {@link #runAfter} to run after the writes submitted before
+ * them, and only after the ones that touch the keys they read.
+ */
+/* package */ class StateXWriteQueue {
+
+    /**
+     * A write submitted to the queue.
+     */
+    /* package */ static abstract class Write {
+        private long mSeq;
+
+        /**
+         * Applies the write inside the current transaction. May be called a second time, in a new
+         * transaction, if the first attempt was rolled back.
+         * Returning an error does not roll back what has already been applied, throwing does.
+         * @return the error to report to the caller, or null on success
+         */
+        abstract @Nullable WritableMap apply(StorageEngine engine) throws Exception;
+
+        /**
+         * Called once the transaction of the write has ended.
+         * @param committed whether what {@link #apply} did is now durable
+         */
+        abstract void onComplete(@Nullable WritableMap error, boolean committed);
+    }
+
+    /* package */ interface EngineProvider {
+        /**
+         * Returns the open storage engine to write to, or null if it isn't available.
+         */
+        @Nullable StorageEngine getEngine();
+
+        /**
+         * Called when a write failed because the storage reached its maximum size.
+         */
+        void onStorageFull();
+
+        /**
+         * Called once all the writes of a transaction have completed, whether it committed or not.
+         */
+        void onTransactionCompleted();
+    }
+
+    private final EngineProvider mEngineProvider;
+    // Serial, so that drains never overlap.
+    private final Executor mExecutor;
+    private final StateXMetrics mMetrics;
+    private final long mWindowMs;
+    private final int mMaxBatchSize;
+    private final ArrayDeque<Write> mPending = new ArrayDeque<>();
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private final Runnable mScheduleDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+    private @Nullable ScheduledExecutorService mTimer;
+    private @Nullable ScheduledFuture<?> mScheduledDrain;
+    private boolean mDrainSubmitted;
+    private boolean mClosed;
+
+    // Sequence numbers of the last submitted and the last completed write.
+    private long mSubmittedSeq;
+    private long mCompletedSeq;
+    // Sequence number of the last write that touched each key not completed yet.
+    private final HashMap<String, Long> mPendingKeySeqs = new HashMap<>();
+    // Sequence number of the last write that touched an unknown set of keys.
+    private long mLastUnboundedSeq;
+    // Tasks waiting for the completion of a write, by its sequence number.
+    private final TreeMap<Long, ArrayList<Runnable>> mWaiters = new TreeMap<>();
+
+    /* package */ StateXWriteQueue(
+            EngineProvider engineProvider,
+            Executor executor,
+            long windowMs,
+            int maxBatchSize,
+            StateXMetrics metrics) {
+        mEngineProvider = engineProvider;
+        mExecutor = executor;
+        mMetrics = metrics;
+        mWindowMs = windowMs;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Submits a write.
+     * @param keys the keys the write changes, or null if it may change any key
+     */
+    /* package */ synchronized void enqueue(Write write, @Nullable Collection<String> keys) {
+        write.mSeq = ++mSubmittedSeq;
+        if (keys == null) {
+            mLastUnboundedSeq = write.mSeq;
+        } else {
+            for (String key : keys) {
+                mPendingKeySeqs.put(key, write.mSeq);
+            }
+        }
+        mPending.add(write);
+        if (mDrainSubmitted) {
+            return;
+        }
+        if (mClosed || mWindowMs <= 0 || mPending.size() >= mMaxBatchSize) {
+            submitDrain();
+        } else if (mScheduledDrain == null) {
+            mScheduledDrain = getTimer().schedule(
+                    mScheduleDrainRunnable,
+                    mWindowMs,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Submits the pending writes to the executor right away, rather than at the end of the
+     * coalescing window, e.g. because a read waits for them.
+     */
+    /* package */ synchronized void flush() {
+        if (!mDrainSubmitted && !mPending.isEmpty()) {
+            submitDrain();
+        }
+    }
+
+    /**
+     * Submits the pending writes and stops the timer of the coalescing window. Writes enqueued
+     * afterwards are submitted right away.
+     */
+    /* package */ synchronized void close() {
+        mClosed = true;
+        flush();
+        if (mTimer != null) {
+            mTimer.shutdown();
+            mTimer = null;
+        }
+    }
+
+    /**
+     * Returns the sequence number to {@link #runAfter} before reading the given keys, or all keys
+     * if null, so that the read sees every write submitted so far.
+     */
+    /* package */ synchronized long barrier(@Nullable Collection<String> keys) {
+        if (keys == null) {
+            return mSubmittedSeq;
+        }
+        long seq = mLastUnboundedSeq;
+        for (String key : keys) {
+            Long keySeq = key != null ? mPendingKeySeqs.get(key) : null;
+            if (keySeq != null && keySeq > seq) {
+                seq = keySeq;
+            }
+        }
+        return seq;
+    }
+
+    /**
+     * Returns whether a write that may change one of the keys was submitted and hasn't completed,
+     * in which case the cache may not reflect it yet. Never blocks on a transaction.
+     */
+    /* package */ synchronized boolean hasPendingWrites(Collection<String> keys) {
+        return barrier(keys) > mCompletedSeq;
+    }
+
+    /**
+     * Runs the task once the write with the given sequence number, and all before it, have
+     * completed, right away if they have. Otherwise the task runs on the thread completing the
+     * write, so it must not block.
+     */
+    /* package */ void runAfter(long seq, Runnable task) {
+        synchronized (this) {
+            if (mCompletedSeq < seq) {
+                ArrayList<Runnable> tasks = mWaiters.get(seq);
+                if (tasks == null) {
+                    tasks = new ArrayList<>();
+                    mWaiters.put(seq, tasks);
+                }
+                tasks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private void complete(Write write, @Nullable WritableMap error, boolean committed) {
+        ArrayList<Runnable> waiters = new ArrayList<>();
+        try {
+            write.onComplete(error, committed);
+        } finally {
+            synchronized (this) {
+                mCompletedSeq = write.mSeq;
+                if (mCompletedSeq == mSubmittedSeq) {
+                    // Entries of completed writes are harmless, drop them all once the queue is idle.
+                    mPendingKeySeqs.clear();
+                }
+                Map<Long, ArrayList<Runnable>> completed = mWaiters.headMap(mCompletedSeq, true);
+                for (ArrayList<Runnable> tasks : completed.values()) {
+                    waiters.addAll(tasks);
+                }
+                completed.clear();
+            }
+            for (Runnable waiter : waiters) {
+                waiter.run();
+            }
+        }
+    }
+
+    private void submitDrain() {
+        if (mScheduledDrain != null) {
+            mScheduledDrain.cancel(false);
+            mScheduledDrain = null;
+        }
+        mDrainSubmitted = true;
+        mExecutor.execute(mDrainRunnable);
+    }
+
+    private ScheduledExecutorService getTimer() {
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(
+                    new StateXThreadFactory("StateXWriteTimer"));
+        }
+        return mTimer;
+    }
+
+    /**
+     * Commits every write pending when it starts, in batches of at most the maximum batch size, so
+     * that a task submitted to the executor after {@link #flush} runs after all of them. Writes
+     * enqueued meanwhile are left to the next drain.
+     */
+    private void drain() {
+        int count;
+        synchronized (this) {
+            mDrainSubmitted = false;
+            count = mPending.size();
+        }
+        while (count > 0) {
+            ArrayList<Write> batch = new ArrayList<>();
+            synchronized (this) {
+                while (batch.size() < count && batch.size() < mMaxBatchSize) {
+                    batch.add(mPending.poll());
+                }
+            }
+            count -= batch.size();
+            commit(batch);
+        }
+    }
+
+    private void commit(ArrayList<Write> batch) {
+        StorageEngine engine = mEngineProvider.getEngine();
+        if (engine == null) {
+            for (Write write : batch) {
+                complete(write, AsyncStorageErrorUtil.getDBError(null), false);
+            }
+            return;
+        }
+        if (batch.size() == 1 || !applyBatch(engine, batch)) {
+            for (Write write : batch) {
+                applyIsolated(engine, write);
+            }
+        }
+    }
+
+    /**
+     * Applies all writes in one transaction.
+     * @return false if the transaction was rolled back and nothing was completed
+     */
+    private boolean applyBatch(StorageEngine engine, ArrayList<Write> batch) {
+        WritableMap[] errors = new WritableMap[batch.size()];
+        long startTime = mMetrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            engine.beginTransaction();
+            try {
+                for (int idx = 0; idx < batch.size(); idx++) {
+                    errors[idx] = batch.get(idx).apply(engine);
+                }
+                engine.setTransactionSuccessful();
+            } finally {
+                engine.endTransaction();
+            }
+        } catch (Exception e) {
+            FLog.w(ReactConstants.TAG, "Group commit failed, retrying writes one by one", e);
+            mMetrics.onTransaction(batch.size(), startTime, false);
+            return false;
+        }
+        mMetrics.onTransaction(batch.size(), startTime, true);
+        for (int idx = 0; idx < batch.size(); idx++) {
+            complete(batch.get(idx), errors[idx], true);
+        }
+        mEngineProvider.onTransactionCompleted();
+        return true;
+    }
+
+    private void applyIsolated(StorageEngine engine, Write write) {
+        WritableMap error = null;
+        boolean committed = false;
+        long startTime = mMetrics.isEnabled() ? System.nanoTime() : 0;
+        try {
+            engine.beginTransaction();
+        } catch (Exception e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            mMetrics.onTransaction(1, startTime, false);
+            complete(write, AsyncStorageErrorUtil.getError(null, e.getMessage()), false);
+            return;
+        }
+        try {
+            error = write.apply(engine);
+            engine.setTransactionSuccessful();
+            committed = true;
+        } catch (SQLiteFullException e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            error = AsyncStorageErrorUtil.getStorageFullError(null);
+            mEngineProvider.onStorageFull();
+        } catch (Exception e) {
+            FLog.w(ReactConstants.TAG, e.getMessage(), e);
+            error = AsyncStorageErrorUtil.getError(null, e.getMessage());
+        } finally {
+            try {
+                engine.endTransaction();
+            } catch (Exception e) {
+                FLog.w(ReactConstants.TAG, e.getMessage(), e);
+                committed = false;
+                if (error == null) {
+                    error = AsyncStorageErrorUtil.getError(null, e.getMessage());
+                }
+            }
+        }
+        mMetrics.onTransaction(1, startTime, committed);
+        complete(write, error, committed);
+        mEngineProvider.onTransactionCompleted();
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where {@link StateXModule} stores its keys and values.
+ * <p/>
+ * Writes only happen between {@link #beginTransaction} and {@link #endTransaction}, on one thread at
+ * a time: the transaction is committed if {@link #setTransactionSuccessful} was called, rolled back
+ * otherwise. Reads may run on other threads, concurrently with a transaction. Keys whose expiration
+ * time has passed are never returned, whether they are deleted yet or not.
+ * <p/>
+ * Every write gives the value a version, greater than all the versions given before by the storage,
+ * even to keys since removed or cleared, so that a value is never mistaken for an older one.
+ */
+public interface StorageEngine {
+
+    /**
+     * The available engines, chosen with {@link StateXPackage#StateXPackage(StateXConfig, Type)}.
+     */
+    enum Type {
+        /**
+         * A SQLite database. Supports every option of {@link StateXConfig}.
+         */
+        SQLITE,
+        /**
+         * An append-only log of memory-mapped segment files, indexed by an in-memory hash table and
+         * compacted in the background. Writes skip SQLite's page and journal overhead, at the cost of
+         * keeping every key in memory. Values are stored as is, so compression, side files, the
+         * quota and the maximum database size don't apply.
+         */
+        LOG_STRUCTURED,
+    }
+
+    /**
+     * Rows returned by {@link #scan}, which must be closed.
+     */
+    interface Scan {
+        boolean moveToNext() throws IOException;
+
+        String getKey();
+
+        /**
+         * Returns the value of the current row, if the scan includes values.
+         */
+        String getValue() throws IOException;
+
+        /**
+         * Returns the expiration time of the current row, or 0, if the scan includes values.
+         */
+        long getExpiresAt();
+
+        /**
+         * Returns the version of the current row, if the scan includes values.
+         */
+        long getVersion();
+
+        void close();
+    }
+
+    /**
+     * Opens the storage if it isn't open yet.
+     * @return false if it couldn't be opened
+     */
+    boolean open();
+
+    /**
+     * Closes the storage and releases its files and threads, until it is opened again.
+     */
+    void close();
+
+    /**
+     * Closes the storage and deletes all of its files.
+     * @return true if the files were deleted
+     */
+    boolean delete();
+
+    /**
+     * Reads the values of keys[positions[0]], ..., keys[positions[count - 1]] into the same
+     * positions of values, leaving null for the keys that are not found, and their expiration times,
+     * or 0, and versions into the same positions of expirations and versions. Called in a
+     * transaction, on its thread, it sees the writes of the transaction.
+     */
+    void multiGet(
+            String[] keys,
+            int[] positions,
+            int count,
+            String[] values,
+            long[] expirations,
+            long[] versions) throws IOException;
+
+    /**
+     * Returns the keys, and values if includeValues is set, of the keys starting with the prefix and
+     * within [startKey, endKey), or (startKey, endKey) if startInclusive is false, in code point
+     * order, which is the order of SQLite's default collation.
+     * @param limit maximum number of rows, or 0 for all
+     */
+    Scan scan(
+            String prefix,
+            @Nullable String startKey,
+            boolean startInclusive,
+            @Nullable String endKey,
+            int limit,
+            boolean includeValues) throws IOException;
+
+    void beginTransaction() throws IOException;
+
+    void setTransactionSuccessful();
+
+    void endTransaction() throws IOException;
+
+    /**
+     * @param expiresAt expiration time of the key, or 0 if it doesn't expire
+     * @return the version of the value
+     */
+    long set(String key, String value, long expiresAt) throws IOException;
+
+    void remove(List<String> keys) throws IOException;
+
+    /**
+     * Merges the value with the stored value of the key as a JSON merge patch, keeping its
+     * expiration time, see {@link StateXJsonMerge}.
+     * @param expiresAt receives the expiration time of the merged value, or 0, into expiresAt[0]
+     * @param version receives the version of the merged value into version[0]
+     * @return the merged value that was stored, or null if it couldn't be stored
+     */
+    @Nullable String merge(String key, String value, long[] expiresAt, long[] version)
+            throws JSONException, IOException;
+
+    /**
+     * Returns the version of the value of the key, or 0 if it is not found, in the transaction.
+     */
+    long getVersion(String key) throws IOException;
+
+    void clear() throws IOException;
+
+    /**
+     * Deletes up to limit keys whose expiration time is before now.
+     * @param removed receives the deleted keys
+     */
+    void removeExpired(long now, int limit, List<String> removed) throws IOException;
+
+    /**
+     * Whether keys are evicted once a quota is exceeded, see {@link #evict}.
+     */
+    boolean isEvictionEnabled();
+
+    /**
+     * Records a read of the key, for the eviction order.
+     * @return true if enough reads are recorded that {@link #evict} should run to write them
+     */
+    boolean recordAccess(String key, long time);
+
+    /**
+     * Evicts keys if the quota is exceeded, in a transaction.
+     * @param full whether a write failed because the storage is full, in which case keys are evicted
+     *     even if the usage is within the quota
+     * @param evicted receives the evicted keys
+     * @return true if another run may evict more keys
+     */
+    boolean evict(boolean full, List<String> evicted) throws IOException;
+
+    /**
+     * Returns false if there is certainly nothing for {@link #collectGarbage} to do.
+     */
+    boolean mayHaveGarbage();
+
+    /**
+     * Finds the storage no longer used by committed keys, in a transaction, and frees it once the
+     * transaction has committed.
+     */
+    void collectGarbage() throws IOException;
+}
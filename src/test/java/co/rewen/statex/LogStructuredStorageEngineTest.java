@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2015-present, Junjun Deng
+ * All rights reserved.
+ * <p/>
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree.
+ */
+
+package co.rewen.statex;
+
+import javax.annotation.Nullable;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LogStructuredStorageEngineTest {
+
+    private static final String DIRECTORY_NAME = "StateXLogTest";
+
+    private File mFilesDir;
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        mFilesDir = File.createTempFile("statex", "");
+        assertTrue(mFilesDir.delete() && mFilesDir.mkdir());
+        mContext = new ContextWrapper(null) {
+            @Override
+            public File getFilesDir() {
+                return mFilesDir;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mFilesDir);
+    }
+
+    @Test
+    public void replaysCommittedWrites() throws IOException {
+        LogStructuredStorageEngine engine = open();
+        long version = set(engine, "a", "1");
+        set(engine, "b", "2");
+        engine.beginTransaction();
+        try {
+            engine.remove(Arrays.asList("b"));
+            engine.setTransactionSuccessful();
+        } finally {
+            engine.endTransaction();
+        }
+        engine.close();
+
+        engine = open();
+        assertEquals("1", get(engine, "a"));
+        assertEquals(version, engine.getVersion("a"));
+        assertNull(get(engine, "b"));
+        engine.close();
+    }
+
+    @Test
+    public void rollsBackUncommittedWrites() throws IOException {
+        LogStructuredStorageEngine engine = open();
+        long version = set(engine, "a", "1");
+        engine.beginTransaction();
+        try {
+            engine.set("a", "2", 0);
+            engine.set("c", "3", 0);
+            assertEquals("2", get(engine, "a"));
+        } finally {
+            engine.endTransaction();
+        }
+        assertEquals("1", get(engine, "a"));
+        assertNull(get(engine, "c"));
+        engine.close();
+
+        engine = open();
+        assertEquals("1", get(engine, "a"));
+        assertNull(get(engine, "c"));
+        assertTrue(set(engine, "a", "4") > version);
+        engine.close();
+    }
+
+    @Test
+    public void reopeningReusesTheActiveSegment() throws IOException {
+        LogStructuredStorageEngine engine = open();
+        engine.close();
+        assertEquals(1, getSegmentCount());
+        for (int idx = 0; idx < 5; idx++) {
+            engine = open();
+            if (idx % 2 == 0) {
+                set(engine, "key" + idx, "value" + idx);
+            }
+            engine.close();
+            assertEquals(1, getSegmentCount());
+        }
+        engine = open();
+        for (int idx = 0; idx < 5; idx += 2) {
+            assertEquals("value" + idx, get(engine, "key" + idx));
+        }
+        engine.close();
+    }
+
+    @Test
+    public void compactsOverwrittenValues() throws Exception {
+        char[] chars = new char[64 * 1024];
+        Arrays.fill(chars, 'x');
+        String largeValue = new String(chars);
+
+        LogStructuredStorageEngine engine = open();
+        long smallVersion = set(engine, "small", "s");
+        long largeVersion = 0;
+        // Enough to seal a few segments holding nothing but overwritten values.
+        for (int idx = 0; idx < 200; idx++) {
+            largeVersion = set(engine, "large", idx + largeValue);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (getDirectorySize() >= 6 * 1024 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertTrue("Segments were not compacted", getDirectorySize() < 6 * 1024 * 1024);
+        assertEquals("s", get(engine, "small"));
+        assertEquals("199" + largeValue, get(engine, "large"));
+        engine.close();
+
+        engine = open();
+        assertEquals("s", get(engine, "small"));
+        assertEquals(smallVersion, engine.getVersion("small"));
+        assertEquals("199" + largeValue, get(engine, "large"));
+        assertEquals(largeVersion, engine.getVersion("large"));
+        assertTrue(set(engine, "small", "t") > largeVersion);
+        engine.close();
+    }
+
+    private LogStructuredStorageEngine open() {
+        LogStructuredStorageEngine engine =
+                new LogStructuredStorageEngine(mContext, DIRECTORY_NAME);
+        assertTrue(engine.open());
+        return engine;
+    }
+
+    private static long set(StorageEngine engine, String key, String value) throws IOException {
+        long version;
+        engine.beginTransaction();
+        try {
+            version = engine.set(key, value, 0);
+            engine.setTransactionSuccessful();
+        } finally {
+            engine.endTransaction();
+        }
+        return version;
+    }
+
+    private static @Nullable String get(StorageEngine engine, String key) throws IOException {
+        String[] values = new String[1];
+        engine.multiGet(new String[] {key}, new int[] {0}, 1, values, new long[1], new long[1]);
+        return values[0];
+    }
+
+    private int getSegmentCount() {
+        int count = 0;
+        for (File file : getSegmentFiles()) {
+            if (file.getName().endsWith(".log")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private long getDirectorySize() {
+        long size = 0;
+        for (File file : getSegmentFiles()) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private File[] getSegmentFiles() {
+        File[] files = new File(mFilesDir, DIRECTORY_NAME).listFiles();
+        return files != null ? files : new File[0];
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}